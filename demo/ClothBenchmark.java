@@ -0,0 +1,200 @@
+import engine.Constraints;
+import engine.Particle;
+import engine.ParticleBatch;
+import engine.Simulator;
+import environment.World;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Measures the constraints of the {@link Simulator} (see {@link Simulator#getConstraints()})
+ * on a square cloth hanging by two corners: time per step, and the mean and largest stretch
+ * of its links, for a few numbers of iterations. The links near the pins carry the whole
+ * cloth, and each iteration only spreads a correction by a link or so, so a large cloth
+ * needs many iterations (or a smaller timestep) to stay taut.
+ * <p>
+ * Usage: ClothBenchmark [side] [threads] (default: 100 particles, that is about 40000
+ * constraints, and all processors).
+ *
+ * @author Fabio Ticconi
+ */
+class ClothBenchmark
+{
+    private static final double   SPACING    = 0.05;
+    private static final double   DT         = 1.0 / 60.0;
+    private static final int[]    ITERATIONS = {10, 20, 40};
+    // a soft bending, so that the cloth folds
+    private static final double   BENDING    = 1e-4;
+
+    // steps before measuring, and measured
+    private static final int WARMUP = 60;
+    private static final int STEPS  = 60;
+
+    /**
+     * Applies a uniform gravity along z.
+     */
+    private static final class GravityWorld implements World
+    {
+        private static final double G = 9.81;
+
+        @Override
+        public void process(final Particle p, final double dt)
+        {
+            p.getForce().z -= G * p.getMass();
+        }
+
+        @Override
+        public void process(final ParticleBatch b, final int from, final int to, final double dt)
+        {
+            for (int k = from; k < to; k++)
+                b.forceZ[k] -= G * b.mass[k];
+        }
+
+        @Override
+        public ImmutableVect3D getGravity()
+        {
+            return new ImmutableVect3D(0.0, 0.0, -G);
+        }
+
+        @Override
+        public void setGravity(final ImmutableVect3D gravity)
+        {
+        }
+
+        @Override
+        public Vect3D getForces(final Particle p, final double dt)
+        {
+            return new Vect3D(0.0, 0.0, -G * p.getMass());
+        }
+    }
+
+    /**
+     * Creates a horizontal cloth, with rigid links along rows and
+     * columns, bending along both, and pins at two corners.
+     *
+     * @param simulator
+     * @param side      particles on each side
+     * @return the particles, row by row
+     */
+    private static Particle[] createCloth(final Simulator simulator, final int side)
+    {
+        final Particle[]  cloth       = new Particle[side * side];
+        final Constraints constraints = simulator.getConstraints();
+
+        for (int i = 0; i < cloth.length; i++)
+        {
+            cloth[i] = new Particle(0.01, SPACING / 2.0, new Vect3D(i % side * SPACING, i / side * SPACING, 0.0), new Vect3D());
+            simulator.addParticle(cloth[i]);
+        }
+
+        for (int i = 0; i < cloth.length; i++)
+        {
+            final int x = i % side;
+            final int y = i / side;
+
+            if (x < side - 1)
+                constraints.addDistance(cloth[i], cloth[i + 1], 0.0);
+            if (y < side - 1)
+                constraints.addDistance(cloth[i], cloth[i + side], 0.0);
+            if (x < side - 2)
+                constraints.addBending(cloth[i], cloth[i + 1], cloth[i + 2], BENDING);
+            if (y < side - 2)
+                constraints.addBending(cloth[i], cloth[i + side], cloth[i + 2 * side], BENDING);
+        }
+
+        constraints.addPin(cloth[0], 0.0);
+        constraints.addPin(cloth[side - 1], 0.0);
+
+        return cloth;
+    }
+
+    /**
+     * @param cloth
+     * @param side
+     * @return the mean and the largest relative stretch of the links
+     */
+    private static double[] stretch(final Particle[] cloth, final int side)
+    {
+        double sum   = 0.0;
+        double max   = 0.0;
+        int    links = 0;
+
+        for (int i = 0; i < cloth.length; i++)
+        {
+            if (i % side < side - 1)
+            {
+                final double s = Vect3D.distance(cloth[i].getCenter(), cloth[i + 1].getCenter()) / SPACING - 1.0;
+                sum += s;
+                max = Math.max(max, s);
+                links++;
+            }
+            if (i / side < side - 1)
+            {
+                final double s = Vect3D.distance(cloth[i].getCenter(), cloth[i + side].getCenter()) / SPACING - 1.0;
+                sum += s;
+                max = Math.max(max, s);
+                links++;
+            }
+        }
+
+        return new double[] {sum / links, max};
+    }
+
+    private static void run(final int iterations, final int side, final int threads)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new GravityWorld());
+        simulator.setParallelism(threads);
+        simulator.getConstraints().setIterations(iterations);
+
+        final Particle[] cloth = createCloth(simulator, side);
+
+        for (int i = 0; i < WARMUP; i++)
+            simulator.update(DT);
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < STEPS; i++)
+            simulator.update(DT);
+
+        final long elapsed = System.nanoTime() - start;
+
+        simulator.setParallelism(1);
+
+        final double[] stretch = stretch(cloth, side);
+
+        System.out.println(String.format("%2d iterations, %d particles, %d constraints, %d threads: %.3f ms/step, stretch %.2f%% mean, %.2f%% max",
+                                         iterations,
+                                         cloth.length,
+                                         simulator.getConstraints().size(),
+                                         threads,
+                                         elapsed / 1000000.0 / STEPS,
+                                         stretch[0] * 100.0,
+                                         stretch[1] * 100.0));
+    }
+
+    public static void main(final String[] args)
+    {
+        final int side    = args.length > 0 ? Integer.parseInt(args[0]) : 100;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        for (final int iterations : ITERATIONS)
+            run(iterations, side, threads);
+    }
+}
@@ -0,0 +1,100 @@
+import engine.Particle;
+import engine.Simulator;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.Random;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Measures the cost of particle-particle collisions (see {@link Simulator#setParticleCollisions(boolean)}),
+ * stepping the same gas of particles without them, with them and with neighbour lists
+ * (see {@link Simulator#setNeighborSkin(double)}).
+ * <p>
+ * Usage: CollisionBenchmark [particles] [threads] [skin] (default: 500000, all processors and 1).
+ *
+ * @author Fabio Ticconi
+ */
+class CollisionBenchmark
+{
+    // side of the box the particles start in
+    private static final double SIZE = 200.0;
+    private static final double DT   = 1.0 / 60.0;
+
+    // how long each measure runs for
+    private static final long WARMUP_NANOS  = 2000000000L;
+    private static final long MEASURE_NANOS = 5000000000L;
+
+    private static void run(final String name,
+                            final boolean collisions,
+                            final double skin,
+                            final int particles,
+                            final int threads)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setParticleCollisions(collisions);
+        simulator.setNeighborSkin(skin);
+        simulator.setParallelism(threads);
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < particles; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * SIZE - SIZE / 2.0,
+                                                       r.nextDouble() * SIZE - SIZE / 2.0,
+                                                       r.nextDouble() * SIZE - SIZE / 2.0));
+            p.setRadius(0.5);
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 10.0 - 5.0,
+                                              r.nextDouble() * 10.0 - 5.0,
+                                              r.nextDouble() * 10.0 - 5.0));
+            simulator.addParticle(p);
+        }
+
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS)
+            simulator.update(DT);
+
+        int steps = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            simulator.update(DT);
+            steps++;
+        } while ((elapsed = System.nanoTime() - start) < MEASURE_NANOS);
+
+        System.out.println(String.format("%-24s %d particles, %d threads: %.3f ms/step",
+                                         name,
+                                         particles,
+                                         threads,
+                                         elapsed / 1000000.0 / steps));
+
+        simulator.setParallelism(1);
+    }
+
+    public static void main(final String[] args)
+    {
+        final int    particles = args.length > 0 ? Integer.parseInt(args[0]) : 500000;
+        final int    threads   = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        final double skin      = args.length > 2 ? Double.parseDouble(args[2]) : 1.0;
+
+        run("without collisions,", false, 0.0, particles, threads);
+        run("with collisions,", true, 0.0, particles, threads);
+        run("with neighbour lists,", true, skin, particles, threads);
+    }
+}
@@ -35,6 +35,7 @@ import collision.Static;
 import collision.broadphase.ArrayGrid2D;
 import engine.Particle;
 import engine.Simulator;
+import engine.Snapshot;
 import maps.Cell;
 import maps.SimpleMap;
 import shapes.Box;
@@ -56,9 +57,6 @@ class Demo2D extends JFrame
 
     private static final boolean VERBOSE = false;
 
-    private final ArrayList<Particle>             particles    = new ArrayList<>(500);
-    private final ConcurrentLinkedQueue<Particle> newParticles = new ConcurrentLinkedQueue<>();
-
     private final ArrayList<Static>             objects    = new ArrayList<>(500);
     private final ConcurrentLinkedQueue<Static> newObjects = new ConcurrentLinkedQueue<>();
     private final Canvas     render;
@@ -158,14 +156,16 @@ class Demo2D extends JFrame
 
             // p.setRadius(Math.random() / 5.0 + 0.1);
             // p.setMass(Math.random() * 20.0 + 50.0);
-            // p.setBounciness(Math.random() * 0.9);
+            // p.setBounciness(Math.floor(Math.random() * 10.0) / 10.0);
             p.setMass(100.0);
             p.setRadius(0.25);
             p.setBounciness(1.0);
 
             // p.setVelocity(new Vect3D(Math.random() * 50 - 25, 0.0, 0.0));
 
-            newParticles.add(p);
+            // we are on the event thread: the simulator
+            // adds it at the start of the next step
+            simulator.enqueueAddParticle(p);
 
             if (VERBOSE)
                 System.out.println("Adding new particle at " + p.getCenter().x + ", " + p.getCenter().z);
@@ -186,6 +186,7 @@ class Demo2D extends JFrame
             final Vect3D extent = new Vect3D(Math.random() + 0.1, 0.5, Math.random() + 0.1).mul(50);
             o.setCenterExtent(realPos, extent); // will correct min-max too
 
+            simulator.enqueueAddStatic(o);
             newObjects.add(o);
 
             if (VERBOSE)
@@ -237,20 +238,12 @@ class Demo2D extends JFrame
 
     private void processInput()
     {
-        final Particle p = newParticles.poll();
-        final Static   o = newObjects.poll();
+        final Static o = newObjects.poll();
 
+        // the simulator gets them through its own queue,
+        // here we only keep track of what to render
         if (o != null)
-        {
             objects.add(o);
-            collider.add(o);
-        }
-
-        if (p != null)
-        {
-            simulator.addParticle(p);
-            particles.add(p);
-        }
     }
 
     private void loop()
@@ -259,34 +252,31 @@ class Demo2D extends JFrame
         final double frameDuration = 1000.0 / FPS;
         final double dt            = frameDuration / 1000.0;
 
-        double previousTime = System.currentTimeMillis();
-        double currentTime;
+        simulator.setFixedTimestep(dt);
 
-        double lag = 0.0;
-        double elapsed;
+        long previousTime = System.nanoTime();
+        long currentTime;
 
         while (true)
         {
-            currentTime = System.currentTimeMillis();
-            elapsed = currentTime - previousTime;
-            previousTime = currentTime;
-
-            lag += elapsed;
+            currentTime = System.nanoTime();
 
             processInput();
 
-            while (lag >= frameDuration)
-            {
-                simulator.update(dt);
+            // the physics runs in the background, while we
+            // render the latest snapshot
+            simulator.beginAdvance(currentTime - previousTime);
+            previousTime = currentTime;
 
-                lag -= frameDuration;
-            }
+            final Snapshot snapshot = simulator.acquireSnapshot();
+
+            render(snapshot);
 
-            render();
+            snapshot.release();
         }
     }
 
-    private void render()
+    private void render(final Snapshot snapshot)
     {
         do
         {
@@ -317,7 +307,7 @@ class Demo2D extends JFrame
                 g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
 
                 renderBoxes(g2d);
-                renderParticles(g2d);
+                renderParticles(g2d, snapshot);
 
                 g2d.dispose();
             } while (bufferstrat.contentsRestored());
@@ -325,10 +315,12 @@ class Demo2D extends JFrame
         } while (bufferstrat.contentsLost());
     }
 
-    private void renderParticles(final Graphics2D g2d)
+    private void renderParticles(final Graphics2D g2d, final Snapshot snapshot)
     {
-        for (final Particle p : particles)
-            renderParticle(g2d, p);
+        final Vect3D pos = new Vect3D();
+
+        for (int i = 0; i < snapshot.size(); i++)
+            renderParticle(g2d, snapshot.getRadius(i), snapshot.getInterpolatedPosition(i, pos));
     }
 
     private void renderBoxes(final Graphics2D g2d)
@@ -337,15 +329,17 @@ class Demo2D extends JFrame
             renderBox(g2d, b);
     }
 
-    private void renderParticle(final Graphics2D g, final Particle p)
+    private void renderParticle(final Graphics2D g, final double r, final Vect3D pos)
     {
         final Graphics2D g2d = (Graphics2D) g.create();
 
         g2d.setColor(Color.white);
 
-        final double radius = p.getRadius() * 25.0;
+        final double radius = r * 25.0;
 
-        final Vect3D newPoint = transformToGraphics(p.getCenter());
+        // rendering runs at its own rate, so we draw the particle
+        // where it would be between two simulation steps
+        final Vect3D newPoint = transformToGraphics(pos);
 
         final double x        = newPoint.x - radius;
         final double z        = newPoint.z - radius;
@@ -353,13 +347,13 @@ class Demo2D extends JFrame
 
         if (VERBOSE)
         {
-            final Cell c = world.getCell(p.getCenter());
+            final Cell c = world.getCell(pos);
 
             final String celltype = c.getClass().getName();
 
             System.out.println(
-                "rendering particle (" + celltype + "): x:" + x + ", z:" + z + ", realx:" + p.getCenter().x +
-                ", realz:" + p.getCenter().z + ", m: " + p.getMass() + ", d:" + p.getDensity());
+                "rendering particle (" + celltype + "): x:" + x + ", z:" + z + ", realx:" + pos.x +
+                ", realz:" + pos.z);
         }
 
         final Ellipse2D.Double circle = new Ellipse2D.Double(x, z, diameter, diameter);
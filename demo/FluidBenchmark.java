@@ -0,0 +1,234 @@
+import collision.BroadPhase;
+import collision.Static;
+import engine.Particle;
+import engine.ParticleBatch;
+import engine.Simulator;
+import environment.Fluid;
+import environment.World;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Measures the fluid simulation of the {@link Simulator} (see
+ * {@link Simulator#setFluid(Fluid)}) on a dam break: a block of water collapsing
+ * in a tank made of {@link Static} objects. Prints the time per step, and how far
+ * the front of the water has gone.
+ * <p>
+ * Usage: FluidBenchmark [particles] [threads] (default: 100000 and all processors).
+ *
+ * @author Fabio Ticconi
+ */
+class FluidBenchmark
+{
+    // spacing of the particles at rest, and the fluid: a speed of sound of 50 m/s,
+    // and enough viscosity to damp the noise of the pressure
+    private static final double SPACING = 0.1;
+    private static final Fluid  WATER   = new Fluid(2.0 * SPACING, 1000.0, 2500.0, 500.0);
+
+    // the tank, and the height of the water in it
+    private static final double LENGTH = 15.0;
+    private static final double WIDTH  = 4.0;
+    private static final double HEIGHT = 5.0;
+
+    private static final double DT = 0.001;
+
+    // steps measured, and between prints
+    private static final int STEPS  = 400;
+    private static final int REPORT = 100;
+
+    /**
+     * Applies a uniform gravity along z.
+     */
+    private static final class GravityWorld implements World
+    {
+        private static final double G = 9.81;
+
+        @Override
+        public void process(final Particle p, final double dt)
+        {
+            p.getForce().z -= G * p.getMass();
+        }
+
+        @Override
+        public void process(final ParticleBatch b, final int from, final int to, final double dt)
+        {
+            for (int k = from; k < to; k++)
+                b.forceZ[k] -= G * b.mass[k];
+        }
+
+        @Override
+        public ImmutableVect3D getGravity()
+        {
+            return new ImmutableVect3D(0.0, 0.0, -G);
+        }
+
+        @Override
+        public void setGravity(final ImmutableVect3D gravity)
+        {
+        }
+
+        @Override
+        public Vect3D getForces(final Particle p, final double dt)
+        {
+            return new Vect3D(0.0, 0.0, -G * p.getMass());
+        }
+    }
+
+    /**
+     * Tests every particle against all the objects: the tank is only a few of them.
+     */
+    private static final class TankBroadPhase implements BroadPhase
+    {
+        private final List<Static> objects = new ArrayList<>();
+
+        @Override
+        public void add(final Static s)
+        {
+            objects.add(s);
+        }
+
+        @Override
+        public void remove(final Static s)
+        {
+            objects.remove(s);
+        }
+
+        @Override
+        public List<Static> getPossibleCollisions(final Vect3D p)
+        {
+            return new ArrayList<>(objects);
+        }
+
+        @Override
+        public void getPossibleCollisions(final Vect3D p, final List<Static> out)
+        {
+            // indexed loop, so that nothing is allocated
+            for (int i = 0; i < objects.size(); i++)
+                out.add(objects.get(i));
+        }
+
+        @Override
+        public List<Static> getCollisions(final Vect3D p)
+        {
+            final List<Static> colliding = new ArrayList<>();
+
+            for (final Static s : objects)
+                if (s.intersects(p))
+                    colliding.add(s);
+
+            return colliding;
+        }
+    }
+
+    /**
+     * Adds the floor and the four walls of the tank.
+     *
+     * @param simulator
+     */
+    private static void createTank(final Simulator simulator)
+    {
+        simulator.setBroadPhase(new TankBroadPhase());
+
+        simulator.addStatic(new Static(new Vect3D(-1.0, -1.0, -1.0), new Vect3D(LENGTH + 1.0, WIDTH + 1.0, 0.0), 0.1));
+        simulator.addStatic(new Static(new Vect3D(-1.0, -1.0, 0.0), new Vect3D(0.0, WIDTH + 1.0, HEIGHT * 2.0), 0.1));
+        simulator.addStatic(new Static(new Vect3D(LENGTH, -1.0, 0.0), new Vect3D(LENGTH + 1.0, WIDTH + 1.0, HEIGHT * 2.0), 0.1));
+        simulator.addStatic(new Static(new Vect3D(0.0, -1.0, 0.0), new Vect3D(LENGTH, 0.0, HEIGHT * 2.0), 0.1));
+        simulator.addStatic(new Static(new Vect3D(0.0, WIDTH, 0.0), new Vect3D(LENGTH, WIDTH + 1.0, HEIGHT * 2.0), 0.1));
+    }
+
+    /**
+     * Fills one end of the tank with a block of water,
+     * as deep as the tank is wide.
+     *
+     * @param simulator
+     * @param particles
+     * @return the particles
+     */
+    private static Particle[] createBlock(final Simulator simulator, final int particles)
+    {
+        final int    ny   = (int) Math.round(WIDTH / SPACING);
+        final int    nz   = (int) Math.round(HEIGHT / SPACING);
+        final int    nx   = (particles + ny * nz - 1) / (ny * nz);
+        final double mass = WATER.getParticleMass(SPACING);
+
+        final Particle[] block = new Particle[particles];
+
+        for (int i = 0; i < particles; i++)
+        {
+            final int x = i / (ny * nz);
+            final int y = i / nz % ny;
+            final int z = i % nz;
+
+            block[i] = new Particle(mass,
+                                    SPACING / 2.0,
+                                    new Vect3D((x + 0.5) * SPACING, (y + 0.5) * SPACING, (z + 0.5) * SPACING),
+                                    new Vect3D());
+            simulator.addParticle(block[i]);
+        }
+
+        System.out.println(String.format("%d particles, block of %.2f x %.2f x %.2f", particles, nx * SPACING, WIDTH, HEIGHT));
+
+        return block;
+    }
+
+    public static void main(final String[] args)
+    {
+        final int particles = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int threads   = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new GravityWorld());
+        simulator.setFluid(WATER);
+        simulator.setParallelism(threads);
+
+        createTank(simulator);
+
+        final Particle[] block = createBlock(simulator, particles);
+
+        long total = 0L;
+
+        for (int i = 1; i <= STEPS; i++)
+        {
+            final long start = System.nanoTime();
+            simulator.update(DT);
+            total += System.nanoTime() - start;
+
+            if (i % REPORT == 0)
+            {
+                double front = 0.0;
+
+                for (final Particle p : block)
+                    front = Math.max(front, p.getCenter().x);
+
+                System.out.println(String.format("t %.3f s, %d threads: %.3f ms/step, front at %.2f",
+                                                 i * DT,
+                                                 threads,
+                                                 total / 1000000.0 / REPORT,
+                                                 front));
+
+                total = 0L;
+            }
+        }
+
+        simulator.setParallelism(1);
+    }
+}
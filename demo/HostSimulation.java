@@ -0,0 +1,134 @@
+import collision.broadphase.ArrayGrid2D;
+import engine.Particle;
+import engine.SimulationHost;
+import engine.Simulator;
+import maps.SimpleMap;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Runs thousands of small rooms on a {@link SimulationHost}, plus a single overloaded
+ * one, and shows how many ticks each got compared to its tick rate.
+ * <p>
+ * Usage: HostSimulation [rooms] [particles per room] [seconds] (default: 5000 20 10).
+ *
+ * @author Fabio Ticconi
+ */
+class HostSimulation
+{
+    private static final int   SIZE  = 100;
+    private static final int[] RATES = {20, 30, 60};
+
+    private static Simulator createRoom(final Random r, final int particles)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new SimpleMap(-SIZE, SIZE, -SIZE, SIZE, -SIZE, SIZE));
+        simulator.setBroadPhase(new ArrayGrid2D((short) -SIZE, (short) SIZE, (short) -SIZE, (short) SIZE, (short) 10));
+
+        final Particle[] wave = new Particle[particles];
+
+        for (int i = 0; i < particles; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE));
+
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 50 - 25, 0.0, 0.0));
+            wave[i] = p;
+        }
+
+        simulator.addParticles(wave);
+
+        return simulator;
+    }
+
+    private static void print(final String name,
+                              final List<SimulationHost.Room> rooms,
+                              final List<Integer> rates,
+                              final double seconds)
+    {
+        long   ticks    = 0L;
+        long   overruns = 0L;
+        long   dropped  = 0L;
+        long   max      = 0L;
+        double expected = 0.0;
+        double worst    = 1.0;
+
+        for (int i = 0; i < rooms.size(); i++)
+        {
+            final SimulationHost.Room room = rooms.get(i);
+
+            ticks += room.getTicks();
+            overruns += room.getOverruns();
+            dropped += room.getDroppedTicks();
+            max = Math.max(max, room.getMaxTickNanos());
+            expected += rates.get(i) * seconds;
+            worst = Math.min(worst, room.getTicks() / (rates.get(i) * seconds));
+        }
+
+        System.out.println(String.format("%s: %d rooms, %d ticks (%.1f%% of expected, worst room %.1f%%), " +
+                                         "%d overruns, %d dropped, longest tick %.3f ms",
+                                         name,
+                                         rooms.size(),
+                                         ticks,
+                                         ticks * 100.0 / expected,
+                                         worst * 100.0,
+                                         overruns,
+                                         dropped,
+                                         max / 1000000.0));
+    }
+
+    public static void main(final String[] args) throws InterruptedException
+    {
+        final int    roomNumber = args.length > 0 ? Integer.parseInt(args[0]) : 5000;
+        final int    particles  = args.length > 1 ? Integer.parseInt(args[1]) : 20;
+        final double seconds    = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+
+        final Random r = new Random(42);
+
+        final SimulationHost host = new SimulationHost(Runtime.getRuntime().availableProcessors());
+
+        System.out.println("Creating rooms..");
+
+        final List<SimulationHost.Room> rooms = new ArrayList<>(roomNumber);
+        final List<Integer>             rates = new ArrayList<>(roomNumber);
+
+        for (int i = 0; i < roomNumber; i++)
+        {
+            final int rate = RATES[i % RATES.length];
+
+            rooms.add(host.add(createRoom(r, particles), rate));
+            rates.add(rate);
+        }
+
+        // a room far too expensive for its tick rate
+        final SimulationHost.Room heavy = host.add(createRoom(r, 200000), 60);
+
+        Thread.sleep((long) (seconds * 1000.0));
+
+        host.shutdown();
+
+        print("normal", rooms, rates, seconds);
+        System.out.println("heavy: " + heavy);
+    }
+}
@@ -0,0 +1,232 @@
+import collision.broadphase.ArrayGrid2D;
+import engine.Integrator;
+import engine.Particle;
+import engine.Simulator;
+import environment.World;
+import maps.SimpleMap;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.Random;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Compares the {@link Integrator}s of the {@link Simulator}: step throughput on
+ * a {@link SimpleMap}, and accuracy against the exact solution of three simple
+ * scenarios (ballistic flight, a spring, linear drag).
+ * <p>
+ * Usage: IntegratorBenchmark [particles] (default: 100000).
+ *
+ * @author Fabio Ticconi
+ */
+class IntegratorBenchmark
+{
+    private static final int    SIZE = 1000;
+    private static final double DT   = 1.0 / 60.0;
+
+    // how long each measure runs for
+    private static final long WARMUP_NANOS  = 2000000000L;
+    private static final long MEASURE_NANOS = 5000000000L;
+
+    // simulated time of the accuracy scenarios
+    private static final double DURATION = 10.0;
+
+    /**
+     * Applies a uniform gravity along z, a spring pulling
+     * towards the origin and a linear drag.
+     */
+    private static final class FieldWorld implements World
+    {
+        final double g;
+        final double k;
+        final double c;
+
+        FieldWorld(final double g, final double k, final double c)
+        {
+            this.g = g;
+            this.k = k;
+            this.c = c;
+        }
+
+        @Override
+        public void process(final Particle p, final double dt)
+        {
+            final Vect3D x = p.getCenter();
+            final Vect3D v = p.getVelocity();
+            final Vect3D f = p.getForce();
+
+            f.x += -k * x.x - c * v.x;
+            f.y += -k * x.y - c * v.y;
+            f.z += -k * x.z - c * v.z - g * p.getMass();
+        }
+
+        @Override
+        public ImmutableVect3D getGravity()
+        {
+            return new ImmutableVect3D(0.0, 0.0, -g);
+        }
+
+        @Override
+        public void setGravity(final ImmutableVect3D gravity)
+        {
+        }
+
+        @Override
+        public Vect3D getForces(final Particle p, final double dt)
+        {
+            return new Vect3D(ImmutableVect3D.zero);
+        }
+    }
+
+    private static void throughput(final Integrator integrator, final int particles)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new SimpleMap(-SIZE, SIZE, -SIZE, SIZE, -SIZE, SIZE));
+        simulator.setBroadPhase(new ArrayGrid2D((short) -SIZE, (short) SIZE, (short) -SIZE, (short) SIZE, (short) 10));
+        simulator.setIntegrator(integrator);
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < particles; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE));
+
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 50 - 25, 0.0, 0.0));
+            simulator.addParticle(p);
+        }
+
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS)
+            simulator.update(DT);
+
+        int steps = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            simulator.update(DT);
+            steps++;
+        } while ((elapsed = System.nanoTime() - start) < MEASURE_NANOS);
+
+        final double stepMs = elapsed / 1000000.0 / steps;
+
+        System.out.println(String.format("%-19s %d particles: %.3f ms/step, %.1f M particle-steps/s",
+                                         integrator,
+                                         particles,
+                                         stepMs,
+                                         particles / stepMs / 1000.0));
+    }
+
+    /**
+     * Simulates a single particle of unit mass, and returns the maximum
+     * distance from the exact solution.
+     *
+     * @param integrator
+     * @param world      the forces
+     * @param pos        initial position
+     * @param vel        initial velocity
+     * @param exact      exact position at time t
+     * @param dt
+     * @return maximum error over the duration
+     */
+    private static double error(final Integrator integrator,
+                                final World world,
+                                final Vect3D pos,
+                                final ImmutableVect3D vel,
+                                final Exact exact,
+                                final double dt)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(world);
+        simulator.setIntegrator(integrator);
+
+        final Particle p = new Particle(1.0, 0.1, pos, new Vect3D(vel));
+        simulator.addParticle(p);
+
+        final Vect3D expected = new Vect3D();
+        double       max      = 0.0;
+
+        final int steps = (int) Math.round(DURATION / dt);
+
+        for (int i = 1; i <= steps; i++)
+        {
+            simulator.update(dt);
+
+            exact.at(i * dt, expected);
+
+            max = Math.max(max, expected.sub(p.getCenter()).length());
+        }
+
+        return max;
+    }
+
+    private interface Exact
+    {
+        void at(final double t, final Vect3D out);
+    }
+
+    private static void accuracy(final Integrator integrator, final double dt)
+    {
+        // thrown upwards at 20 m/s
+        final double ballistic = error(integrator,
+                                       new FieldWorld(9.81, 0.0, 0.0),
+                                       new Vect3D(),
+                                       new ImmutableVect3D(0.0, 0.0, 20.0),
+                                       (t, out) -> out.set(0.0).z = 20.0 * t - 9.81 * t * t / 2.0,
+                                       dt);
+
+        // stiffness 4, so the angular frequency is 2
+        final double spring = error(integrator,
+                                    new FieldWorld(0.0, 4.0, 0.0),
+                                    new Vect3D(1.0, 0.0, 0.0),
+                                    ImmutableVect3D.zero,
+                                    (t, out) -> out.set(0.0).x = Math.cos(2.0 * t),
+                                    dt);
+
+        // drag coefficient 0.5, starting at 10 m/s
+        final double drag = error(integrator,
+                                  new FieldWorld(0.0, 0.0, 0.5),
+                                  new Vect3D(),
+                                  new ImmutableVect3D(10.0, 0.0, 0.0),
+                                  (t, out) -> out.set(0.0).x = 10.0 / 0.5 * (1.0 - Math.exp(-0.5 * t)),
+                                  dt);
+
+        System.out.println(String.format("%-19s dt %.4f: max error ballistic %.2e, spring %.2e, drag %.2e",
+                                         integrator,
+                                         dt,
+                                         ballistic,
+                                         spring,
+                                         drag));
+    }
+
+    public static void main(final String[] args)
+    {
+        final int particles = args.length == 0 ? 100000 : Integer.parseInt(args[0]);
+
+        for (final Integrator integrator : Integrator.values())
+        {
+            accuracy(integrator, DT);
+            accuracy(integrator, DT * 2.0);
+        }
+
+        for (final Integrator integrator : Integrator.values())
+            throughput(integrator, particles);
+    }
+}
@@ -0,0 +1,158 @@
+import engine.Particle;
+import engine.Simulator;
+import environment.Interaction;
+import utils.Vect3D;
+
+import java.util.Random;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Measures the Barnes-Hut mutual gravitation of the {@link Simulator} (see
+ * {@link Simulator#setInteraction(Interaction, double)}) on a cloud of bodies, for a
+ * few opening angles: time per step, and error of the accelerations against the exact
+ * sum over all bodies, on a sample of them.
+ * <p>
+ * Usage: NBodyBenchmark [bodies] [threads] (default: 100000 and all processors).
+ *
+ * @author Fabio Ticconi
+ */
+class NBodyBenchmark
+{
+    private static final double   RADIUS = 100.0;
+    private static final double   DT     = 1.0 / 60.0;
+    private static final double[] THETAS = {0.3, 0.5, 0.7, 1.0};
+
+    private static final Interaction GRAVITY = Interaction.gravitation(1.0, 0.5);
+
+    // bodies whose error is measured
+    private static final int SAMPLES = 200;
+    // steps measured
+    private static final int STEPS   = 10;
+
+    /**
+     * Fills the simulator with a cloud of bodies,
+     * denser towards the centre.
+     *
+     * @param simulator
+     * @param bodies
+     * @return the bodies
+     */
+    private static Particle[] createCloud(final Simulator simulator, final int bodies)
+    {
+        final Particle[] particles = new Particle[bodies];
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < bodies; i++)
+        {
+            final Vect3D dir = new Vect3D(r.nextGaussian(), r.nextGaussian(), r.nextGaussian());
+            final double d   = RADIUS * Math.pow(r.nextDouble(), 2.0) / dir.length();
+
+            particles[i] = new Particle(0.5 + r.nextDouble(), 0.1, new Vect3D(dir.x * d, dir.y * d, dir.z * d), new Vect3D());
+            simulator.addParticle(particles[i]);
+        }
+
+        return particles;
+    }
+
+    /**
+     * @param p       a body
+     * @param centres position of all bodies
+     * @param masses  mass of all bodies
+     * @return the exact acceleration of the body
+     */
+    private static Vect3D exact(final int p, final Vect3D[] centres, final double[] masses)
+    {
+        final Vect3D a = new Vect3D();
+
+        for (int j = 0; j < centres.length; j++)
+        {
+            if (j == p)
+                continue;
+
+            final double dx = centres[j].x - centres[p].x;
+            final double dy = centres[j].y - centres[p].y;
+            final double dz = centres[j].z - centres[p].z;
+            final double s  = masses[j] * GRAVITY.strength(dx * dx + dy * dy + dz * dz);
+
+            a.x += dx * s;
+            a.y += dy * s;
+            a.z += dz * s;
+        }
+
+        return a;
+    }
+
+    private static void run(final double theta, final int bodies, final int threads)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setInteraction(GRAVITY, theta);
+        simulator.setParallelism(threads);
+
+        final Particle[] particles = createCloud(simulator, bodies);
+        final Vect3D[]   centres   = new Vect3D[particles.length];
+        final double[]   masses    = new double[particles.length];
+
+        for (int i = 0; i < particles.length; i++)
+        {
+            centres[i] = new Vect3D(particles[i].getCenter());
+            masses[i] = particles[i].getMass();
+        }
+
+        // the forces are computed on the positions at the start of the step,
+        // so a body at rest ends the step with a velocity of exactly a * dt
+        simulator.update(DT);
+
+        double error = 0.0;
+
+        for (int s = 0; s < SAMPLES; s++)
+        {
+            final int    p = s * (particles.length / SAMPLES);
+            final Vect3D a = exact(p, centres, masses);
+            final Vect3D d = new Vect3D(particles[p].getVelocity());
+            d.div(DT).sub(a);
+
+            error += d.length() / a.length();
+        }
+
+        final long start = System.nanoTime();
+
+        for (int i = 0; i < STEPS; i++)
+            simulator.update(DT);
+
+        final long elapsed = System.nanoTime() - start;
+
+        System.out.println(String.format("theta %.1f, %d bodies, %d threads: %.3f ms/step, mean relative error %.2e",
+                                         theta,
+                                         bodies,
+                                         threads,
+                                         elapsed / 1000000.0 / STEPS,
+                                         error / SAMPLES));
+
+        simulator.setParallelism(1);
+    }
+
+    public static void main(final String[] args)
+    {
+        final int bodies  = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        final int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+
+        for (final double theta : THETAS)
+            run(theta, bodies, threads);
+    }
+}
@@ -0,0 +1,134 @@
+import collision.broadphase.ArrayGrid2D;
+import engine.Particle;
+import engine.Simulator;
+import maps.SimpleMap;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.Random;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Compares memory use and step throughput of the double and single
+ * precision storage of the {@link Simulator}: the latter should
+ * use less memory, at about the same step time.
+ * <p>
+ * Usage: PrecisionBenchmark [particles...] (default: 100000 1000000).
+ * A large heap is needed for a million particles (eg, -Xmx2g).
+ *
+ * @author Fabio Ticconi
+ */
+class PrecisionBenchmark
+{
+    private static final int    SIZE = 1000;
+    private static final double DT   = 1.0 / 60.0;
+
+    // how long each measure runs for
+    private static final long WARMUP_NANOS  = 2000000000L;
+    private static final long MEASURE_NANOS = 5000000000L;
+
+    private static Simulator createSimulator(final boolean single, final int particles)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new SimpleMap(-SIZE, SIZE, -SIZE, SIZE, -SIZE, SIZE));
+        simulator.setBroadPhase(new ArrayGrid2D((short) -SIZE, (short) SIZE, (short) -SIZE, (short) SIZE, (short) 10));
+        simulator.setSinglePrecision(single);
+
+        // same particles for both modes
+        final Random     r    = new Random(42);
+        final Particle[] wave = new Particle[particles];
+
+        for (int i = 0; i < particles; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE));
+
+            p.setRadius(r.nextDouble() / 2.0 + 0.1);
+            p.setMass(r.nextDouble() * 100.0 + 50.0);
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 50 - 25, 0.0, 0.0));
+            wave[i] = p;
+        }
+
+        simulator.addParticles(wave);
+
+        return simulator;
+    }
+
+    private static long usedMemory()
+    {
+        final Runtime rt = Runtime.getRuntime();
+
+        for (int i = 0; i < 3; i++)
+            System.gc();
+
+        return rt.totalMemory() - rt.freeMemory();
+    }
+
+    private static void run(final boolean single, final int particles)
+    {
+        final long before = usedMemory();
+
+        final Simulator simulator = createSimulator(single, particles);
+
+        final long memory = usedMemory() - before;
+
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS)
+            simulator.update(DT);
+
+        int steps = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            simulator.update(DT);
+            steps++;
+        } while ((elapsed = System.nanoTime() - start) < MEASURE_NANOS);
+
+        final double stepMs = elapsed / 1000000.0 / steps;
+
+        System.out.println(String.format("%s, %d particles: %.3f ms/step, %.1f M particle-steps/s, %.1f MB (%.1f bytes/particle)",
+                                         single ? "float " : "double",
+                                         particles,
+                                         stepMs,
+                                         particles / stepMs / 1000.0,
+                                         memory / 1048576.0,
+                                         (double) memory / particles));
+    }
+
+    public static void main(final String[] args)
+    {
+        final int[] sizes;
+
+        if (args.length == 0)
+            sizes = new int[]{100000, 1000000};
+        else
+        {
+            sizes = new int[args.length];
+            for (int i = 0; i < args.length; i++)
+                sizes[i] = Integer.parseInt(args[i]);
+        }
+
+        for (final int particles : sizes)
+        {
+            run(false, particles);
+            run(true, particles);
+        }
+    }
+}
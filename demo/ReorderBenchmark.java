@@ -0,0 +1,141 @@
+import collision.Static;
+import collision.broadphase.ArrayGrid2D;
+import engine.Particle;
+import engine.Simulator;
+import maps.SimpleMap;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.Random;
+
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+/**
+ * Compares the step time of a {@link Simulator} with and without the periodic
+ * spatial reordering of its particles. It also shows how often two consecutive
+ * particles fall in the same broadphase cell (and thus hit the same, already cached,
+ * cell and static objects).
+ * <p>
+ * Usage: ReorderBenchmark [particles] [reorder interval] (default: 200000 30).
+ *
+ * @author Fabio Ticconi
+ */
+class ReorderBenchmark
+{
+    private static final int    SIZE = 1000;
+    private static final short  CELL = 10;
+    private static final double DT   = 1.0 / 60.0;
+
+    private static final long WARMUP_NANOS  = 3000000000L;
+    private static final long MEASURE_NANOS = 10000000000L;
+
+    private static Simulator createSimulator(final int particles, final int interval)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new SimpleMap(-SIZE, SIZE, -SIZE, SIZE, -SIZE, SIZE));
+        simulator.setBroadPhase(new ArrayGrid2D((short) -SIZE, (short) SIZE, (short) -SIZE, (short) SIZE, CELL));
+        simulator.setReorderInterval(interval);
+
+        // same world and particles in both cases
+        final Random r = new Random(42);
+
+        for (int i = 0; i < 20000; i++)
+        {
+            final int x = r.nextInt(2 * SIZE - 20) - SIZE;
+            final int y = r.nextInt(2 * SIZE - 20) - SIZE;
+
+            simulator.addStatic(new Static(new Vect3D(x, y, -20.0), new Vect3D(x + 10, y + 10, 20.0), 0.4));
+        }
+
+        final Particle[] wave = new Particle[particles];
+
+        for (int i = 0; i < particles; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * SIZE * 2 - SIZE,
+                                                       r.nextDouble() * 40.0 - 20.0));
+
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 10 - 5, r.nextDouble() * 10 - 5, 0.0));
+            wave[i] = p;
+        }
+
+        simulator.addParticles(wave);
+
+        return simulator;
+    }
+
+    /**
+     * @param positions packed positions, in store order
+     * @param n         number of particles
+     * @return the fraction of particles in the same broadphase cell as the previous one
+     */
+    private static double sameCellRate(final double[] positions, final int n)
+    {
+        int same = 0;
+        int prev = -1;
+
+        for (int i = 0; i < n; i++)
+        {
+            final int col  = (int) Math.floor((positions[i * 3] + SIZE) / CELL);
+            final int row  = (int) Math.floor((positions[i * 3 + 1] + SIZE) / CELL);
+            final int cell = row * (2 * SIZE / CELL) + col;
+
+            if (cell == prev)
+                same++;
+
+            prev = cell;
+        }
+
+        return (double) same / n;
+    }
+
+    private static void run(final int particles, final int interval)
+    {
+        final Simulator simulator = createSimulator(particles, interval);
+
+        long start = System.nanoTime();
+        while (System.nanoTime() - start < WARMUP_NANOS)
+            simulator.update(DT);
+
+        int steps = 0;
+        start = System.nanoTime();
+        long elapsed;
+        do
+        {
+            simulator.update(DT);
+            steps++;
+        } while ((elapsed = System.nanoTime() - start) < MEASURE_NANOS);
+
+        final double[] positions = simulator.getInterpolatedPositions(null);
+
+        System.out.println(String.format("%s: %.3f ms/step, same broadphase cell as previous particle: %.1f%%",
+                                         interval > 0 ? "reorder every " + interval + " steps" : "no reorder",
+                                         elapsed / 1000000.0 / steps,
+                                         sameCellRate(positions, simulator.getParticlesNumber()) * 100.0));
+    }
+
+    public static void main(final String[] args)
+    {
+        final int particles = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        final int interval  = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        System.out.println(particles + " particles");
+
+        run(particles, 0);
+        run(particles, interval);
+    }
+}
@@ -42,42 +42,32 @@ class TextSimulation
 
         System.out.println(String.format("FPS: %d, frameDuration: %f, dt: %f", FPS, frameDuration, dt));
 
-        long previousTime = System.currentTimeMillis();
-        long currentTime;
+        simulator.setFixedTimestep(dt);
 
-        double lag = 0.0;
-        long   elapsed;
+        long previousTime = System.nanoTime();
+        long currentTime;
 
-        final long start        = System.nanoTime();
+        final long start        = previousTime;
         final long endCondition = start + maxDurationInMillis * 1000000L;
-        while (endCondition > System.nanoTime())
+        while (endCondition > (currentTime = System.nanoTime()))
         {
-            currentTime = System.currentTimeMillis();
-            elapsed = currentTime - previousTime;
-            previousTime = currentTime;
-
-            if (elapsed > 1000)
+            if (simulator.advance(currentTime - previousTime) == simulator.getMaxSubSteps())
                 System.out.println("falling behind");
 
-            lag += elapsed;
-
-            while (lag >= frameDuration)
-            {
-                simulator.update(dt);
-
-                lag -= frameDuration;
-            }
+            previousTime = currentTime;
         }
         final long end = System.nanoTime();
 
         System.out.println(String.format("Simulated %d ms in %f ms. Lag: %f ms\n",
                                          maxDurationInMillis,
                                          (end - start) / 1000000.0,
-                                         lag));
+                                         simulator.getAlpha() * frameDuration));
     }
 
     private static void addParticles(final Simulator simulator, final int particles)
     {
+        final Particle[] wave = new Particle[particles];
+
         final Vect3D center = new Vect3D();
         for (int i = 0; i < particles; i++)
         {
@@ -90,9 +80,11 @@ class TextSimulation
             p.setRadius(Math.random() / 2.0 + 0.1);
             p.setMass(Math.random() * 100.0 + 50.0);
             p.setVelocity(new ImmutableVect3D(Math.random() * 50 - 25, 0.0, 0.0));
-            simulator.addParticle(p);
+            wave[i] = p;
         }
 
+        simulator.addParticles(wave);
+
         System.out.println(String.format("%d particles added, total: %d\n", particles, simulator.getParticlesNumber()));
     }
 
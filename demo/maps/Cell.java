@@ -17,6 +17,7 @@
 package maps;
 
 import engine.Particle;
+import engine.ParticleBatch;
 import utils.Vect3D;
 
 /**
@@ -43,4 +44,46 @@ public interface Cell
      * @return newly instanced force vector
      */
     Vect3D getForces(Particle p, double dt);
+
+    /**
+     * Adds the forces of {@link #getForces(Particle, double)} to the
+     * given vector, without allocating a new one.
+     *
+     * @param p
+     * @param dt
+     * @param force vector accumulating the forces
+     */
+    default void addForces(final Particle p, final double dt, final Vect3D force)
+    {
+        force.add(getForces(p, dt));
+    }
+
+    /**
+     * Batch form of {@link #getBuoyancy(Particle)}.
+     *
+     * @param b the particles' state
+     * @param k entry of the particle
+     * @return the buoyancy correction of gravity
+     */
+    default double getBuoyancy(final ParticleBatch b, final int k)
+    {
+        return getBuoyancy(b.get(k));
+    }
+
+    /**
+     * Batch form of {@link #addForces(Particle, double, Vect3D)}:
+     * adds the forces to the force arrays of the batch.
+     *
+     * @param b  the particles' state
+     * @param k  entry of the particle
+     * @param dt
+     */
+    default void addForces(final ParticleBatch b, final int k, final double dt)
+    {
+        final Particle p = b.get(k);
+
+        addForces(p, dt, p.getForce());
+
+        b.set(k, p);
+    }
 }
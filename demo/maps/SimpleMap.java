@@ -3,6 +3,7 @@ package maps;
 import collision.Collider;
 import collision.Static;
 import engine.Particle;
+import engine.ParticleBatch;
 import environment.Forces;
 import environment.World;
 import maps.cells.FluidCell;
@@ -82,6 +83,25 @@ public class SimpleMap implements World
         return ground;
     }
 
+    /**
+     * Same as {@link #getCell(Vect3D)}, without a vector.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the cell containing the point
+     */
+    public Cell getCell(final double x, final double y, final double z)
+    {
+        if (Collider.test(x, y, z, air))
+            return air;
+
+        if (Collider.test(x, y, z, water))
+            return water;
+
+        return ground;
+    }
+
     /**
      * Returns a copy of the gravity vector.
      *
@@ -133,18 +153,69 @@ public class SimpleMap implements World
         // Note: normally this would only make sense for the "z" dimension,
         // but who are we to limit your creativity?
         final double buoyancy = cell.getBuoyancy(p);
-        final Vect3D gForce   = new Vect3D(gravity).mul(buoyancy * p.getMass());
+        final double gMass    = buoyancy * p.getMass();
 
         // many kind of environmental force
         // could be applied to the particle,
         // for example fluid drag, friction,
         // impact forces
-        force.add(cell.getForces(p, dt)).add(gForce);
+        cell.addForces(p, dt, force);
+        // (gravity is added component-wise, to avoid allocations)
+        force.x += gravity.x * gMass;
+        force.y += gravity.y * gMass;
+        force.z += gravity.z * gMass;
 
         if (cell instanceof SolidCell)
             Forces.processImpact(p, (Static) cell, dt);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see environment.World#process(engine.ParticleBatch, int, int, double)
+     */
+    @Override
+    public void process(final ParticleBatch b, final int from, final int to, final double dt)
+    {
+        // the same as process(Particle, double), one array at a time
+        final double gx = gravity.x;
+        final double gy = gravity.y;
+        final double gz = gravity.z;
+
+        final double minX = min.x;
+        final double minY = min.y;
+        final double minZ = min.z;
+        final double maxX = max.x;
+        final double maxY = max.y;
+        final double maxZ = max.z;
+
+        final double[] xs = b.x;
+        final double[] ys = b.y;
+        final double[] zs = b.z;
+
+        for (int k = from; k < to; k++)
+        {
+            final double x = Math.min(Math.max(xs[k], minX), maxX);
+            final double y = Math.min(Math.max(ys[k], minY), maxY);
+            final double z = Math.min(Math.max(zs[k], minZ), maxZ);
+
+            xs[k] = x;
+            ys[k] = y;
+            zs[k] = z;
+
+            final Cell   cell  = getCell(x, y, z);
+            final double gMass = cell.getBuoyancy(b, k) * b.mass[k];
+
+            cell.addForces(b, k, dt);
+            b.forceX[k] += gx * gMass;
+            b.forceY[k] += gy * gMass;
+            b.forceZ[k] += gz * gMass;
+
+            if (cell == ground)
+                Forces.processImpact(b, k, ground, dt);
+        }
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -17,6 +17,7 @@ package maps.cells;
 
 import collision.Static;
 import engine.Particle;
+import engine.ParticleBatch;
 import maps.Cell;
 import utils.ImmutableVect3D;
 import utils.Vect3D;
@@ -42,7 +43,7 @@ public class FluidCell extends Static implements Cell
 
         dragV = 0.25 * Math.PI * density;
 
-        friction = 0.0;
+        setFriction(0.0);
     }
 
     /**
@@ -68,6 +69,41 @@ public class FluidCell extends Static implements Cell
         return flow.add(drag).mul(dragV * p.getRadius() * p.getRadius());
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see maps.Cell#addForces(engine.Particle, double, utils.Vect3D)
+     */
+    @Override
+    public void addForces(final Particle p, final double dt, final Vect3D force)
+    {
+        // same as getForces, but component-wise to avoid allocations
+        final Vect3D v = p.getVelocity();
+        final double k = dragV * p.getRadius() * p.getRadius();
+
+        force.x += (Math.abs(flowSpeed.x) * flowSpeed.x + -Math.abs(v.x) * v.x) * k;
+        force.y += (Math.abs(flowSpeed.y) * flowSpeed.y + -Math.abs(v.y) * v.y) * k;
+        force.z += (Math.abs(flowSpeed.z) * flowSpeed.z + -Math.abs(v.z) * v.z) * k;
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see maps.Cell#addForces(engine.ParticleBatch, int, double)
+     */
+    @Override
+    public void addForces(final ParticleBatch b, final int k, final double dt)
+    {
+        final double vx = b.velX[k];
+        final double vy = b.velY[k];
+        final double vz = b.velZ[k];
+        final double c  = dragV * b.radius[k] * b.radius[k];
+
+        b.forceX[k] += (Math.abs(flowSpeed.x) * flowSpeed.x + -Math.abs(vx) * vx) * c;
+        b.forceY[k] += (Math.abs(flowSpeed.y) * flowSpeed.y + -Math.abs(vy) * vy) * c;
+        b.forceZ[k] += (Math.abs(flowSpeed.z) * flowSpeed.z + -Math.abs(vz) * vz) * c;
+    }
+
     /**
      * Reference: <a href="http://lorien.ncl.ac.uk/ming/particle/cpe124p2.html"></a>
      *
@@ -79,4 +115,15 @@ public class FluidCell extends Static implements Cell
         // return ((p.getDensity() - density) / p.getDensity());
         return 1.0 - (density / p.getDensity());
     }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see maps.Cell#getBuoyancy(engine.ParticleBatch, int)
+     */
+    @Override
+    public double getBuoyancy(final ParticleBatch b, final int k)
+    {
+        return 1.0 - (density / b.density[k]);
+    }
 }
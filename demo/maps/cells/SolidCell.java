@@ -17,6 +17,7 @@ package maps.cells;
 
 import collision.Static;
 import engine.Particle;
+import engine.ParticleBatch;
 import maps.Cell;
 import utils.ImmutableVect3D;
 import utils.Vect3D;
@@ -30,7 +31,7 @@ public class SolidCell extends Static implements Cell
     {
         super(new Vect3D(), new Vect3D());
 
-        friction = 0.4;
+        setFriction(0.4);
     }
 
     /*
@@ -47,6 +48,28 @@ public class SolidCell extends Static implements Cell
         return new Vect3D(ImmutableVect3D.zero);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see maps.Cell#addForces(engine.Particle, double, utils.Vect3D)
+     */
+    @Override
+    public void addForces(final Particle p, final double dt, final Vect3D force)
+    {
+        // no force
+    }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see maps.Cell#addForces(engine.ParticleBatch, int, double)
+     */
+    @Override
+    public void addForces(final ParticleBatch b, final int k, final double dt)
+    {
+        // no force
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -57,4 +80,15 @@ public class SolidCell extends Static implements Cell
     {
         return 1.0;
     }
+
+    /*
+     * (non-Javadoc)
+     *
+     * @see maps.Cell#getBuoyancy(engine.ParticleBatch, int)
+     */
+    @Override
+    public double getBuoyancy(final ParticleBatch b, final int k)
+    {
+        return 1.0;
+    }
 }
@@ -34,5 +34,31 @@ public interface BroadPhase
 
     List<Static> getPossibleCollisions(final Vect3D p);
 
+    /**
+     * Appends the possible collisions to the given list, instead
+     * of returning a new one. Implementations should override this
+     * to avoid any allocation, as it is called by the Simulator for
+     * every particle at every step.
+     *
+     * @param p   the point to check
+     * @param out list the possible collisions will be added to
+     */
+    default void getPossibleCollisions(final Vect3D p, final List<Static> out)
+    {
+        out.addAll(getPossibleCollisions(p));
+    }
+
     List<Static> getCollisions(final Vect3D p);
+
+    /**
+     * Returns the length of a cell, if the implementation
+     * partitions space in cells: a particle moving more than this
+     * in one step might skip the objects in the cells it crosses.
+     *
+     * @return the cell length, or infinity if there are no cells
+     */
+    default double getCellSize()
+    {
+        return Double.POSITIVE_INFINITY;
+    }
 }
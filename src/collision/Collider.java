@@ -69,6 +69,27 @@ public abstract class Collider
         return dist2 < (radSum * radSum);
     }
 
+    /**
+     * Same as {@link #test(Vect3D, Box)}, without a vector.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param b
+     * @return true if the point is within the box
+     */
+    public static boolean test(final double x, final double y, final double z, final Box b)
+    {
+        final Vect3D max = b.getMaxPoint();
+        final Vect3D min = b.getMinPoint();
+
+        if (max.x < x || min.x > x)
+            return false;
+        if (max.y < y || min.y > y)
+            return false;
+        return !(max.z < z) && !(min.z > z);
+    }
+
     public static boolean test(final Vect3D p, final Box b)
     {
         final Vect3D max = b.getMaxPoint();
@@ -187,29 +208,32 @@ public abstract class Collider
                               min,
                               max);
 
-        final Vect3D invDir = Vect3D.reciprocal(direction);
+        // kept as scalars, so that no vector is allocated
+        final double invDirX = 1.0 / direction.x;
+        final double invDirY = 1.0 / direction.y;
+        final double invDirZ = 1.0 / direction.z;
         if (Simulator.VERBOSE)
-            System.out.format("invDir: %s\n", invDir);
+            System.out.format("invDir: (%f, %f, %f)\n", invDirX, invDirY, invDirZ);
 
-        final boolean signDirX = invDir.x < 0;
-        final boolean signDirY = invDir.y < 0;
-        final boolean signDirZ = invDir.z < 0;
+        final boolean signDirX = invDirX < 0;
+        final boolean signDirY = invDirY < 0;
+        final boolean signDirZ = invDirZ < 0;
 
         Vect3D       bbox     = signDirX ? max : min;
         final double xmindist = bbox.x - origin.x;
-        double       tmin     = xmindist * invDir.x;
+        double       tmin     = xmindist * invDirX;
 
         normal = signDirX ? ImmutableVect3D.xaxis : ImmutableVect3D.xaxisinv;
 
         bbox = signDirX ? min : max;
-        double tmax = (bbox.x - origin.x) * invDir.x;
+        double tmax = (bbox.x - origin.x) * invDirX;
 
         bbox = signDirY ? max : min;
         final double ymindist = bbox.y - origin.y;
-        final double tymin    = ymindist * invDir.y;
+        final double tymin    = ymindist * invDirY;
 
         bbox = signDirY ? min : max;
-        final double tymax = (bbox.y - origin.y) * invDir.y;
+        final double tymax = (bbox.y - origin.y) * invDirY;
 
         if ((tmin > tymax) || (tymin > tmax))
             return;
@@ -230,10 +254,10 @@ public abstract class Collider
 
         bbox = signDirZ ? max : min;
         final double zmindist = bbox.z - origin.z;
-        final double tzmin    = zmindist * invDir.z;
+        final double tzmin    = zmindist * invDirZ;
 
         bbox = signDirZ ? min : max;
-        final double tzmax = (bbox.z - origin.z) * invDir.z;
+        final double tzmax = (bbox.z - origin.z) * invDirZ;
 
         if ((tmin > tzmax) || (tzmin > tmax))
             return;
@@ -252,7 +276,9 @@ public abstract class Collider
         // we don't need the normal here
         tmax = Math.min(tzmax, tmax);
 
-        isec.set(origin).add(Vect3D.mul(direction, tmin));
+        isec.x = origin.x + direction.x * tmin;
+        isec.y = origin.y + direction.y * tmin;
+        isec.z = origin.z + direction.z * tmin;
 
         if (Simulator.VERBOSE)
         {
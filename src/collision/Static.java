@@ -15,6 +15,7 @@
  */
 package collision;
 
+import environment.Materials;
 import shapes.Box;
 import utils.Vect3D;
 
@@ -23,7 +24,8 @@ import utils.Vect3D;
  */
 public class Static extends Box
 {
-    protected double friction;
+    // surface properties, see Materials
+    protected int material;
 
     /**
      * @param min
@@ -32,6 +34,8 @@ public class Static extends Box
     protected Static(final Vect3D min, final Vect3D max)
     {
         super(min, max);
+
+        material = Materials.register(0.0, 0.0);
     }
 
     /**
@@ -43,16 +47,36 @@ public class Static extends Box
     {
         super(min, max);
 
-        this.friction = friction;
+        material = Materials.register(friction, 0.0);
+    }
+
+    public int getMaterial()
+    {
+        return material;
+    }
+
+    /**
+     * @param material a material id obtained from {@link Materials#register(double, double)}
+     */
+    public void setMaterial(final int material)
+    {
+        this.material = material;
     }
 
     public double getFriction()
     {
-        return friction;
+        return Materials.getFriction(material);
     }
 
+    /**
+     * Switches to the material with the given friction
+     * and the current bounciness, registering it if needed
+     * (see {@link Materials}).
+     *
+     * @param friction
+     */
     public void setFriction(final double friction)
     {
-        this.friction = friction;
+        material = Materials.register(friction, Materials.getBounciness(material));
     }
 }
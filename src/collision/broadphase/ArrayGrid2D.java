@@ -201,7 +201,27 @@ public class ArrayGrid2D implements BroadPhase
         return getObjectsAround(getIndex(p));
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see collision.BroadPhase#getPossibleCollisions(utils.Vect3D, java.util.List)
+     */
+    @Override
+    public void getPossibleCollisions(final Vect3D p, final List<Static> out)
+    {
+        getObjectsAround(getIndex(p), out);
+    }
+
     private List<Static> getObjectsAround(final int index)
+    {
+        final ArrayList<Static> objects = new ArrayList<>();
+
+        getObjectsAround(index, objects);
+
+        return objects;
+    }
+
+    private void getObjectsAround(final int index, final List<Static> objects)
     {
         final int x = index / rows;
         final int y = index % rows;
@@ -210,7 +230,7 @@ public class ArrayGrid2D implements BroadPhase
         int tempy;
         int temp;
 
-        final ArrayList<Static> objects = new ArrayList<>();
+        ArrayList<Static> cell;
 
         for (int i = -1; i <= 1; i++)
         {
@@ -232,12 +252,25 @@ public class ArrayGrid2D implements BroadPhase
                 if (temp < 0 || temp >= cells.length)
                     continue;
 
-                if (cells[temp] != null)
-                    objects.addAll(cells[temp]);
+                cell = cells[temp];
+
+                // indexed loop, so that no iterator is created
+                if (cell != null)
+                    for (int j = 0; j < cell.size(); j++)
+                        objects.add(cell.get(j));
             }
         }
+    }
 
-        return objects;
+    /*
+     * (non-Javadoc)
+     *
+     * @see collision.BroadPhase#getCellSize()
+     */
+    @Override
+    public double getCellSize()
+    {
+        return cellSize;
     }
 
     /**
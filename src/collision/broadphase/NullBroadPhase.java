@@ -64,6 +64,17 @@ public class NullBroadPhase implements BroadPhase
         return new ArrayList<>(0);
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see collision.BroadPhase#getPossibleCollisions(utils.Vect3D, java.util.List)
+     */
+    @Override
+    public void getPossibleCollisions(final Vect3D p, final List<Static> out)
+    {
+        // does nothing
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -0,0 +1,197 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import utils.Vect3D;
+
+/**
+ * A region of space where particles are simulated at full rate, usually
+ * following a player (see {@link Simulator#addActivationRegion(ActivationRegion)}).
+ * It can be an axis-aligned box or a sphere, and can be moved at any time
+ * between steps.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Relative to all the regions of a simulator, each particle is in one of three tiers:
+ * {@link #ACTIVE} (inside a region), {@link #BAND} (outside, but within the band width
+ * of a region) or {@link #FROZEN} (everywhere else).
+ *
+ * @author Fabio Ticconi
+ */
+public class ActivationRegion
+{
+    public static final byte ACTIVE = 0;
+    public static final byte BAND   = 1;
+    public static final byte FROZEN = 2;
+
+    private final boolean sphere;
+    private       double  cx;
+    private       double  cy;
+    private       double  cz;
+    // half size of the box, or radius of the sphere (in ex)
+    private       double  ex;
+    private       double  ey;
+    private       double  ez;
+
+    // bumped at every change, so that the simulator knows it must classify the particles again
+    private int version;
+
+    private ActivationRegion(final boolean sphere, final Vect3D center, final double ex, final double ey, final double ez)
+    {
+        this.sphere = sphere;
+
+        cx = center.x;
+        cy = center.y;
+        cz = center.z;
+        this.ex = ex;
+        this.ey = ey;
+        this.ez = ez;
+
+        version = 0;
+    }
+
+    /**
+     * @param center center of the box
+     * @param extent half size of the box on each axis
+     * @return a new box region
+     */
+    public static ActivationRegion box(final Vect3D center, final Vect3D extent)
+    {
+        return new ActivationRegion(false, center, extent.x, extent.y, extent.z);
+    }
+
+    /**
+     * @param center center of the sphere
+     * @param radius
+     * @return a new sphere region
+     */
+    public static ActivationRegion sphere(final Vect3D center, final double radius)
+    {
+        return new ActivationRegion(true, center, radius, radius, radius);
+    }
+
+    public boolean isSphere()
+    {
+        return sphere;
+    }
+
+    public Vect3D getCenter(final Vect3D out)
+    {
+        out.x = cx;
+        out.y = cy;
+        out.z = cz;
+
+        return out;
+    }
+
+    public void setCenter(final Vect3D center)
+    {
+        cx = center.x;
+        cy = center.y;
+        cz = center.z;
+
+        version++;
+    }
+
+    /**
+     * @param out will contain the half size of the box (or the radius
+     *            of the sphere on all axes)
+     * @return out
+     */
+    public Vect3D getExtent(final Vect3D out)
+    {
+        out.x = ex;
+        out.y = ey;
+        out.z = ez;
+
+        return out;
+    }
+
+    /**
+     * Changes the half size of a box region.
+     *
+     * @param extent
+     */
+    public void setExtent(final Vect3D extent)
+    {
+        ex = extent.x;
+        ey = extent.y;
+        ez = extent.z;
+
+        version++;
+    }
+
+    /**
+     * Changes the radius of a sphere region.
+     *
+     * @param radius
+     */
+    public void setRadius(final double radius)
+    {
+        ex = ey = ez = radius;
+
+        version++;
+    }
+
+    int getVersion()
+    {
+        return version;
+    }
+
+    /**
+     * Classifies a point relative to this region only.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @param band width of the band around the region
+     * @return {@link #ACTIVE}, {@link #BAND} or {@link #FROZEN}
+     */
+    byte tier(final double x, final double y, final double z, final double band)
+    {
+        final double dist2;
+
+        if (sphere)
+        {
+            final double dx = x - cx;
+            final double dy = y - cy;
+            final double dz = z - cz;
+
+            dist2 = dx * dx + dy * dy + dz * dz;
+
+            if (dist2 <= ex * ex)
+                return ACTIVE;
+
+            final double outer = ex + band;
+
+            return dist2 <= outer * outer ? BAND : FROZEN;
+        }
+
+        // distance from the box on each axis, zero if within it
+        final double dx = Math.max(Math.abs(x - cx) - ex, 0.0);
+        final double dy = Math.max(Math.abs(y - cy) - ey, 0.0);
+        final double dz = Math.max(Math.abs(z - cz) - ez, 0.0);
+
+        dist2 = dx * dx + dy * dy + dz * dz;
+
+        if (dist2 == 0.0)
+            return ACTIVE;
+
+        return dist2 <= band * band ? BAND : FROZEN;
+    }
+}
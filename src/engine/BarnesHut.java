@@ -0,0 +1,763 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import environment.Interaction;
+import utils.Coords;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Barnes-Hut approximation of an {@link Interaction} between all particles of a {@link ParticleStore}:
+ * O(N log N) instead of O(N^2) (see {@link Simulator#setInteraction(Interaction, double)}).
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * At each step, an octree is built over the particles' positions, and each node gets the total mass, the
+ * centre of mass and the bounding box of the particles in it. The force on a particle is then summed going
+ * down the tree: a node far enough, that is seen under an angle smaller than the opening angle theta (the
+ * largest side of its box divided by the distance of its centre of mass), acts as a single particle;
+ * otherwise its children are visited, down to the leaves, where the particles are summed one by one.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The tree is a linear octree: the particles are sorted along a Morton (Z-order) curve through their
+ * bounding cube, with 21 bits per axis, so that each node is a contiguous range of them, and a node's
+ * cell is given by the common prefix of the keys of its first and last particle. Nodes with a single
+ * child are skipped, so there are at most twice as many nodes as particles. The sort, the subtrees and
+ * the sums of the particles all run in parallel; sums always follow the order of the tree, so the
+ * results don't depend on the number of threads.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The force per unit mass is computed once per step, at the positions at the start of the step,
+ * and added to the force of each evaluation (see {@link Integrator}).
+ *
+ * @author Fabio Ticconi
+ */
+final class BarnesHut
+{
+    private static final int KEYS   = 0;
+    private static final int GATHER = 1;
+    private static final int FORCES = 2;
+
+    // resolution of the curve, per axis
+    private static final int BITS  = 21;
+    // maximum number of particles in a leaf, unless they share the smallest cell
+    private static final int LEAF  = 8;
+    // pending nodes during a traversal: at most 7 siblings per level, plus a node
+    private static final int STACK = 8 * (BITS + 1);
+
+    private final Interaction law;
+    private final double      theta;
+
+    private ParticleStore ps;
+    private int           n;
+    private int           chunkSize;
+    private boolean       parallel;
+
+    // bounding cube, and cells per unit of length
+    private double minX;
+    private double minY;
+    private double minZ;
+    private double scale;
+
+    // Morton key and slot of each particle, sorted by key (and slot)
+    private long[] keys;
+    private int[]  slots;
+    private long[] scratchKeys;
+    private int[]  scratchSlots;
+
+    // position and mass of each sorted particle
+    private double[] bx;
+    private double[] by;
+    private double[] bz;
+    private double[] bm;
+
+    // range of sorted particles, level of the cell, first child (-1 for a leaf)
+    // and number of children, total mass, centre of mass, bounding box of the
+    // particles and its squared size (the largest side) of each node
+    private int[]    lo;
+    private int[]    hi;
+    private int[]    level;
+    private int[]    child;
+    private int[]    count;
+    private double[] mass;
+    private double[] cx;
+    private double[] cy;
+    private double[] cz;
+    private double[] x0;
+    private double[] y0;
+    private double[] z0;
+    private double[] x1;
+    private double[] y1;
+    private double[] z1;
+    private double[] size2;
+
+    private final AtomicInteger nodes;
+
+    // pending nodes of a serial traversal
+    private final int[] stack;
+
+    // force per unit mass of each slot
+    double[] fx;
+    double[] fy;
+    double[] fz;
+
+    BarnesHut(final Interaction law, final double theta)
+    {
+        this.law = law;
+        this.theta = theta;
+
+        keys = scratchKeys = new long[0];
+        slots = scratchSlots = new int[0];
+        bx = by = bz = bm = fx = fy = fz = new double[0];
+        lo = hi = level = child = count = new int[0];
+        mass = cx = cy = cz = x0 = y0 = z0 = x1 = y1 = z1 = size2 = new double[0];
+
+        nodes = new AtomicInteger();
+        stack = new int[STACK];
+    }
+
+    Interaction getInteraction()
+    {
+        return law;
+    }
+
+    double getTheta()
+    {
+        return theta;
+    }
+
+    /**
+     * Builds the tree with the current positions, and computes
+     * the force per unit mass on each particle.
+     *
+     * @param ps        the store
+     * @param pool      used for parallel passes, or null to run them on the calling thread
+     * @param chunkSize maximum number of particles processed by a single task
+     */
+    void compute(final ParticleStore ps, final ForkJoinPool pool, final int chunkSize)
+    {
+        this.ps = ps;
+        n = ps.size;
+        this.chunkSize = chunkSize;
+        parallel = pool != null && n > chunkSize;
+
+        if (n == 0)
+            return;
+
+        ensureCapacity();
+        bounds();
+
+        if (parallel)
+        {
+            pool.invoke(new Pass(KEYS, 0, n));
+            pool.invoke(new Sort(0, n));
+            pool.invoke(new Pass(GATHER, 0, n));
+
+            nodes.set(1);
+            pool.invoke(new Build(0, 0, n));
+
+            pool.invoke(new Pass(FORCES, 0, n));
+        }
+        else
+        {
+            run(KEYS, 0, n);
+            sort(0, n);
+            run(GATHER, 0, n);
+
+            nodes.set(1);
+            build(0, 0, n);
+
+            run(FORCES, 0, n);
+        }
+
+        this.ps = null;
+    }
+
+    /**
+     * Adds the forces to the particles of a batch.
+     *
+     * @param b the batch
+     */
+    void apply(final ParticleBatch b)
+    {
+        final int[] slots = b.slots;
+
+        for (int k = 0; k < b.size; k++)
+        {
+            final int    i = slots[k];
+            final double m = b.mass[k];
+
+            b.forceX[k] += fx[i] * m;
+            b.forceY[k] += fy[i] * m;
+            b.forceZ[k] += fz[i] * m;
+        }
+    }
+
+    private void ensureCapacity()
+    {
+        if (keys.length >= n)
+            return;
+
+        final int capacity = Math.max(n, keys.length * 2);
+
+        keys = new long[capacity];
+        slots = new int[capacity];
+        scratchKeys = new long[capacity];
+        scratchSlots = new int[capacity];
+        bx = new double[capacity];
+        by = new double[capacity];
+        bz = new double[capacity];
+        bm = new double[capacity];
+        fx = new double[capacity];
+        fy = new double[capacity];
+        fz = new double[capacity];
+
+        // every internal node has at least two children
+        lo = new int[2 * capacity];
+        hi = new int[2 * capacity];
+        level = new int[2 * capacity];
+        child = new int[2 * capacity];
+        count = new int[2 * capacity];
+        mass = new double[2 * capacity];
+        cx = new double[2 * capacity];
+        cy = new double[2 * capacity];
+        cz = new double[2 * capacity];
+        x0 = new double[2 * capacity];
+        y0 = new double[2 * capacity];
+        z0 = new double[2 * capacity];
+        x1 = new double[2 * capacity];
+        y1 = new double[2 * capacity];
+        z1 = new double[2 * capacity];
+        size2 = new double[2 * capacity];
+    }
+
+    /**
+     * Computes the bounding cube of the particles.
+     */
+    private void bounds()
+    {
+        final Vect3DColumn pos = ps.pos;
+
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+
+        minX = minY = minZ = Double.POSITIVE_INFINITY;
+
+        for (int i = 0; i < n; i++)
+        {
+            final double x = pos.x(i);
+            final double y = pos.y(i);
+            final double z = pos.z(i);
+
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            if (z < minZ) minZ = z;
+            if (z > maxZ) maxZ = z;
+        }
+
+        final double size = Math.max(maxX - minX, Math.max(maxY - minY, maxZ - minZ));
+
+        // the last cell is still inside the cube
+        scale = size > 0.0 ? ((1 << BITS) - 1) / size : 0.0;
+    }
+
+
+    /**
+     * Runs a pass over a range of particles.
+     *
+     * @param pass
+     * @param from first slot or sorted particle (inclusive)
+     * @param to   last slot or sorted particle (exclusive)
+     */
+    private void run(final int pass, final int from, final int to)
+    {
+        switch (pass)
+        {
+            case KEYS:
+                keys(from, to);
+                break;
+            case GATHER:
+                gather(from, to);
+                break;
+            default:
+                forces(from, to, parallel ? new int[STACK] : stack);
+        }
+    }
+
+    private void keys(final int from, final int to)
+    {
+        final Vect3DColumn pos = ps.pos;
+
+        for (int i = from; i < to; i++)
+        {
+            keys[i] = Coords.makeMortonKey((int) ((pos.x(i) - minX) * scale),
+                                           (int) ((pos.y(i) - minY) * scale),
+                                           (int) ((pos.z(i) - minZ) * scale));
+            slots[i] = i;
+        }
+    }
+
+    private void gather(final int from, final int to)
+    {
+        final Vect3DColumn pos = ps.pos;
+
+        for (int k = from; k < to; k++)
+        {
+            final int i = slots[k];
+
+            bx[k] = pos.x(i);
+            by[k] = pos.y(i);
+            bz[k] = pos.z(i);
+            bm[k] = ps.mass[i];
+        }
+    }
+
+    /**
+     * Stable merge sort of a range of particles by key.
+     *
+     * @param from first particle (inclusive)
+     * @param to   last particle (exclusive)
+     */
+    private void sort(final int from, final int to)
+    {
+        if (to - from <= 32)
+        {
+            // insertion sort
+            for (int k = from + 1; k < to; k++)
+            {
+                final long key  = keys[k];
+                final int  slot = slots[k];
+
+                int j = k - 1;
+
+                while (j >= from && keys[j] > key)
+                {
+                    keys[j + 1] = keys[j];
+                    slots[j + 1] = slots[j];
+                    j--;
+                }
+
+                keys[j + 1] = key;
+                slots[j + 1] = slot;
+            }
+
+            return;
+        }
+
+        final int mid = (from + to) >>> 1;
+
+        sort(from, mid);
+        sort(mid, to);
+
+        merge(from, mid, to);
+    }
+
+    /**
+     * Merges two consecutive sorted ranges of particles.
+     *
+     * @param from first particle of the first range (inclusive)
+     * @param mid  first particle of the second range
+     * @param to   last particle of the second range (exclusive)
+     */
+    private void merge(final int from, final int mid, final int to)
+    {
+        // already in order
+        if (keys[mid - 1] <= keys[mid])
+            return;
+
+        int a = from;
+        int b = mid;
+
+        for (int k = from; k < to; k++)
+        {
+            if (b >= to || a < mid && keys[a] <= keys[b])
+            {
+                scratchKeys[k] = keys[a];
+                scratchSlots[k] = slots[a++];
+            }
+            else
+            {
+                scratchKeys[k] = keys[b];
+                scratchSlots[k] = slots[b++];
+            }
+        }
+
+        System.arraycopy(scratchKeys, from, keys, from, to - from);
+        System.arraycopy(scratchSlots, from, slots, from, to - from);
+    }
+
+    /**
+     * Returns the end of the run of particles in the same child as
+     * the first one, that is with the same digit of their key.
+     *
+     * @param from  first particle of the run
+     * @param to    end of the node's range
+     * @param shift position of the digit
+     * @return the first particle in the next child, or to
+     */
+    private int end(final int from, final int to, final int shift)
+    {
+        final long digit = keys[from] >>> shift & 7;
+
+        int a = from + 1;
+        int b = to;
+
+        while (a < b)
+        {
+            final int mid = (a + b) >>> 1;
+
+            if ((keys[mid] >>> shift & 7) == digit)
+                a = mid + 1;
+            else
+                b = mid;
+        }
+
+        return a;
+    }
+
+    /**
+     * Builds a node and its subtree.
+     *
+     * @param node index of the node
+     * @param from first sorted particle (inclusive)
+     * @param to   last sorted particle (exclusive)
+     */
+    private void build(final int node, final int from, final int to)
+    {
+        final long first = keys[from];
+        final long last  = keys[to - 1];
+
+        // the level is the length of the common prefix, in digits
+        final int l = first == last ? BITS : (Long.numberOfLeadingZeros(first ^ last) - (64 - 3 * BITS)) / 3;
+
+        lo[node] = from;
+        hi[node] = to;
+        level[node] = l;
+
+        if (to - from <= LEAF || first == last)
+        {
+            double m = 0.0, x = 0.0, y = 0.0, z = 0.0;
+
+            x0[node] = x1[node] = bx[from];
+            y0[node] = y1[node] = by[from];
+            z0[node] = z1[node] = bz[from];
+
+            for (int k = from; k < to; k++)
+            {
+                m += bm[k];
+                x += bm[k] * bx[k];
+                y += bm[k] * by[k];
+                z += bm[k] * bz[k];
+
+                x0[node] = Math.min(x0[node], bx[k]);
+                y0[node] = Math.min(y0[node], by[k]);
+                z0[node] = Math.min(z0[node], bz[k]);
+                x1[node] = Math.max(x1[node], bx[k]);
+                y1[node] = Math.max(y1[node], by[k]);
+                z1[node] = Math.max(z1[node], bz[k]);
+            }
+
+            child[node] = -1;
+            count[node] = 0;
+
+            centre(node, m, x, y, z, from);
+
+            return;
+        }
+
+        // the children split the range on the first different digit
+        final int shift = 3 * (BITS - 1 - l);
+
+        int children = 0;
+        for (int k = from; k < to; k = end(k, to, shift))
+            children++;
+
+        final int c = nodes.getAndAdd(children);
+
+        child[node] = c;
+        count[node] = children;
+
+        if (parallel && to - from > chunkSize)
+        {
+            final Build[] tasks = new Build[children];
+
+            for (int j = 0, k = from; j < children; j++)
+            {
+                final int e = end(k, to, shift);
+
+                tasks[j] = new Build(c + j, k, e);
+                k = e;
+            }
+
+            RecursiveAction.invokeAll(tasks);
+        }
+        else
+        {
+            for (int j = 0, k = from; j < children; j++)
+            {
+                final int e = end(k, to, shift);
+
+                build(c + j, k, e);
+                k = e;
+            }
+        }
+
+        double m = 0.0, x = 0.0, y = 0.0, z = 0.0;
+
+        x0[node] = x0[c];
+        y0[node] = y0[c];
+        z0[node] = z0[c];
+        x1[node] = x1[c];
+        y1[node] = y1[c];
+        z1[node] = z1[c];
+
+        for (int j = c; j < c + children; j++)
+        {
+            m += mass[j];
+            x += mass[j] * cx[j];
+            y += mass[j] * cy[j];
+            z += mass[j] * cz[j];
+
+            x0[node] = Math.min(x0[node], x0[j]);
+            y0[node] = Math.min(y0[node], y0[j]);
+            z0[node] = Math.min(z0[node], z0[j]);
+            x1[node] = Math.max(x1[node], x1[j]);
+            y1[node] = Math.max(y1[node], y1[j]);
+            z1[node] = Math.max(z1[node], z1[j]);
+        }
+
+        centre(node, m, x, y, z, from);
+    }
+
+    /**
+     * Sets the mass, centre of mass and size of a node
+     * (its bounding box must be set already).
+     *
+     * @param node
+     * @param m    total mass
+     * @param x    mass-weighted sum of x
+     * @param y    mass-weighted sum of y
+     * @param z    mass-weighted sum of z
+     * @param k    a particle of the node, the centre if there is no mass
+     */
+    private void centre(final int node, final double m, final double x, final double y, final double z, final int k)
+    {
+        final double size = Math.max(x1[node] - x0[node], Math.max(y1[node] - y0[node], z1[node] - z0[node]));
+
+        size2[node] = size * size;
+        mass[node] = m;
+
+        if (m > 0.0)
+        {
+            cx[node] = x / m;
+            cy[node] = y / m;
+            cz[node] = z / m;
+        }
+        else
+        {
+            cx[node] = bx[k];
+            cy[node] = by[k];
+            cz[node] = bz[k];
+        }
+    }
+
+    /**
+     * Sums the forces on the given range of sorted particles.
+     *
+     * @param from  first sorted particle (inclusive)
+     * @param to    last sorted particle (exclusive)
+     * @param stack pending nodes
+     */
+    private void forces(final int from, final int to, final int[] stack)
+    {
+        final double theta2 = theta * theta;
+
+        for (int k = from; k < to; k++)
+        {
+            final double x    = bx[k];
+            final double y    = by[k];
+            final double z    = bz[k];
+            final long   code = keys[k];
+
+            double ax = 0.0, ay = 0.0, az = 0.0;
+
+            int top = 0;
+            stack[top++] = 0;
+
+            while (top > 0)
+            {
+                final int node = stack[--top];
+
+                final int    l  = level[node];
+                final double dx = cx[node] - x;
+                final double dy = cy[node] - y;
+                final double dz = cz[node] - z;
+                final double r2 = dx * dx + dy * dy + dz * dz;
+
+                // a node containing the particle is always opened
+                final boolean inside = (code ^ keys[lo[node]]) >>> (3 * (BITS - l)) == 0;
+
+                if (!inside && size2[node] < theta2 * r2)
+                {
+                    final double s = mass[node] * law.strength(r2);
+
+                    ax += dx * s;
+                    ay += dy * s;
+                    az += dz * s;
+
+                    continue;
+                }
+
+                if (child[node] < 0)
+                {
+                    for (int j = lo[node]; j < hi[node]; j++)
+                    {
+                        final double ex = bx[j] - x;
+                        final double ey = by[j] - y;
+                        final double ez = bz[j] - z;
+                        final double e2 = ex * ex + ey * ey + ez * ez;
+
+                        // coincident particles have no direction to pull along
+                        if (j == k || e2 == 0.0)
+                            continue;
+
+                        final double s = bm[j] * law.strength(e2);
+
+                        ax += ex * s;
+                        ay += ey * s;
+                        az += ez * s;
+                    }
+
+                    continue;
+                }
+
+                // in reverse, so that the children are visited in order
+                for (int c = child[node] + count[node] - 1; c >= child[node]; c--)
+                    stack[top++] = c;
+            }
+
+            final int i = slots[k];
+
+            fx[i] = ax;
+            fy[i] = ay;
+            fz[i] = az;
+        }
+    }
+
+    /**
+     * Recursively halves a range until it fits
+     * in a chunk, then runs a pass on it.
+     */
+    private final class Pass extends RecursiveAction
+    {
+        private static final long serialVersionUID = 3340398228766449724L;
+
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        Pass(final int pass, final int from, final int to)
+        {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize)
+            {
+                run(pass, from, to);
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+
+            invokeAll(new Pass(pass, from, mid), new Pass(pass, mid, to));
+        }
+    }
+
+    /**
+     * Sorts a range of particles in parallel, merging
+     * the two halves once sorted (see {@link #sort(int, int)}).
+     */
+    private final class Sort extends RecursiveAction
+    {
+        private static final long serialVersionUID = 880967123533530024L;
+
+        private final int from;
+        private final int to;
+
+        Sort(final int from, final int to)
+        {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize)
+            {
+                sort(from, to);
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+
+            invokeAll(new Sort(from, mid), new Sort(mid, to));
+
+            merge(from, mid, to);
+        }
+    }
+
+    /**
+     * Builds a subtree, forking its children's subtrees
+     * while they are larger than a chunk.
+     */
+    private final class Build extends RecursiveAction
+    {
+        private static final long serialVersionUID = -1032163451219952127L;
+
+        private final int node;
+        private final int from;
+        private final int to;
+
+        Build(final int node, final int from, final int to)
+        {
+            this.node = node;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            build(node, from, to);
+        }
+    }
+}
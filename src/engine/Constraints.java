@@ -0,0 +1,674 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import utils.Vect3D;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Position-based constraints between the particles of a {@link Simulator} (see
+ * {@link Simulator#getConstraints()}), to build ropes, chains and cloth: distances between
+ * two particles, pins to a point in space, and bending over three particles.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * After the particles are integrated, the constraints are solved with extended position-based
+ * dynamics (XPBD, Macklin et al., 2016): each constraint in turn moves its particles, weighted
+ * by their inverse mass, to satisfy itself, and the solve is repeated for a few iterations. The
+ * compliance of a constraint is the inverse of its stiffness (0 for a rigid one), and doesn't
+ * depend on the timestep or on the iterations. At the end, the velocity of each particle gets
+ * the correction of its position over the timestep.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The constraints are split by a greedy graph colouring, so that no two constraints of the same
+ * colour share a particle: each colour is then solved in parallel, without locks, and the results
+ * don't depend on the number of threads. A chain needs two colours, a cloth about eight. The
+ * colours are computed again only when constraints are added or particles are added, removed or
+ * reordered, and the constraints of a removed particle are skipped from then on.
+ *
+ * @author Fabio Ticconi
+ */
+public final class Constraints
+{
+    private static final byte DISTANCE = 0;
+    private static final byte PIN      = 1;
+    private static final byte BENDING  = 2;
+
+    private static final int SAVE   = 0;
+    private static final int SOLVE  = 1;
+    private static final int FINISH = 2;
+
+    // a particle can take part in up to this many colours: constraints
+    // left without one are solved one after the other, after the others
+    private static final int COLOURS = 64;
+
+    private int iterations;
+
+    // each constraint: its type, the handles of its particles, its rest
+    // length (or the pinned point) and compliance
+    private byte[]   type;
+    private long[]   ha;
+    private long[]   hb;
+    private long[]   hc;
+    private double[] rest;
+    private double[] px;
+    private double[] py;
+    private double[] pz;
+    private double[] compliance;
+    private int      size;
+
+    // the slots of the particles at the last colouring (-1 if removed),
+    // and the multiplier of each constraint during a step
+    private int[]    sa;
+    private int[]    sb;
+    private int[]    sc;
+    private double[] lambda;
+
+    // active constraints, by colour: order[start[c]] to order[start[c + 1] - 1]
+    private int[] order;
+    private int[] start;
+    private int   colours;
+
+    // slots taking part in some constraint, and their position before the solve
+    private int[]    touched;
+    private int      touchedSize;
+    private double[] ox;
+    private double[] oy;
+    private double[] oz;
+
+    // active rigid pins, and the inverse mass of each slot during the solve
+    // (0 for pinned particles, so that other constraints can't drag them)
+    private int[]    rigid;
+    private int      rigidSize;
+    private double[] weight;
+
+    // colours used by each slot, during the colouring
+    private long[] used;
+
+    // state of the store at the last colouring
+    private boolean dirty;
+    private int     layout;
+
+    // state of the current solve
+    private ParticleStore ps;
+    private int           chunkSize;
+    private double        dt;
+    private double        invDt2;
+    private double        wakeSpeed2;
+
+    Constraints()
+    {
+        iterations = 10;
+
+        type = new byte[0];
+        ha = hb = hc = new long[0];
+        rest = px = py = pz = compliance = lambda = new double[0];
+        sa = sb = sc = order = touched = rigid = new int[0];
+        start = new int[1];
+        ox = oy = oz = weight = new double[0];
+        used = new long[0];
+    }
+
+    /**
+     * More iterations make stiff constraints converge better, at a linear cost.
+     *
+     * @param iterations number of times the constraints are solved at each step (at least 1)
+     */
+    public void setIterations(final int iterations)
+    {
+        this.iterations = Math.max(1, iterations);
+    }
+
+    public int getIterations()
+    {
+        return iterations;
+    }
+
+    /**
+     * @return the number of constraints
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Keeps two particles at their current distance.
+     *
+     * @param a          a particle of the simulator
+     * @param b          another particle of the simulator
+     * @param compliance inverse of the stiffness, 0 for a rigid link
+     * @return the index of the constraint, or -1 if a particle is not in a simulator
+     */
+    public int addDistance(final Particle a, final Particle b, final double compliance)
+    {
+        return add(DISTANCE, a, b, null, Vect3D.distance(a.getCenter(), b.getCenter()), null, compliance);
+    }
+
+    /**
+     * Keeps a particle at its current position. A rigid pin puts the particle back at the
+     * start of the solve, and the other constraints then treat it as having infinite mass.
+     *
+     * @param a          a particle of the simulator
+     * @param compliance inverse of the stiffness, 0 to nail it in place
+     * @return the index of the constraint, or -1 if the particle is not in a simulator
+     */
+    public int addPin(final Particle a, final double compliance)
+    {
+        return add(PIN, a, null, null, 0.0, a.getCenter(), compliance);
+    }
+
+    /**
+     * Keeps the middle of three particles at its current distance from their centre, so that
+     * the angle they form resists bending (Kelager et al., 2010). Along a rope or a cloth, the
+     * middle particle is a neighbour of both the others.
+     *
+     * @param a          a particle of the simulator
+     * @param b          the middle particle
+     * @param c          the third particle
+     * @param compliance inverse of the stiffness, 0 for a rigid angle
+     * @return the index of the constraint, or -1 if a particle is not in a simulator
+     */
+    public int addBending(final Particle a, final Particle b, final Particle c, final double compliance)
+    {
+        final Vect3D d = new Vect3D(b.getCenter()).mul(2.0).sub(a.getCenter()).sub(c.getCenter()).div(3.0);
+
+        return add(BENDING, a, b, c, d.length(), null, compliance);
+    }
+
+    /**
+     * Removes all constraints.
+     */
+    public void clear()
+    {
+        size = 0;
+        dirty = true;
+    }
+
+    /**
+     * @param t      type
+     * @param a      first particle
+     * @param b      second particle, or null
+     * @param c      third particle, or null
+     * @param length rest length
+     * @param point  pinned point, or null
+     * @param comp   compliance
+     * @return the index of the constraint, or -1 if a particle is not in a simulator
+     */
+    private int add(final byte t,
+                    final Particle a,
+                    final Particle b,
+                    final Particle c,
+                    final double length,
+                    final Vect3D point,
+                    final double comp)
+    {
+        final long handleA = a.getHandle();
+        final long handleB = b == null ? Simulator.NO_HANDLE : b.getHandle();
+        final long handleC = c == null ? Simulator.NO_HANDLE : c.getHandle();
+
+        if (handleA == Simulator.NO_HANDLE ||
+            (b != null && handleB == Simulator.NO_HANDLE) ||
+            (c != null && handleC == Simulator.NO_HANDLE))
+            return -1;
+
+        if (size == type.length)
+        {
+            final int capacity = Math.max(16, size * 2);
+
+            type = Arrays.copyOf(type, capacity);
+            ha = Arrays.copyOf(ha, capacity);
+            hb = Arrays.copyOf(hb, capacity);
+            hc = Arrays.copyOf(hc, capacity);
+            rest = Arrays.copyOf(rest, capacity);
+            px = Arrays.copyOf(px, capacity);
+            py = Arrays.copyOf(py, capacity);
+            pz = Arrays.copyOf(pz, capacity);
+            compliance = Arrays.copyOf(compliance, capacity);
+        }
+
+        type[size] = t;
+        ha[size] = handleA;
+        hb[size] = handleB;
+        hc[size] = handleC;
+        rest[size] = length;
+        if (point != null)
+        {
+            px[size] = point.x;
+            py[size] = point.y;
+            pz[size] = point.z;
+        }
+        compliance[size] = Math.max(0.0, comp);
+
+        dirty = true;
+
+        return size++;
+    }
+
+    /**
+     * Solves the constraints, after the particles have been integrated.
+     *
+     * @param ps        the store
+     * @param pool      used for parallel passes, or null to run them on the calling thread
+     * @param chunkSize maximum number of constraints (or particles) processed by a single task
+     * @param dt        the timestep
+     * @param wakeSpeed particles corrected faster than this are woken up
+     * @return the change of the checksum (see {@link Simulator#setDeterministic(boolean)})
+     */
+    long solve(final ParticleStore ps, final ForkJoinPool pool, final int chunkSize, final double dt, final double wakeSpeed)
+    {
+        if (size == 0)
+            return 0L;
+
+        if (dirty || layout != ps.layout)
+            colour(ps);
+
+        this.ps = ps;
+        this.chunkSize = chunkSize;
+        this.dt = dt;
+        invDt2 = 1.0 / (dt * dt);
+        wakeSpeed2 = wakeSpeed * wakeSpeed;
+
+        Arrays.fill(lambda, 0, size, 0.0);
+
+        invoke(pool, SAVE, 0, touchedSize);
+
+        for (int k = 0; k < rigidSize; k++)
+        {
+            final int i = rigid[k];
+            final int a = sa[i];
+
+            ps.pos.set(a, px[i], py[i], pz[i]);
+            weight[a] = 0.0;
+        }
+
+        for (int it = 0; it < iterations; it++)
+            for (int c = 0; c < colours; c++)
+            {
+                // the leftovers share particles, so they can't be split
+                if (c == COLOURS)
+                    run(SOLVE, start[c], start[c + 1]);
+                else
+                    invoke(pool, SOLVE, start[c], start[c + 1]);
+            }
+
+        final long delta = invoke(pool, FINISH, 0, touchedSize);
+
+        this.ps = null;
+
+        return delta;
+    }
+
+    /**
+     * Resolves the particles of each constraint to their current
+     * slots, and sorts the constraints by colour.
+     *
+     * @param ps the store
+     */
+    private void colour(final ParticleStore ps)
+    {
+        final int n = ps.size;
+
+        if (sa.length < type.length)
+        {
+            sa = new int[type.length];
+            sb = new int[type.length];
+            sc = new int[type.length];
+            lambda = new double[type.length];
+            order = new int[type.length];
+            rigid = new int[type.length];
+        }
+
+        if (used.length < n)
+        {
+            used = new long[n];
+            touched = new int[n];
+            ox = new double[n];
+            oy = new double[n];
+            oz = new double[n];
+            weight = new double[n];
+        }
+
+        Arrays.fill(used, 0, n, 0L);
+
+        // the colour of each constraint, temporarily in order, and the size of each colour
+        final int[] counts = new int[COLOURS + 1];
+
+        touchedSize = 0;
+        rigidSize = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            final int a = ps.slot(ha[i]);
+            final int b = type[i] == PIN ? -1 : ps.slot(hb[i]);
+            final int c = type[i] == BENDING ? ps.slot(hc[i]) : -1;
+
+            sa[i] = a;
+            sb[i] = b;
+            sc[i] = c;
+
+            // a removed particle
+            if (a < 0 || (type[i] != PIN && b < 0) || (type[i] == BENDING && c < 0))
+            {
+                order[i] = -1;
+                continue;
+            }
+
+            final long mask   = used[a] | (b < 0 ? 0L : used[b]) | (c < 0 ? 0L : used[c]);
+            final int  colour = mask == -1L ? COLOURS : Long.numberOfTrailingZeros(~mask);
+
+            if (colour < COLOURS)
+            {
+                touch(a, colour);
+                touch(b, colour);
+                touch(c, colour);
+            }
+            else
+            {
+                // still needs its particles saved
+                touch(a, 0);
+                touch(b, 0);
+                touch(c, 0);
+            }
+
+            if (type[i] == PIN && compliance[i] == 0.0)
+                rigid[rigidSize++] = i;
+
+            order[i] = colour;
+            counts[colour]++;
+        }
+
+        colours = COLOURS + 1;
+
+        while (colours > 0 && counts[colours - 1] == 0)
+            colours--;
+
+        if (start.length < COLOURS + 2)
+            start = new int[COLOURS + 2];
+
+        start[0] = 0;
+
+        for (int c = 0; c <= COLOURS; c++)
+            start[c + 1] = start[c] + counts[c];
+
+        // constraints in insertion order within each colour
+        final int[] next   = Arrays.copyOf(start, COLOURS + 1);
+        final int[] sorted = new int[start[COLOURS + 1]];
+
+        for (int i = 0; i < size; i++)
+            if (order[i] >= 0)
+                sorted[next[order[i]]++] = i;
+
+        System.arraycopy(sorted, 0, order, 0, sorted.length);
+
+        dirty = false;
+        layout = ps.layout;
+    }
+
+    /**
+     * Marks a slot as used by a colour, and
+     * remembers it the first time it's used.
+     *
+     * @param i      slot, or -1
+     * @param colour
+     */
+    private void touch(final int i, final int colour)
+    {
+        if (i < 0)
+            return;
+
+        if (used[i] == 0L)
+            touched[touchedSize++] = i;
+
+        used[i] |= 1L << colour;
+    }
+
+    /**
+     * Runs a pass on the calling thread if there is
+     * no pool or the range fits in a chunk, otherwise in parallel.
+     *
+     * @param pool
+     * @param pass
+     * @param from first constraint (or touched particle) in the pass order (inclusive)
+     * @param to   last constraint (or touched particle) in the pass order (exclusive)
+     * @return the change of the checksum (only for FINISH)
+     */
+    private long invoke(final ForkJoinPool pool, final int pass, final int from, final int to)
+    {
+        if (pool == null || to - from <= chunkSize)
+            return run(pass, from, to);
+
+        final Pass task = new Pass(pass, from, to);
+        pool.invoke(task);
+
+        return task.delta;
+    }
+
+    private long run(final int pass, final int from, final int to)
+    {
+        switch (pass)
+        {
+            case SAVE:
+                save(from, to);
+                break;
+            case SOLVE:
+                for (int k = from; k < to; k++)
+                    solve(order[k]);
+                break;
+            default:
+                return finish(from, to);
+        }
+
+        return 0L;
+    }
+
+    private void save(final int from, final int to)
+    {
+        final Vect3DColumn pos = ps.pos;
+
+        for (int k = from; k < to; k++)
+        {
+            final int i = touched[k];
+
+            ox[k] = pos.x(i);
+            oy[k] = pos.y(i);
+            oz[k] = pos.z(i);
+            // frozen particles (see ActivationRegion) don't move
+            weight[i] = ps.tier[i] == ActivationRegion.FROZEN ? 0.0 : ps.invmass[i];
+        }
+    }
+
+    /**
+     * Moves the particles of a constraint to satisfy it, accumulating its multiplier.
+     *
+     * @param i constraint
+     */
+    private void solve(final int i)
+    {
+        final Vect3DColumn pos   = ps.pos;
+        final double       alpha = compliance[i] * invDt2;
+        final int          a     = sa[i];
+        final double       wa    = weight[a];
+
+        switch (type[i])
+        {
+            case DISTANCE:
+            {
+                final int    b  = sb[i];
+                final double wb = weight[b];
+                final double dx = pos.x(a) - pos.x(b);
+                final double dy = pos.y(a) - pos.y(b);
+                final double dz = pos.z(a) - pos.z(b);
+                final double l  = Math.sqrt(dx * dx + dy * dy + dz * dz);
+                final double w  = wa + wb + alpha;
+
+                // coincident particles have no direction to move along
+                if (l == 0.0 || w == 0.0)
+                    return;
+
+                final double dl = (rest[i] - l - alpha * lambda[i]) / w;
+                final double s  = dl / l;
+
+                lambda[i] += dl;
+
+                pos.set(a, pos.x(a) + dx * s * wa, pos.y(a) + dy * s * wa, pos.z(a) + dz * s * wa);
+                pos.set(b, pos.x(b) - dx * s * wb, pos.y(b) - dy * s * wb, pos.z(b) - dz * s * wb);
+                break;
+            }
+            case PIN:
+            {
+                final double dx = pos.x(a) - px[i];
+                final double dy = pos.y(a) - py[i];
+                final double dz = pos.z(a) - pz[i];
+                final double w  = wa + alpha;
+
+                final double l  = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                // a distance of 0 from the point
+                if (l == 0.0 || w == 0.0)
+                    return;
+
+                final double dl = (-l - alpha * lambda[i]) / w;
+                final double s  = dl / l * wa;
+
+                lambda[i] += dl;
+
+                pos.set(a, pos.x(a) + dx * s, pos.y(a) + dy * s, pos.z(a) + dz * s);
+                break;
+            }
+            default:
+            {
+                final int    b  = sb[i];
+                final int    c  = sc[i];
+                final double wb = weight[b];
+                final double wc = weight[c];
+
+                // from the centre of the three particles to the middle one
+                final double dx = (2.0 * pos.x(b) - pos.x(a) - pos.x(c)) / 3.0;
+                final double dy = (2.0 * pos.y(b) - pos.y(a) - pos.y(c)) / 3.0;
+                final double dz = (2.0 * pos.z(b) - pos.z(a) - pos.z(c)) / 3.0;
+                final double l  = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                // the gradient is 2/3 of the direction for the middle
+                // particle, and -1/3 of it for the others
+                final double w = (4.0 * wb + wa + wc) / 9.0 + alpha;
+
+                if (l == 0.0 || w == 0.0)
+                    return;
+
+                final double dl = (rest[i] - l - alpha * lambda[i]) / w;
+                final double s  = dl / l / 3.0;
+
+                lambda[i] += dl;
+
+                pos.set(a, pos.x(a) - dx * s * wa, pos.y(a) - dy * s * wa, pos.z(a) - dz * s * wa);
+                pos.set(b, pos.x(b) + dx * s * 2.0 * wb, pos.y(b) + dy * s * 2.0 * wb, pos.z(b) + dz * s * 2.0 * wb);
+                pos.set(c, pos.x(c) - dx * s * wc, pos.y(c) - dy * s * wc, pos.z(c) - dz * s * wc);
+            }
+        }
+    }
+
+    /**
+     * Adds the corrections of the positions to the velocities, and wakes
+     * the particles that were corrected fast enough.
+     *
+     * @param from first touched particle (inclusive)
+     * @param to   last touched particle (exclusive)
+     * @return the change of the checksum
+     */
+    private long finish(final int from, final int to)
+    {
+        final ParticleStore s   = ps;
+        final Vect3DColumn  pos = s.pos;
+        final Vect3DColumn  vel = s.vel;
+
+        long delta = 0L;
+
+        for (int k = from; k < to; k++)
+        {
+            final int    i  = touched[k];
+            final double vx = (pos.x(i) - ox[k]) / dt;
+            final double vy = (pos.y(i) - oy[k]) / dt;
+            final double vz = (pos.z(i) - oz[k]) / dt;
+
+            if (vx == 0.0 && vy == 0.0 && vz == 0.0)
+                continue;
+
+            vel.set(i, vel.x(i) + vx, vel.y(i) + vy, vel.z(i) + vz);
+
+            if (vx * vx + vy * vy + vz * vz > wakeSpeed2)
+                s.calm[i] = 0;
+
+            if (s.hashing)
+            {
+                final long h = s.hash(i);
+
+                delta += h - s.hash[i];
+                s.hash[i] = h;
+            }
+        }
+
+        return delta;
+    }
+
+    /**
+     * Recursively halves a range until it fits
+     * in a chunk, then runs a pass on it.
+     */
+    private final class Pass extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1595800109799396799L;
+
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        // change of the checksum over the range
+        private long delta;
+
+        Pass(final int pass, final int from, final int to)
+        {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize)
+            {
+                delta = run(pass, from, to);
+                return;
+            }
+
+            final int  mid   = (from + to) >>> 1;
+            final Pass left  = new Pass(pass, from, mid);
+            final Pass right = new Pass(pass, mid, to);
+
+            invokeAll(left, right);
+
+            delta = left.delta + right.delta;
+        }
+    }
+}
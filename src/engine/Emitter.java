@@ -0,0 +1,404 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import environment.Materials;
+import utils.Vect3D;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Spawns short-lived particles (sparks, smoke..) at a given rate, within a point, box or
+ * sphere, and removes them when their lifetime expires (see {@link Simulator#addEmitter(Emitter)}).
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Expired particles are not thrown away: they go back to a pool owned by the emitter, and are
+ * reused for the next spawns. Once the pool is big enough for the steady state (about rate * lifetime
+ * particles), emitting doesn't allocate anything. For this reason, the {@link Particle} objects of an
+ * emitter must not be kept after they expire: their handles should be used instead, as they become
+ * stale (see {@link Simulator#isValid(long)}).
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * All particles of an emitter share the same lifetime, so they expire in the order they were spawned:
+ * the emitter keeps their handles in a queue, and at the end of each step removes those at its head
+ * whose time is up. A particle removed in another way (eg, by {@link Simulator#removeParticle(long)})
+ * simply becomes the user's again, and is skipped.
+ *
+ * @author Fabio Ticconi
+ */
+public class Emitter
+{
+    private final boolean sphere;
+    private final Vect3D  center;
+    // half size of the box, or radius of the sphere (in x)
+    private final Vect3D  extent;
+
+    // particles per second
+    private double rate;
+    // seconds
+    private double lifetime;
+    private int    maxParticles;
+
+    private final Vect3D velocity;
+    private       double spread;
+    private       double mass;
+    private       double radius;
+    private       int    material;
+
+    private final Random random;
+
+    // time since the emitter was added, and particles not spawned yet
+    private double time;
+    private double pending;
+
+    // handles of the live particles, and their expiration times,
+    // in spawn order (circular queue)
+    private long[]   handles;
+    private double[] expiry;
+    private int      head;
+    private int      count;
+
+    // expired particles ready to be reused
+    private Particle[] pool;
+    private int        pooled;
+
+    // scratch
+    private final Vect3D sample;
+
+    private Emitter(final boolean sphere, final Vect3D center, final double ex, final double ey, final double ez)
+    {
+        this.sphere = sphere;
+        this.center = new Vect3D(center);
+        extent = new Vect3D(ex, ey, ez);
+
+        rate = 0.0;
+        lifetime = 1.0;
+        maxParticles = Integer.MAX_VALUE;
+
+        velocity = new Vect3D();
+        spread = 0.0;
+        mass = 1.0;
+        radius = 1.0;
+        material = Materials.DEFAULT;
+
+        random = new Random();
+
+        handles = new long[16];
+        expiry = new double[16];
+        pool = new Particle[16];
+
+        sample = new Vect3D();
+    }
+
+    /**
+     * @param center where particles are spawned
+     * @return a new emitter spawning all particles in the same position
+     */
+    public static Emitter point(final Vect3D center)
+    {
+        return new Emitter(false, center, 0.0, 0.0, 0.0);
+    }
+
+    /**
+     * @param center center of the box
+     * @param extent half size of the box on each axis
+     * @return a new emitter spawning particles uniformly within the box
+     */
+    public static Emitter box(final Vect3D center, final Vect3D extent)
+    {
+        return new Emitter(false, center, extent.x, extent.y, extent.z);
+    }
+
+    /**
+     * @param center center of the sphere
+     * @param radius
+     * @return a new emitter spawning particles uniformly within the sphere
+     */
+    public static Emitter sphere(final Vect3D center, final double radius)
+    {
+        return new Emitter(true, center, radius, radius, radius);
+    }
+
+    public Vect3D getCenter(final Vect3D out)
+    {
+        return out.set(center);
+    }
+
+    /**
+     * Moves the emitter. The particles already
+     * spawned are not affected.
+     *
+     * @param center
+     */
+    public void setCenter(final Vect3D center)
+    {
+        this.center.set(center);
+    }
+
+    public double getRate()
+    {
+        return rate;
+    }
+
+    /**
+     * @param rate particles spawned per second, 0 to stop spawning
+     */
+    public void setRate(final double rate)
+    {
+        this.rate = Math.max(0.0, rate);
+    }
+
+    public double getLifetime()
+    {
+        return lifetime;
+    }
+
+    /**
+     * Changes the lifetime of the particles spawned from now on.
+     * It shouldn't be shortened while there are live particles,
+     * as they are expired in spawn order.
+     *
+     * @param lifetime seconds between the spawn of a particle and its removal
+     */
+    public void setLifetime(final double lifetime)
+    {
+        this.lifetime = lifetime;
+    }
+
+    /**
+     * @param maxParticles maximum number of live particles: spawns beyond it are skipped
+     */
+    public void setMaxParticles(final int maxParticles)
+    {
+        this.maxParticles = Math.max(0, maxParticles);
+    }
+
+    /**
+     * Sets the initial velocity of the spawned particles: the given mean, plus
+     * a random vector uniformly distributed within a sphere of the given radius.
+     *
+     * @param mean   average velocity
+     * @param spread maximum deviation from the mean
+     */
+    public void setVelocity(final Vect3D mean, final double spread)
+    {
+        velocity.set(mean);
+        this.spread = Math.max(0.0, spread);
+    }
+
+    /**
+     * Sets the properties of the particles spawned from now on.
+     *
+     * @param mass
+     * @param radius
+     * @param material a material id (see {@link Materials#register(double, double)})
+     */
+    public void setParticle(final double mass, final double radius, final int material)
+    {
+        this.mass = mass;
+        this.radius = radius;
+        this.material = material;
+    }
+
+    /**
+     * Makes the positions and velocities of the spawned particles
+     * reproducible (eg, for the deterministic mode of the {@link Simulator}).
+     *
+     * @param seed
+     */
+    public void setSeed(final long seed)
+    {
+        random.setSeed(seed);
+    }
+
+    /**
+     * @return the number of particles spawned by this emitter and not expired
+     * yet (including those removed in other ways)
+     */
+    public int getParticlesNumber()
+    {
+        return count;
+    }
+
+    /**
+     * Spawns the particles due in a step of the given duration.
+     *
+     * @param s  the simulator
+     * @param dt duration of the step
+     */
+    void emit(final Simulator s, final double dt)
+    {
+        time += dt;
+        pending += rate * dt;
+
+        final int n = (int) pending;
+        pending -= n;
+
+        for (int k = 0; k < n && count < maxParticles; k++)
+        {
+            final Particle p = pooled > 0 ? pool[--pooled] : new Particle(center);
+            pool[pooled] = null;
+
+            if (sphere)
+            {
+                inBall(extent.x);
+            }
+            else
+            {
+                sample.x = (random.nextDouble() * 2.0 - 1.0) * extent.x;
+                sample.y = (random.nextDouble() * 2.0 - 1.0) * extent.y;
+                sample.z = (random.nextDouble() * 2.0 - 1.0) * extent.z;
+            }
+
+            final double x = center.x + sample.x;
+            final double y = center.y + sample.y;
+            final double z = center.z + sample.z;
+
+            if (spread > 0.0)
+                inBall(spread);
+            else
+                sample.set(0.0);
+
+            p.reset(x,
+                    y,
+                    z,
+                    velocity.x + sample.x,
+                    velocity.y + sample.y,
+                    velocity.z + sample.z,
+                    mass,
+                    radius,
+                    material);
+
+            push(s.addParticle(p), time + lifetime);
+        }
+    }
+
+    /**
+     * Removes all the particles whose lifetime has expired,
+     * and puts them in the pool.<br />
+     * O(expired particles)
+     *
+     * @param ps the store of the simulator
+     */
+    void expire(final ParticleStore ps)
+    {
+        while (count > 0 && expiry[head] <= time)
+        {
+            final int i = ps.slot(handles[head]);
+
+            if (i >= 0)
+            {
+                final Particle p = ps.particles[i];
+
+                ps.remove(i);
+                recycle(p);
+            }
+
+            head = (head + 1) % handles.length;
+            count--;
+        }
+    }
+
+    /**
+     * Removes all the live particles, and puts them in the pool.
+     *
+     * @param ps the store of the simulator
+     */
+    void clear(final ParticleStore ps)
+    {
+        while (count > 0)
+        {
+            final int i = ps.slot(handles[head]);
+
+            if (i >= 0)
+            {
+                final Particle p = ps.particles[i];
+
+                ps.remove(i);
+                recycle(p);
+            }
+
+            head = (head + 1) % handles.length;
+            count--;
+        }
+
+        time = 0.0;
+        pending = 0.0;
+    }
+
+    private void push(final long handle, final double expires)
+    {
+        if (count == handles.length)
+        {
+            // unroll the circular queue into bigger arrays
+            final int      capacity = handles.length * 2;
+            final long[]   h        = new long[capacity];
+            final double[] e        = new double[capacity];
+
+            for (int k = 0; k < count; k++)
+            {
+                h[k] = handles[(head + k) % handles.length];
+                e[k] = expiry[(head + k) % handles.length];
+            }
+
+            handles = h;
+            expiry = e;
+            head = 0;
+        }
+
+        final int tail = (head + count) % handles.length;
+
+        handles[tail] = handle;
+        expiry[tail] = expires;
+        count++;
+    }
+
+    private void recycle(final Particle p)
+    {
+        if (pooled == pool.length)
+            pool = Arrays.copyOf(pool, pooled * 2);
+
+        pool[pooled++] = p;
+    }
+
+    /**
+     * Puts a random vector, uniformly distributed within
+     * a sphere of the given radius, in the scratch vector.
+     *
+     * @param r radius
+     */
+    private void inBall(final double r)
+    {
+        double x, y, z;
+
+        do
+        {
+            x = random.nextDouble() * 2.0 - 1.0;
+            y = random.nextDouble() * 2.0 - 1.0;
+            z = random.nextDouble() * 2.0 - 1.0;
+        } while (x * x + y * y + z * z > 1.0);
+
+        sample.x = x * r;
+        sample.y = y * r;
+        sample.z = z * r;
+    }
+}
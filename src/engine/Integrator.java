@@ -0,0 +1,318 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+/**
+ * Integration schemes the {@link Simulator} can use to advance the particles by
+ * one step (see {@link Simulator#setIntegrator(Integrator)}).
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The most expensive part of a step is the force evaluation: the {@link environment.World} processing
+ * plus the collision resolution against static objects. The default scheme evaluates forces twice
+ * per step, the others only once: they are about twice as fast, but less accurate when forces depend
+ * on the velocity (eg, fluid drag). Semi-implicit Euler is also only first order in the position.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * With a single evaluation, the world's position corrections (eg, clamping to the map borders, or
+ * pushing a particle out of a static object) are applied at the start of the next step, instead of
+ * at the end of the current one.
+ *
+ * @author Fabio Ticconi
+ */
+public enum Integrator
+{
+    /**
+     * <p>
+     * Verlet Velocity integration method, slightly modified to take into account forces dependent on velocity (eg,
+     * fluid drag). Reference (particle physics paper):
+     * http://pages.csam.montclair.edu/~yecko/ferro/papers/FerroDPD/GrootWarren_ReviewDPD_97.pdf
+     * </p>
+     * <p>
+     * <p>
+     * However, as also described here: http://gamedev.stackexchange.com/a/41917/51181 we used a lambda of 1 and
+     * re-arranged a bit to reduce the number of divisions and multiplications. Semantically is the same as the above
+     * paper.
+     * </p>
+     * Two force evaluations per step. This is the default.
+     */
+    VELOCITY_VERLET
+        {
+            @Override
+            void integrate(final Simulator s,
+                           final Simulator.Cursor c,
+                           final ParticleBatch b,
+                           final double dt,
+                           final double dt2)
+            {
+                final int n = b.size;
+
+                final double[] x  = b.x;
+                final double[] y  = b.y;
+                final double[] z  = b.z;
+                final double[] vx = b.velX;
+                final double[] vy = b.velY;
+                final double[] vz = b.velZ;
+                final double[] ax = b.accX;
+                final double[] ay = b.accY;
+                final double[] az = b.accZ;
+                final double[] fx = b.forceX;
+                final double[] fy = b.forceY;
+                final double[] fz = b.forceZ;
+
+                start(b);
+
+                // Preliminaries:
+                // as static objects and particles could be added
+                // at any point of space and time, we need to immediately
+                // (before anything changes) apply basic corrections to the position
+                // (for example, warp the particle in the right place if the world is toroidal,
+                // or block it in place in case it has been added right inside a static object).
+                s.evaluate(c, b, dt);
+
+                for (int k = 0; k < n; k++)
+                {
+                    // calculate acceleration from the accumulated forces
+                    final double invmass = b.invmass[k];
+                    final double accx    = (fx[k] * invmass);
+                    final double accy    = (fy[k] * invmass);
+                    final double accz    = (fz[k] * invmass);
+
+                    ax[k] = accx;
+                    ay[k] = accy;
+                    az[k] = accz;
+
+                    x[k] += dt * (vx[k] + (dt2 * accx));
+                    y[k] += dt * (vy[k] + (dt2 * accy));
+                    z[k] += dt * (vz[k] + (dt2 * accz));
+
+                    vx[k] += dt * accx;
+                    vy[k] += dt * accy;
+                    vz[k] += dt * accz;
+
+                    if (Simulator.VERBOSE)
+                        System.out.println("integrated: " + b.get(k));
+
+                    fx[k] = fy[k] = fz[k] = 0.0;
+                }
+
+                end(b);
+
+                // now we finish the time step by re-calculating
+                // forces with the new velocity (see paper for details)
+
+                // recalculate force and correct position
+                s.evaluate(c, b, dt);
+
+                for (int k = 0; k < n; k++)
+                {
+                    final double invmass = b.invmass[k];
+                    final double accx    = -ax[k] + (fx[k] * invmass);
+                    final double accy    = -ay[k] + (fy[k] * invmass);
+                    final double accz    = -az[k] + (fz[k] * invmass);
+
+                    ax[k] = accx;
+                    ay[k] = accy;
+                    az[k] = accz;
+
+                    vx[k] += dt2 * accx;
+                    vy[k] += dt2 * accy;
+                    vz[k] += dt2 * accz;
+
+                    if (Simulator.VERBOSE)
+                        System.out.println("post: " + b.get(k));
+                }
+            }
+        },
+
+    /**
+     * Semi-implicit (symplectic) Euler: the velocity is advanced with the forces
+     * at the start of the step, then the position with the new velocity.
+     * One force evaluation per step, first order.
+     */
+    SEMI_IMPLICIT_EULER
+        {
+            @Override
+            void integrate(final Simulator s,
+                           final Simulator.Cursor c,
+                           final ParticleBatch b,
+                           final double dt,
+                           final double dt2)
+            {
+                final int n = b.size;
+
+                final double[] x  = b.x;
+                final double[] y  = b.y;
+                final double[] z  = b.z;
+                final double[] vx = b.velX;
+                final double[] vy = b.velY;
+                final double[] vz = b.velZ;
+                final double[] fx = b.forceX;
+                final double[] fy = b.forceY;
+                final double[] fz = b.forceZ;
+
+                start(b);
+
+                s.evaluate(c, b, dt);
+
+                for (int k = 0; k < n; k++)
+                {
+                    final double invmass = b.invmass[k];
+                    final double accx    = (fx[k] * invmass);
+                    final double accy    = (fy[k] * invmass);
+                    final double accz    = (fz[k] * invmass);
+
+                    b.accX[k] = accx;
+                    b.accY[k] = accy;
+                    b.accZ[k] = accz;
+
+                    vx[k] += dt * accx;
+                    vy[k] += dt * accy;
+                    vz[k] += dt * accz;
+
+                    x[k] += dt * vx[k];
+                    y[k] += dt * vy[k];
+                    z[k] += dt * vz[k];
+
+                    if (Simulator.VERBOSE)
+                        System.out.println("post: " + b.get(k));
+                }
+
+                end(b);
+            }
+        },
+
+    /**
+     * Position Verlet (leapfrog in its drift-kick-drift form): the position is advanced by half
+     * a step, forces are evaluated there, then the velocity is advanced by a whole step and the
+     * position by the remaining half. One force evaluation per step, second order
+     * for forces only depending on the position (like gravity or springs).
+     */
+    POSITION_VERLET
+        {
+            @Override
+            void integrate(final Simulator s,
+                           final Simulator.Cursor c,
+                           final ParticleBatch b,
+                           final double dt,
+                           final double dt2)
+            {
+                final int n = b.size;
+
+                final double[] x  = b.x;
+                final double[] y  = b.y;
+                final double[] z  = b.z;
+                final double[] vx = b.velX;
+                final double[] vy = b.velY;
+                final double[] vz = b.velZ;
+                final double[] fx = b.forceX;
+                final double[] fy = b.forceY;
+                final double[] fz = b.forceZ;
+
+                start(b);
+
+                for (int k = 0; k < n; k++)
+                {
+                    x[k] += dt2 * vx[k];
+                    y[k] += dt2 * vy[k];
+                    z[k] += dt2 * vz[k];
+                }
+
+                s.evaluate(c, b, dt);
+
+                for (int k = 0; k < n; k++)
+                {
+                    final double invmass = b.invmass[k];
+                    final double accx    = (fx[k] * invmass);
+                    final double accy    = (fy[k] * invmass);
+                    final double accz    = (fz[k] * invmass);
+
+                    b.accX[k] = accx;
+                    b.accY[k] = accy;
+                    b.accZ[k] = accz;
+
+                    vx[k] += dt * accx;
+                    vy[k] += dt * accy;
+                    vz[k] += dt * accz;
+
+                    x[k] += dt2 * vx[k];
+                    y[k] += dt2 * vy[k];
+                    z[k] += dt2 * vz[k];
+
+                    if (Simulator.VERBOSE)
+                        System.out.println("post: " + b.get(k));
+                }
+
+                end(b);
+            }
+        };
+
+    /**
+     * Advances all particles of a batch by one step.
+     *
+     * @param s   the simulator, evaluating the forces
+     * @param c   scratch state of the current thread
+     * @param b   the batch
+     * @param dt  how much to advance the simulation of
+     * @param dt2 half of dt
+     */
+    abstract void integrate(final Simulator s,
+                            final Simulator.Cursor c,
+                            final ParticleBatch b,
+                            final double dt,
+                            final double dt2);
+
+    /**
+     * Resets acceleration and force of all particles
+     * of the batch, and saves their current position.
+     *
+     * @param b the batch
+     */
+    static void start(final ParticleBatch b)
+    {
+        for (int k = 0; k < b.size; k++)
+        {
+            // reset the acceleration and force vectors
+            b.accX[k] = b.accY[k] = b.accZ[k] = 0.0;
+            b.forceX[k] = b.forceY[k] = b.forceZ[k] = 0.0;
+
+            // save current position
+            b.startX[k] = b.x[k];
+            b.startY[k] = b.y[k];
+            b.startZ[k] = b.z[k];
+
+            if (Simulator.VERBOSE)
+                System.out.println("\n#simulator#\npre: " + b.get(k));
+        }
+    }
+
+    /**
+     * Makes the position saved by {@link #start(ParticleBatch)}
+     * the old position of all particles of the batch.
+     *
+     * @param b the batch
+     */
+    static void end(final ParticleBatch b)
+    {
+        System.arraycopy(b.startX, 0, b.oldX, 0, b.size);
+        System.arraycopy(b.startY, 0, b.oldY, 0, b.size);
+        System.arraycopy(b.startZ, 0, b.oldZ, 0, b.size);
+    }
+}
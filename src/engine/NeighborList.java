@@ -0,0 +1,189 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Verlet neighbour lists: for each particle of a {@link ParticleStore}, the particles
+ * closer than a cutoff plus a <b>skin</b>, so that particle-particle interactions within the cutoff
+ * can be searched among a few neighbours instead of a freshly rebuilt {@link SpatialHash}.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Particles move only a fraction of the skin at each step, so the lists stay valid for several steps:
+ * a pair can only get within the cutoff if its particles moved, together, by more than the skin. The
+ * lists are therefore only rebuilt when some particle moved by more than half the skin since the
+ * last build (or when particles were added, removed or reordered, or the cutoff grew). A larger skin
+ * means fewer rebuilds but longer lists.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The particles are listed in the order of the spatial hash at the last build, so that close particles
+ * are close in the lists too: entry k is the particle in slot order[k], and its neighbours are the entries
+ * neighbors[first[k]] to neighbors[first[k + 1] - 1]. Copying the particles' state in this order at each
+ * step, the neighbours are then read from a few nearby places instead of all over the store.
+ *
+ * @author Fabio Ticconi
+ */
+final class NeighborList
+{
+    private final double  skin;
+    // many neighbours per particle (see SpatialHash#link)
+    private final boolean dense;
+
+    // slot of each entry, and the entries neighbouring entry k:
+    // neighbors[first[k]] to neighbors[first[k + 1] - 1]
+    int[] order;
+    int[] first;
+    int[] neighbors;
+
+    // positions at the last build, by slot
+    private double[] bx;
+    private double[] by;
+    private double[] bz;
+
+    // state of the store at the last build
+    private int    size;
+    private int    layout;
+    // cutoff plus skin, at the last build
+    private double range;
+
+    // builds so far
+    int builds;
+
+    NeighborList(final double skin)
+    {
+        this(skin, false);
+    }
+
+    /**
+     * @param skin  margin added to the cutoff
+     * @param dense true if each particle has many neighbours, as in a fluid:
+     *              the lists are then built with a finer hash
+     */
+    NeighborList(final double skin, final boolean dense)
+    {
+        this.skin = skin;
+        this.dense = dense;
+
+        order = neighbors = new int[0];
+        first = new int[1];
+        bx = by = bz = new double[0];
+
+        size = -1;
+    }
+
+    double getSkin()
+    {
+        return skin;
+    }
+
+    /**
+     * Rebuilds the lists if they might miss a pair closer than the cutoff.
+     *
+     * @param ps        the store
+     * @param hash      used to rebuild the lists
+     * @param pool      used to rebuild in parallel, or null to rebuild on the calling thread
+     * @param chunkSize maximum number of slots processed by a single task
+     * @param cutoff    maximum distance between the centres of interacting particles
+     * @return true if the lists were rebuilt
+     */
+    boolean update(final ParticleStore ps,
+                   final SpatialHash hash,
+                   final ForkJoinPool pool,
+                   final int chunkSize,
+                   final double cutoff)
+    {
+        if (isValid(ps, cutoff))
+            return false;
+
+        hash.link(this, ps, pool, chunkSize, cutoff + skin, dense);
+
+        final Vect3DColumn pos = ps.pos;
+
+        for (int i = 0; i < ps.size; i++)
+        {
+            bx[i] = pos.x(i);
+            by[i] = pos.y(i);
+            bz[i] = pos.z(i);
+        }
+
+        size = ps.size;
+        layout = ps.layout;
+        range = cutoff + skin;
+        builds++;
+
+        return true;
+    }
+
+    /**
+     * Checks that no particle moved by more than half the spare range
+     * (the skin, unless the cutoff changed) since the last build.
+     *
+     * @param ps     the store
+     * @param cutoff current cutoff
+     * @return true if the lists contain all pairs closer than the cutoff
+     */
+    private boolean isValid(final ParticleStore ps, final double cutoff)
+    {
+        if (ps.size != size || ps.layout != layout || cutoff >= range)
+            return false;
+
+        final Vect3DColumn pos   = ps.pos;
+        final double       half  = (range - cutoff) / 2.0;
+        final double       half2 = half * half;
+
+        for (int i = 0; i < size; i++)
+        {
+            final double dx = pos.x(i) - bx[i];
+            final double dy = pos.y(i) - by[i];
+            final double dz = pos.z(i) - bz[i];
+
+            if (dx * dx + dy * dy + dz * dz > half2)
+                return false;
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes room for the given number of particles and neighbours.
+     * Arrays only grow.
+     *
+     * @param n     number of particles
+     * @param total total length of the lists
+     */
+    void ensureCapacity(final int n, final int total)
+    {
+        if (first.length < n + 1)
+        {
+            final int capacity = Math.max(n, first.length * 2);
+
+            order = new int[capacity];
+            first = new int[capacity + 1];
+            bx = new double[capacity];
+            by = new double[capacity];
+            bz = new double[capacity];
+        }
+
+        if (neighbors.length < total)
+            neighbors = new int[Math.max(total, neighbors.length * 2)];
+    }
+}
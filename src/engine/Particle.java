@@ -16,6 +16,7 @@
 
 package engine;
 
+import environment.Materials;
 import shapes.Sphere;
 import utils.ImmutableVect3D;
 import utils.Maths;
@@ -34,6 +35,17 @@ import utils.Vect3D;
  * <br/>
  * <br/>
  * <p>
+ * Once added to a {@link Simulator}, a Particle becomes a view on a slot
+ * of the simulator's {@link ParticleStore}: all getters and setters go to the
+ * store, and the vectors returned by the getters are <b>copies</b> of the stored
+ * state (use the setters to change it). When removed, the current state is copied
+ * back into the Particle, which can then be used on its own or added again. The vectors
+ * of the old center, velocity, acceleration and force are only created the first time
+ * they're needed, so an attached particle that is never read costs little more than its slot.
+ * <p>
+ * <br/>
+ * <br/>
+ * <p>
  * In addition, it implements the interface Point. This is used by
  * the collider.
  *
@@ -41,48 +53,54 @@ import utils.Vect3D;
  */
 public class Particle extends Sphere
 {
-    final   Vect3D oldCenter;
-    final   Vect3D vel;
-    final   Vect3D acc;
-    final   Vect3D force;
+    // created on first use: until then, the old center is the center
+    // and the others are zero (attached particles only use them as scratch)
+    private Vect3D oldCenter;
+    private Vect3D vel;
+    private Vect3D acc;
+    private Vect3D force;
     double invmass;
-    private double mass;
-    private double density;
-    private double bounciness;
-    private double friction;
+    double mass;
+    double density;
+    int    material;
+
+    // the store holding this particle's state, null if detached
+    ParticleStore store;
+    int           index;
 
     public Particle(final Vect3D pos)
     {
         super(pos, 1.0);
 
-        oldCenter = new Vect3D(pos);
-
         mass = 1.0;
         invmass = 1.0;
         density = Maths.sphereDensity(1.0, radius);
-        bounciness = 0.0;
-        friction = 0.4;
+        material = Materials.DEFAULT;
 
-        vel = new Vect3D();
-        acc = new Vect3D();
-        force = new Vect3D();
+        index = -1;
     }
 
     public Particle(final double mass, final double radius, final Vect3D pos, final Vect3D vel)
     {
         super(pos, radius);
 
-        oldCenter = new Vect3D(pos);
-
         this.mass = mass;
         invmass = 1.0 / mass;
         density = Maths.sphereDensity(mass, radius);
-        bounciness = 0.0;
-        friction = 0.4;
+        material = Materials.DEFAULT;
 
         this.vel = vel;
-        acc = new Vect3D();
-        force = new Vect3D();
+
+        index = -1;
+    }
+
+    @Override
+    public double getRadius()
+    {
+        if (store != null)
+            return store.radius[index];
+
+        return radius;
     }
 
     /**
@@ -94,10 +112,29 @@ public class Particle extends Sphere
      */
     public void setRadius(final double radius)
     {
+        if (store != null)
+        {
+            store.radius[index] = radius;
+            store.density[index] = Maths.sphereDensity(1.0 / store.invmass[index], radius);
+            store.rehash(index);
+            return;
+        }
+
         this.radius = radius;
         density = Maths.sphereDensity(1.0 / invmass, radius);
     }
 
+    @Override
+    public Vect3D getCenter()
+    {
+        if (store != null)
+        {
+            store.pos.get(index, center);
+        }
+
+        return center;
+    }
+
     /**
      * Overwrites the particle's center position.
      * It copies the values over, doesn't assign the object.
@@ -106,22 +143,42 @@ public class Particle extends Sphere
      */
     public void setCenter(final Vect3D center)
     {
-        oldCenter.set(this.center);
+        if (store != null)
+        {
+            store.wake(index);
+            store.old.set(index, store.pos.x(index), store.pos.y(index), store.pos.z(index));
+            store.pos.set(index, center);
+            store.rehash(index);
+            return;
+        }
+
+        oldCenter().set(this.center);
         this.center.set(center);
     }
 
     public Vect3D getOldCenter()
     {
-        return oldCenter;
+        if (store != null)
+        {
+            store.old.get(index, oldCenter());
+        }
+
+        return oldCenter();
     }
 
     public double getDensity()
     {
+        if (store != null)
+            return store.density[index];
+
         return density;
     }
 
     public double getMass()
     {
+        if (store != null)
+            return store.mass[index];
+
         return mass;
     }
 
@@ -134,6 +191,15 @@ public class Particle extends Sphere
      */
     public void setMass(final double mass)
     {
+        if (store != null)
+        {
+            store.mass[index] = mass;
+            store.invmass[index] = 1.0 / mass;
+            store.density[index] = Maths.sphereDensity(mass, store.radius[index]);
+            store.rehash(index);
+            return;
+        }
+
         this.mass = mass;
         invmass = 1.0 / mass;
         density = Maths.sphereDensity(mass, radius);
@@ -141,6 +207,9 @@ public class Particle extends Sphere
 
     public double getInvMass()
     {
+        if (store != null)
+            return store.invmass[index];
+
         return invmass;
     }
 
@@ -154,34 +223,97 @@ public class Particle extends Sphere
      */
     public void setInvMass(final double invmass)
     {
-        mass = 1.0 / mass;
+        if (store != null)
+        {
+            store.mass[index] = 1.0 / invmass;
+            store.invmass[index] = invmass;
+            store.density[index] = Maths.sphereDensity(1.0 / invmass, store.radius[index]);
+            store.rehash(index);
+            return;
+        }
+
+        mass = 1.0 / invmass;
         this.invmass = invmass;
         density = Maths.sphereDensity(1.0 / invmass, radius);
     }
 
+    /**
+     * Returns the id of this particle's material.
+     *
+     * @return the material id
+     * @see Materials
+     */
+    public int getMaterial()
+    {
+        if (store != null)
+            return store.material[index];
+
+        return material;
+    }
+
+    /**
+     * Sets this particle's material.
+     *
+     * @param material a material id obtained from {@link Materials#register(double, double)}
+     */
+    public void setMaterial(final int material)
+    {
+        if (store != null)
+        {
+            store.material[index] = material;
+            store.rehash(index);
+            return;
+        }
+
+        this.material = material;
+    }
+
     public double getBounciness()
     {
-        return bounciness;
+        return Materials.getBounciness(getMaterial());
     }
 
+    /**
+     * Switches to the material with the given bounciness
+     * and the current friction, registering it if needed. Materials
+     * are global and limited in number (see {@link Materials}), so
+     * this is cheap for existing materials, but shouldn't be given many
+     * distinct values.
+     *
+     * @param bounciness
+     */
     public void setBounciness(final double bounciness)
     {
-        this.bounciness = bounciness;
+        setMaterial(Materials.register(getFriction(), bounciness));
     }
 
     public double getFriction()
     {
-        return friction;
+        return Materials.getFriction(getMaterial());
     }
 
+    /**
+     * Switches to the material with the given friction
+     * and the current bounciness, registering it if needed. Materials
+     * are global and limited in number (see {@link Materials}), so
+     * this is cheap for existing materials, but shouldn't be given many
+     * distinct values.
+     *
+     * @param friction
+     */
     public void setFriction(final double friction)
     {
-        this.friction = friction;
+        setMaterial(Materials.register(friction, getBounciness()));
     }
 
     public Vect3D getVelocity()
     {
-        return vel;
+        if (store != null)
+        {
+            store.vel.get(index, vel());
+        }
+
+        return vel();
     }
 
     /**
@@ -192,12 +324,25 @@ public class Particle extends Sphere
      */
     public void setVelocity(final ImmutableVect3D vel)
     {
-        this.vel.set(vel);
+        if (store != null)
+        {
+            store.wake(index);
+            store.vel.set(index, vel.x, vel.y, vel.z);
+            store.rehash(index);
+            return;
+        }
+
+        vel().set(vel);
     }
 
     public Vect3D getAcceleration()
     {
-        return acc;
+        if (store != null)
+        {
+            store.acc.get(index, acc());
+        }
+
+        return acc();
     }
 
     /**
@@ -208,22 +353,333 @@ public class Particle extends Sphere
      */
     public void setAcceleration(final Vect3D acc)
     {
-        this.acc.set(acc);
+        if (store != null)
+        {
+            store.wake(index);
+            store.acc.set(index, acc);
+            store.rehash(index);
+            return;
+        }
+
+        acc().set(acc);
     }
 
     public Vect3D getForce()
     {
-        return force;
+        if (store != null)
+        {
+            store.force.get(index, force());
+        }
+
+        return force();
     }
 
     public void setForce(final ImmutableVect3D zero)
     {
-        force.set(zero);
+        if (store != null)
+        {
+            store.wake(index);
+            store.force.set(index, zero.x, zero.y, zero.z);
+            return;
+        }
+
+        force().set(zero);
+    }
+
+    /**
+     * A particle is asleep when the {@link Simulator} has
+     * seen it at rest for long enough: it is then skipped by
+     * the update loop until woken up.
+     *
+     * @return true if asleep
+     * @see Simulator#setSleeping(double, double, int)
+     */
+    public boolean isAsleep()
+    {
+        return store != null && store.asleep(index);
+    }
+
+    /**
+     * Makes the particle move again, if it was asleep or frozen
+     * outside the activation regions (until it's classified again).
+     * Changing its position, velocity, acceleration or force
+     * through the setters has the same effect.
+     */
+    public void wake()
+    {
+        if (store != null)
+            store.wake(index);
+    }
+
+    /**
+     * Returns the stable handle of this particle, that can be
+     * used with {@link Simulator#getParticle(long)} and
+     * {@link Simulator#removeParticle(long)}. It becomes stale
+     * as soon as the particle is removed.
+     *
+     * @return the handle, or {@link Simulator#NO_HANDLE} if not in a simulator
+     */
+    public long getHandle()
+    {
+        if (store != null)
+            return store.handle(index);
+
+        return Simulator.NO_HANDLE;
+    }
+
+    /**
+     * Overwrites the whole state of this (detached) particle,
+     * so that it can be reused as if it was new.
+     *
+     * @param x        position
+     * @param y        position
+     * @param z        position
+     * @param vx       velocity
+     * @param vy       velocity
+     * @param vz       velocity
+     * @param mass
+     * @param radius
+     * @param material
+     */
+    void reset(final double x,
+               final double y,
+               final double z,
+               final double vx,
+               final double vy,
+               final double vz,
+               final double mass,
+               final double radius,
+               final int material)
+    {
+        center.x = x;
+        center.y = y;
+        center.z = z;
+        if (oldCenter != null)
+            oldCenter.set(center);
+
+        final Vect3D v = vel();
+        v.x = vx;
+        v.y = vy;
+        v.z = vz;
+        if (acc != null)
+            acc.x = acc.y = acc.z = 0.0;
+        if (force != null)
+            force.x = force.y = force.z = 0.0;
+
+        this.mass = mass;
+        invmass = 1.0 / mass;
+        this.radius = radius;
+        density = Maths.sphereDensity(mass, radius);
+        this.material = material;
+    }
+
+    /**
+     * Binds this particle to the given slot.
+     *
+     * @param store
+     * @param index
+     */
+    void attach(final ParticleStore store, final int index)
+    {
+        this.store = store;
+        this.index = index;
+    }
+
+    /**
+     * Copies the state of the slot back into this particle,
+     * and unbinds it from the store.
+     */
+    void detach()
+    {
+        final ParticleStore s = store;
+        final int           i = index;
+
+        store = null;
+        index = -1;
+
+        readFrom(s, i);
+    }
+
+    /**
+     * Overwrites the whole state of this (detached) particle
+     * with the content of the given slot.
+     *
+     * @param s
+     * @param i
+     */
+    void readFrom(final ParticleStore s, final int i)
+    {
+        s.pos.get(i, center);
+        s.old.get(i, oldCenter());
+        s.vel.get(i, vel());
+        s.acc.get(i, acc());
+        s.force.get(i, force());
+
+        invmass = s.invmass[i];
+        mass = s.mass[i];
+        radius = s.radius[i];
+        density = s.density[i];
+        material = s.material[i];
+    }
+
+    /**
+     * Overwrites the whole state of this (detached) particle
+     * with the content of the given batch entry.
+     *
+     * @param b
+     * @param k
+     */
+    void readFrom(final ParticleBatch b, final int k)
+    {
+        final Vect3D oldCenter = oldCenter();
+        final Vect3D vel       = vel();
+        final Vect3D acc       = acc();
+        final Vect3D force     = force();
+
+        center.x = b.x[k];
+        center.y = b.y[k];
+        center.z = b.z[k];
+        oldCenter.x = b.oldX[k];
+        oldCenter.y = b.oldY[k];
+        oldCenter.z = b.oldZ[k];
+        vel.x = b.velX[k];
+        vel.y = b.velY[k];
+        vel.z = b.velZ[k];
+        acc.x = b.accX[k];
+        acc.y = b.accY[k];
+        acc.z = b.accZ[k];
+        force.x = b.forceX[k];
+        force.y = b.forceY[k];
+        force.z = b.forceZ[k];
+
+        invmass = b.invmass[k];
+        mass = b.mass[k];
+        radius = b.radius[k];
+        density = b.density[k];
+        material = b.material[k];
+    }
+
+    /**
+     * Overwrites the given batch entry with the movement state
+     * of this (detached) particle.
+     *
+     * @param b
+     * @param k
+     */
+    void writeStateTo(final ParticleBatch b, final int k)
+    {
+        final Vect3D oldCenter = oldCenter();
+        final Vect3D vel       = vel();
+        final Vect3D acc       = acc();
+        final Vect3D force     = force();
+
+        b.x[k] = center.x;
+        b.y[k] = center.y;
+        b.z[k] = center.z;
+        b.oldX[k] = oldCenter.x;
+        b.oldY[k] = oldCenter.y;
+        b.oldZ[k] = oldCenter.z;
+        b.velX[k] = vel.x;
+        b.velY[k] = vel.y;
+        b.velZ[k] = vel.z;
+        b.accX[k] = acc.x;
+        b.accY[k] = acc.y;
+        b.accZ[k] = acc.z;
+        b.forceX[k] = force.x;
+        b.forceY[k] = force.y;
+        b.forceZ[k] = force.z;
+    }
+
+    /**
+     * Overwrites the given slot with the whole state
+     * of this (detached) particle.
+     *
+     * @param s
+     * @param i
+     */
+    void writeTo(final ParticleStore s, final int i)
+    {
+        writeStateTo(s, i);
+
+        s.invmass[i] = invmass;
+        s.mass[i] = mass;
+        s.radius[i] = radius;
+        s.density[i] = density;
+        s.material[i] = material;
+    }
+
+    /**
+     * Overwrites the given slot with the movement state
+     * of this (detached) particle: positions, velocity, acceleration
+     * and force.
+     *
+     * @param s
+     * @param i
+     */
+    void writeStateTo(final ParticleStore s, final int i)
+    {
+        s.pos.set(i, center);
+
+        if (oldCenter == null)
+            s.old.set(i, center);
+        else
+            s.old.set(i, oldCenter);
+
+        if (vel == null)
+            s.vel.set(i, 0.0, 0.0, 0.0);
+        else
+            s.vel.set(i, vel);
+
+        if (acc == null)
+            s.acc.set(i, 0.0, 0.0, 0.0);
+        else
+            s.acc.set(i, acc);
+
+        if (force == null)
+            s.force.set(i, 0.0, 0.0, 0.0);
+        else
+            s.force.set(i, force);
+    }
+
+    private Vect3D oldCenter()
+    {
+        if (oldCenter == null)
+            oldCenter = new Vect3D(center);
+
+        return oldCenter;
+    }
+
+    private Vect3D vel()
+    {
+        if (vel == null)
+            vel = new Vect3D();
+
+        return vel;
+    }
+
+    private Vect3D acc()
+    {
+        if (acc == null)
+            acc = new Vect3D();
+
+        return acc;
+    }
+
+    private Vect3D force()
+    {
+        if (force == null)
+            force = new Vect3D();
+
+        return force;
     }
 
     @Override
     public String toString()
     {
-        return String.format("[%s, vel: %s, acc: %s, invmass: %f]", center, vel, acc, invmass);
+        return String.format("[%s, vel: %s, acc: %s, invmass: %f]",
+                             getCenter(),
+                             getVelocity(),
+                             getAcceleration(),
+                             getInvMass());
     }
 }
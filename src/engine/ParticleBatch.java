@@ -0,0 +1,202 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import utils.Vect3D;
+
+/**
+ * The state of a group of particles being stepped together, one primitive
+ * array per property: entry <i>k</i> of every array is the <i>k</i>-th particle of the batch.
+ * It's handed to {@link environment.World#process(ParticleBatch, int, int, double)}, so that
+ * a world can process a whole range of particles in a tight loop, and compute the terms they
+ * share (like gravity) only once.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * A world can change positions, velocities and forces, which are
+ * read back by the {@link Simulator}: all other arrays are read-only.
+ * {@link #get(int)} and {@link #set(int, Particle)} convert an entry to and from a {@link Particle},
+ * for the code that only works on single particles.
+ *
+ * @author Fabio Ticconi
+ */
+public final class ParticleBatch
+{
+    // position
+    public final double[] x;
+    public final double[] y;
+    public final double[] z;
+    // position at the previous step
+    public final double[] oldX;
+    public final double[] oldY;
+    public final double[] oldZ;
+    public final double[] velX;
+    public final double[] velY;
+    public final double[] velZ;
+    // accumulated force
+    public final double[] forceX;
+    public final double[] forceY;
+    public final double[] forceZ;
+    public final double[] mass;
+    public final double[] invmass;
+    public final double[] radius;
+    public final double[] density;
+    public final int[]    material;
+
+    // acceleration, only used by the simulator between the two halves of a step
+    final double[] accX;
+    final double[] accY;
+    final double[] accZ;
+    // position at the start of the step
+    final double[] startX;
+    final double[] startY;
+    final double[] startZ;
+    // store slot of each entry
+    final int[]    slots;
+    // scratch vector for the simulator
+    final Vect3D   point;
+
+    int size;
+
+    // detached particle returned by get
+    private final Particle particle;
+
+    ParticleBatch(final int capacity)
+    {
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        oldX = new double[capacity];
+        oldY = new double[capacity];
+        oldZ = new double[capacity];
+        velX = new double[capacity];
+        velY = new double[capacity];
+        velZ = new double[capacity];
+        forceX = new double[capacity];
+        forceY = new double[capacity];
+        forceZ = new double[capacity];
+        mass = new double[capacity];
+        invmass = new double[capacity];
+        radius = new double[capacity];
+        density = new double[capacity];
+        material = new int[capacity];
+
+        accX = new double[capacity];
+        accY = new double[capacity];
+        accZ = new double[capacity];
+        startX = new double[capacity];
+        startY = new double[capacity];
+        startZ = new double[capacity];
+        slots = new int[capacity];
+        point = new Vect3D();
+
+        size = 0;
+
+        particle = new Particle(new Vect3D());
+    }
+
+    /**
+     * @return the number of particles in the batch
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    boolean isFull()
+    {
+        return size == slots.length;
+    }
+
+    /**
+     * Loads n consecutive particles of the store at the end of the batch,
+     * ready to be stepped: acceleration and force are not loaded, as each
+     * step starts by resetting them.
+     *
+     * @param s the store
+     * @param i first slot
+     * @param n number of particles, at most the free entries of the batch
+     */
+    void add(final ParticleStore s, final int i, final int n)
+    {
+        final int k = size;
+
+        s.pos.read(i, x, y, z, k, n);
+        s.old.read(i, oldX, oldY, oldZ, k, n);
+        s.vel.read(i, velX, velY, velZ, k, n);
+
+        System.arraycopy(s.mass, i, mass, k, n);
+        System.arraycopy(s.invmass, i, invmass, k, n);
+        System.arraycopy(s.radius, i, radius, k, n);
+        System.arraycopy(s.density, i, density, k, n);
+        System.arraycopy(s.material, i, material, k, n);
+
+        for (int j = 0; j < n; j++)
+            slots[k + j] = i + j;
+
+        size += n;
+    }
+
+    /**
+     * Writes the movement state of n consecutive entries back to the
+     * store. Their slots must be consecutive as well.
+     *
+     * @param s the store
+     * @param k first entry
+     * @param n number of entries
+     */
+    void write(final ParticleStore s, final int k, final int n)
+    {
+        final int i = slots[k];
+
+        s.pos.write(i, x, y, z, k, n);
+        s.old.write(i, oldX, oldY, oldZ, k, n);
+        s.vel.write(i, velX, velY, velZ, k, n);
+        s.acc.write(i, accX, accY, accZ, k, n);
+        s.force.write(i, forceX, forceY, forceZ, k, n);
+    }
+
+    /**
+     * Returns a detached particle with the state of the given entry. The same
+     * particle object is returned at every call, so it's only valid until the next one:
+     * changes to it must be written back with {@link #set(int, Particle)}.<br />
+     * O(1)
+     *
+     * @param k entry
+     * @return the particle
+     */
+    public Particle get(final int k)
+    {
+        particle.readFrom(this, k);
+
+        return particle;
+    }
+
+    /**
+     * Writes the positions, velocity and force of the given
+     * (detached) particle to an entry.<br />
+     * O(1)
+     *
+     * @param k entry
+     * @param p a particle returned by {@link #get(int)}
+     */
+    public void set(final int k, final Particle p)
+    {
+        p.writeStateTo(this, k);
+    }
+}
@@ -0,0 +1,660 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import utils.Coords;
+
+import java.util.Arrays;
+import java.util.function.Predicate;
+
+/**
+ * Structure-of-arrays storage for the particles of a {@link Simulator}.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Every property lives in its own primitive column, and particle <i>i</i>
+ * is simply index <i>i</i> of every column. The update loop can then stream
+ * through memory instead of chasing five {@link utils.Vect3D} objects per particle.
+ * The {@link Particle} objects added by the user become lightweight views on
+ * a slot of this store.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The movement state (positions, velocity, acceleration and force) can be kept in single
+ * precision, see {@link Vect3DColumn}.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Active particles are always compacted in the range [0, size), so slots
+ * change when particles are removed. Each particle also gets a stable
+ * <b>handle</b>, made of a recycled id (low 32 bits) and a generation
+ * (high 32 bits) that is bumped every time the id is freed: a handle to a removed
+ * particle is therefore detected as stale even if its id has been reused.
+ *
+ * @author Fabio Ticconi
+ */
+class ParticleStore
+{
+    int size;
+
+    // movement state, in double or single precision
+    Vect3DColumn pos;
+    // position at the previous step
+    Vect3DColumn old;
+    Vect3DColumn vel;
+    Vect3DColumn acc;
+    // accumulated force
+    Vect3DColumn force;
+
+    double[] invmass;
+    double[] mass;
+    double[] radius;
+    double[] density;
+    // surface properties, see environment.Materials
+    int[]    material;
+
+    // consecutive steps spent below the sleep thresholds
+    int[] calm;
+    // steps needed to fall asleep, 0 if sleeping is disabled
+    int   sleepSteps;
+
+    // activation tier, see ActivationRegion
+    byte[] tier;
+
+    // hash of each particle's state and their sum, only kept up to date while hashing
+    long[]  hash;
+    long    checksum;
+    boolean hashing;
+
+    // the views currently attached to each slot
+    Particle[] particles;
+
+    // handle bookkeeping: slot -> id, id -> slot, id -> generation
+    int[] ids;
+    int[] slots;
+    int[] generations;
+    // stack of ids freed by removed particles
+    int[] freeIds;
+    int   freeCount;
+    // first id never used
+    int   nextId;
+
+    // bumped whenever particles are added, removed or change slot
+    int layout;
+
+    // scratch space of reorder, allocated at the first use
+    private long[]     keys;
+    private int[]      order;
+    private double[]   doubles;
+    private int[]      ints;
+    private Particle[] views;
+
+    ParticleStore(final int capacity)
+    {
+        pos = Vect3DColumn.create(false, capacity);
+        old = Vect3DColumn.create(false, capacity);
+        vel = Vect3DColumn.create(false, capacity);
+        acc = Vect3DColumn.create(false, capacity);
+        force = Vect3DColumn.create(false, capacity);
+
+        invmass = new double[capacity];
+        mass = new double[capacity];
+        radius = new double[capacity];
+        density = new double[capacity];
+        material = new int[capacity];
+
+        calm = new int[capacity];
+        tier = new byte[capacity];
+
+        hash = new long[capacity];
+        checksum = 0L;
+        hashing = false;
+
+        particles = new Particle[capacity];
+
+        ids = new int[capacity];
+        slots = new int[capacity];
+        generations = new int[capacity];
+        freeIds = new int[capacity];
+        freeCount = 0;
+        nextId = 0;
+
+        size = 0;
+    }
+
+    int capacity()
+    {
+        return particles.length;
+    }
+
+    /**
+     * Resizes all columns to the given capacity,
+     * keeping the active particles.
+     *
+     * @param capacity new length of the columns
+     */
+    void resize(final int capacity)
+    {
+        // the capacity is the length of the views, grown last: if the heap runs
+        // out half way, the store keeps its old capacity and stays consistent
+        pos.resize(capacity);
+        old.resize(capacity);
+        vel.resize(capacity);
+        acc.resize(capacity);
+        force.resize(capacity);
+
+        invmass = Arrays.copyOf(invmass, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        radius = Arrays.copyOf(radius, capacity);
+        density = Arrays.copyOf(density, capacity);
+        material = Arrays.copyOf(material, capacity);
+
+        calm = Arrays.copyOf(calm, capacity);
+        tier = Arrays.copyOf(tier, capacity);
+
+        hash = Arrays.copyOf(hash, capacity);
+
+        ids = Arrays.copyOf(ids, capacity);
+        slots = Arrays.copyOf(slots, capacity);
+        generations = Arrays.copyOf(generations, capacity);
+        freeIds = Arrays.copyOf(freeIds, capacity);
+
+        particles = Arrays.copyOf(particles, capacity);
+    }
+
+    boolean isSinglePrecision()
+    {
+        return pos.isSingle();
+    }
+
+    /**
+     * Switches the movement columns to single (float) or double
+     * precision, converting the state of the active particles.
+     *
+     * @param single true for single precision
+     */
+    void setSinglePrecision(final boolean single)
+    {
+        if (single == pos.isSingle())
+            return;
+
+        pos = convert(pos, single);
+        old = convert(old, single);
+        vel = convert(vel, single);
+        acc = convert(acc, single);
+        force = convert(force, single);
+
+        // the state might have been rounded
+        if (hashing)
+            rehashAll();
+    }
+
+    private Vect3DColumn convert(final Vect3DColumn c, final boolean single)
+    {
+        final Vect3DColumn n = Vect3DColumn.create(single, capacity());
+        n.copy(c, size);
+
+        return n;
+    }
+
+    /**
+     * Checks if the particle in the given slot is
+     * asleep, and thus should not be stepped.
+     *
+     * @param i slot
+     * @return true if asleep
+     */
+    boolean asleep(final int i)
+    {
+        return sleepSteps > 0 && calm[i] >= sleepSteps;
+    }
+
+    /**
+     * Wakes up the particle in the given slot, and makes it
+     * active until it's stepped and classified again.
+     *
+     * @param i slot
+     */
+    void wake(final int i)
+    {
+        calm[i] = 0;
+        tier[i] = ActivationRegion.ACTIVE;
+    }
+
+    /**
+     * Starts or stops keeping the checksum of the particles' state
+     * up to date. When started, all particles are hashed.
+     *
+     * @param hashing
+     */
+    void setHashing(final boolean hashing)
+    {
+        this.hashing = hashing;
+
+        if (hashing)
+            rehashAll();
+        else
+            checksum = 0L;
+    }
+
+    /**
+     * Computes the hash of the state of the particle in the given slot: its id,
+     * positions, velocity, acceleration, inverse mass, radius and material,
+     * taken bit by bit.<br />
+     * O(1)
+     *
+     * @param i slot
+     * @return the hash
+     */
+    long hash(final int i)
+    {
+        long h = ids[i];
+
+        h = mix(h, pos.x(i));
+        h = mix(h, pos.y(i));
+        h = mix(h, pos.z(i));
+        h = mix(h, old.x(i));
+        h = mix(h, old.y(i));
+        h = mix(h, old.z(i));
+        h = mix(h, vel.x(i));
+        h = mix(h, vel.y(i));
+        h = mix(h, vel.z(i));
+        h = mix(h, acc.x(i));
+        h = mix(h, acc.y(i));
+        h = mix(h, acc.z(i));
+        h = mix(h, invmass[i]);
+        h = mix(h, radius[i]);
+        h = mix(h, material[i]);
+
+        // final avalanche (from MurmurHash3), so that the sum of
+        // the hashes depends on all the bits of each
+        h ^= h >>> 33;
+        h *= 0xFF51AFD7ED558CCDL;
+        h ^= h >>> 33;
+        h *= 0xC4CEB9FE1A85EC53L;
+        h ^= h >>> 33;
+
+        return h;
+    }
+
+    private static long mix(final long h, final double v)
+    {
+        final long m = (h ^ Double.doubleToRawLongBits(v)) * 0x9E3779B97F4A7C15L;
+
+        return m ^ (m >>> 29);
+    }
+
+    /**
+     * Updates the hash of the given slot, and the checksum,
+     * after its particle has been changed outside of a step.
+     *
+     * @param i slot
+     */
+    void rehash(final int i)
+    {
+        if (!hashing)
+            return;
+
+        final long h = hash(i);
+
+        checksum += h - hash[i];
+        hash[i] = h;
+    }
+
+    private void rehashAll()
+    {
+        long sum = 0L;
+
+        for (int i = 0; i < size; i++)
+        {
+            hash[i] = hash(i);
+            sum += hash[i];
+        }
+
+        checksum = sum;
+    }
+
+    /**
+     * Returns the handle of the particle in the given slot.
+     *
+     * @param i slot
+     * @return the handle
+     */
+    long handle(final int i)
+    {
+        final int id = ids[i];
+
+        return ((long) generations[id] << 32) | (id & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Resolves a handle to the current slot of its particle.<br />
+     * O(1)
+     *
+     * @param handle a handle previously returned by {@link #handle(int)}
+     * @return the slot, or -1 if the handle is stale or invalid
+     */
+    int slot(final long handle)
+    {
+        final int id = (int) handle;
+
+        if (id < 0 || id >= nextId || generations[id] != (int) (handle >>> 32))
+            return -1;
+
+        return slots[id];
+    }
+
+    /**
+     * Copies the state of a detached particle into the
+     * first free slot and attaches the particle to it.
+     * The caller must make sure there is enough capacity.
+     *
+     * @param p a detached {@link Particle}
+     * @return the slot of the particle
+     */
+    int add(final Particle p)
+    {
+        final int i = size++;
+        layout++;
+
+        final int id = freeCount > 0 ? freeIds[--freeCount] : nextId++;
+        ids[i] = id;
+        slots[id] = i;
+
+        p.writeTo(this, i);
+        calm[i] = 0;
+        tier[i] = ActivationRegion.ACTIVE;
+
+        if (hashing)
+        {
+            hash[i] = hash(i);
+            checksum += hash[i];
+        }
+
+        particles[i] = p;
+        p.attach(this, i);
+
+        return i;
+    }
+
+    /**
+     * Detaches the particle in slot i, and fills the
+     * hole with the last particle.
+     *
+     * @param i slot to be freed
+     */
+    void remove(final int i)
+    {
+        final Particle p = particles[i];
+
+        p.detach();
+        free(ids[i]);
+
+        if (hashing)
+            checksum -= hash[i];
+
+        final int last = --size;
+        layout++;
+
+        if (i != last)
+            move(last, i);
+
+        particles[last] = null;
+    }
+
+    /**
+     * Detaches all particles matching the predicate, compacting
+     * the survivors in a single linear sweep. Unlike {@link #remove(int)},
+     * the relative order of the surviving particles is kept.
+     *
+     * @param filter
+     * @return the number of removed particles
+     */
+    int removeIf(final Predicate<Particle> filter)
+    {
+        int next = 0;
+
+        for (int i = 0; i < size; i++)
+        {
+            final Particle p = particles[i];
+
+            if (filter.test(p))
+            {
+                p.detach();
+                free(ids[i]);
+
+                if (hashing)
+                    checksum -= hash[i];
+            }
+            else
+            {
+                if (i != next)
+                    move(i, next);
+
+                next++;
+            }
+        }
+
+        final int removed = size - next;
+
+        Arrays.fill(particles, next, size, null);
+        size = next;
+        layout++;
+
+        return removed;
+    }
+
+    /**
+     * Detaches all particles.
+     */
+    void clear()
+    {
+        for (int i = 0; i < size; i++)
+        {
+            particles[i].detach();
+            particles[i] = null;
+            free(ids[i]);
+        }
+
+        size = 0;
+        checksum = 0L;
+        layout++;
+    }
+
+    /**
+     * Invalidates all handles using this id,
+     * and makes it available again.
+     *
+     * @param id
+     */
+    private void free(final int id)
+    {
+        generations[id]++;
+        slots[id] = -1;
+        freeIds[freeCount++] = id;
+    }
+
+    /**
+     * Copies every column of slot "from" into slot "to",
+     * and re-points the view.
+     *
+     * @param from
+     * @param to
+     */
+    private void move(final int from, final int to)
+    {
+        pos.move(from, to);
+        old.move(from, to);
+        vel.move(from, to);
+        acc.move(from, to);
+        force.move(from, to);
+
+        invmass[to] = invmass[from];
+        mass[to] = mass[from];
+        radius[to] = radius[from];
+        density[to] = density[from];
+        material[to] = material[from];
+
+        calm[to] = calm[from];
+        tier[to] = tier[from];
+        hash[to] = hash[from];
+
+        final int id = ids[from];
+        ids[to] = id;
+        slots[id] = to;
+
+        final Particle p = particles[from];
+        particles[to] = p;
+        p.attach(this, to);
+    }
+
+    /**
+     * Sorts the particles along a Morton (Z-order) curve through their bounding box, so that
+     * particles close in space get close slots: stepping them in order then touches the
+     * same {@link collision.BroadPhase} cells and {@link environment.World} regions over and over,
+     * instead of jumping around memory. Handles stay valid, and the views are re-pointed.
+     * <br />
+     * O(N log N)
+     *
+     * @param bits resolution of the curve: bits per axis, at most 10
+     */
+    void reorder(final int bits)
+    {
+        final int n = size;
+
+        if (n < 2)
+            return;
+
+        if (keys == null || keys.length < n)
+        {
+            final int capacity = capacity();
+
+            keys = new long[capacity];
+            order = new int[capacity];
+            doubles = new double[capacity];
+            ints = new int[capacity];
+            views = new Particle[capacity];
+        }
+
+        double minX = Double.POSITIVE_INFINITY, minY = Double.POSITIVE_INFINITY, minZ = Double.POSITIVE_INFINITY;
+        double maxX = Double.NEGATIVE_INFINITY, maxY = Double.NEGATIVE_INFINITY, maxZ = Double.NEGATIVE_INFINITY;
+
+        for (int i = 0; i < n; i++)
+        {
+            final double x = pos.x(i);
+            final double y = pos.y(i);
+            final double z = pos.z(i);
+
+            if (x < minX) minX = x;
+            if (x > maxX) maxX = x;
+            if (y < minY) minY = y;
+            if (y > maxY) maxY = y;
+            if (z < minZ) minZ = z;
+            if (z > maxZ) maxZ = z;
+        }
+
+        // quantise each axis of the bounding box in 2^bits cells
+        final double cells  = (1 << bits) - 1;
+        final double scaleX = maxX > minX ? cells / (maxX - minX) : 0.0;
+        final double scaleY = maxY > minY ? cells / (maxY - minY) : 0.0;
+        final double scaleZ = maxZ > minZ ? cells / (maxZ - minZ) : 0.0;
+
+        // key in the high bits, slot in the low ones:
+        // sorting the longs sorts the slots by key
+        for (int i = 0; i < n; i++)
+        {
+            final long key = Coords.makeMortonKey((int) ((pos.x(i) - minX) * scaleX),
+                                                  (int) ((pos.y(i) - minY) * scaleY),
+                                                  (int) ((pos.z(i) - minZ) * scaleZ));
+
+            keys[i] = key << 32 | i;
+        }
+
+        Arrays.sort(keys, 0, n);
+
+        for (int i = 0; i < n; i++)
+            order[i] = (int) keys[i];
+
+        pos.permute(order, n, doubles);
+        old.permute(order, n, doubles);
+        vel.permute(order, n, doubles);
+        acc.permute(order, n, doubles);
+        force.permute(order, n, doubles);
+
+        permute(invmass, order, n, doubles);
+        permute(mass, order, n, doubles);
+        permute(radius, order, n, doubles);
+        permute(density, order, n, doubles);
+
+        permute(material, order, n, ints);
+        permute(calm, order, n, ints);
+        permute(ids, order, n, ints);
+
+        for (int i = 0; i < n; i++)
+            ints[i] = tier[order[i]];
+        for (int i = 0; i < n; i++)
+            tier[i] = (byte) ints[i];
+
+        // the order is known, so the keys can be reused (the checksum doesn't change)
+        for (int i = 0; i < n; i++)
+            keys[i] = hash[order[i]];
+        System.arraycopy(keys, 0, hash, 0, n);
+
+        for (int i = 0; i < n; i++)
+            views[i] = particles[order[i]];
+
+        for (int i = 0; i < n; i++)
+        {
+            final Particle p = views[i];
+
+            particles[i] = p;
+            p.attach(this, i);
+            slots[ids[i]] = i;
+        }
+
+        Arrays.fill(views, 0, n, null);
+        layout++;
+    }
+
+    /**
+     * Rearranges the first n values, so that value i
+     * becomes the one previously at index order[i].
+     *
+     * @param a       the column
+     * @param order   the old index of each value
+     * @param n       number of values
+     * @param scratch at least n long
+     */
+    static void permute(final double[] a, final int[] order, final int n, final double[] scratch)
+    {
+        for (int i = 0; i < n; i++)
+            scratch[i] = a[order[i]];
+
+        System.arraycopy(scratch, 0, a, 0, n);
+    }
+
+    static void permute(final int[] a, final int[] order, final int n, final int[] scratch)
+    {
+        for (int i = 0; i < n; i++)
+            scratch[i] = a[order[i]];
+
+        System.arraycopy(scratch, 0, a, 0, n);
+    }
+}
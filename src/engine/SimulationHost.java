@@ -0,0 +1,433 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BiConsumer;
+
+/**
+ * Runs many independent {@link Simulator} instances ("rooms"), each at its own tick rate,
+ * on a shared work-stealing {@link ForkJoinPool} instead of one thread per room.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * A single scheduler thread keeps the rooms ordered by the deadline of their next tick, and
+ * moves the due ones to a ready queue, drained by up to <i>parallelism</i> tasks on the pool.
+ * A tick is a single {@link Simulator#update(double)} with the room's fixed timestep, so
+ * a room never holds a worker for longer than one step.
+ * <p>
+ * Fairness: among the due rooms, the one with the lowest recent load (the average fraction of its tick
+ * period spent ticking) runs first. An overloaded room is therefore only ticked with the time
+ * the others leave free, while a single slow tick is soon forgotten. In addition, a room whose tick
+ * takes longer than its period backs off for a few times that duration, so that even when the pool isn't
+ * saturated it can only hold a fraction of a worker.
+ * A room that falls behind can only be one tick late: the older ticks are dropped, and counted,
+ * rather than run in a burst.
+ * <p>
+ * Each room's simulator must only be used by the host while the room is added:
+ * other threads can still mutate it through its command queue (see {@link Simulator#enqueue}),
+ * and its serial mode should be used (see {@link Simulator#setParallelism(int)}).
+ *
+ * @author Fabio Ticconi
+ */
+public class SimulationHost
+{
+    // longest time the scheduler sleeps, so that rooms rescheduled
+    // while it sleeps are picked up with little delay
+    private static final long   MAX_WAIT        = TimeUnit.MILLISECONDS.toNanos(1);
+    // weight of the last tick in a room's load
+    private static final double LOAD_SMOOTHING  = 0.1;
+    // after a tick longer than its period, a room waits this many times the
+    // tick duration: it can't use more than 1 / (1 + OVERRUN_BACKOFF) of a worker
+    private static final long   OVERRUN_BACKOFF = 4L;
+
+    private final    ForkJoinPool                pool;
+    private final    int                         parallelism;
+    private final    Thread                      scheduler;
+    // waiting rooms by deadline, only used by the scheduler thread
+    private final    PriorityQueue<Room>         queue;
+    private          long                        sequence;
+    // due rooms by load
+    private final    PriorityBlockingQueue<Room> ready;
+    // tasks currently draining the ready queue
+    private final    AtomicInteger               runners;
+    private final    Runnable                    runner;
+    // rooms to be put back in the queue, after being added or ticked
+    private final    ConcurrentLinkedQueue<Room> incoming;
+    private final    AtomicInteger               rooms;
+    private volatile boolean                     running;
+    // told about the rooms whose tick failed (see setFailureHandler)
+    private volatile BiConsumer<Room, Throwable> failureHandler;
+
+    /**
+     * Creates the host and starts its scheduler.
+     *
+     * @param parallelism number of threads running the rooms' ticks
+     */
+    public SimulationHost(final int parallelism)
+    {
+        this.parallelism = Math.max(1, parallelism);
+
+        pool = new ForkJoinPool(this.parallelism, ForkJoinPool.defaultForkJoinWorkerThreadFactory, null, true);
+        queue = new PriorityQueue<>(1024, (a, b) ->
+        {
+            final long d = a.deadline - b.deadline;
+
+            if (d != 0L)
+                return d < 0L ? -1 : 1;
+
+            return Long.compare(a.sequence, b.sequence);
+        });
+        ready = new PriorityBlockingQueue<>(1024, (a, b) ->
+        {
+            final int c = Double.compare(a.load, b.load);
+
+            if (c != 0)
+                return c;
+
+            return Long.compare(a.sequence, b.sequence);
+        });
+        runners = new AtomicInteger();
+        runner = this::runReady;
+        incoming = new ConcurrentLinkedQueue<>();
+        rooms = new AtomicInteger();
+        sequence = 0L;
+
+        running = true;
+        scheduler = new Thread(this::schedule, "simulation-host");
+        scheduler.setDaemon(true);
+        scheduler.start();
+    }
+
+    /**
+     * Adds a room, with its first tick due immediately.
+     * Can be called from any thread.
+     *
+     * @param simulator the room's simulation
+     * @param tickRate  ticks per second
+     * @return the room, to read its statistics or remove it
+     */
+    public Room add(final Simulator simulator, final double tickRate)
+    {
+        final Room r = new Room(this, simulator, tickRate);
+
+        rooms.incrementAndGet();
+        r.deadline = System.nanoTime();
+        reschedule(r);
+
+        return r;
+    }
+
+    /**
+     * Removes a room: it won't be ticked anymore, although a tick
+     * already in progress completes. Can be called from any thread.
+     *
+     * @param r
+     */
+    public void remove(final Room r)
+    {
+        if (r.host != this)
+            return;
+
+        synchronized (r)
+        {
+            if (r.removed)
+                return;
+
+            r.removed = true;
+        }
+
+        rooms.decrementAndGet();
+    }
+
+    /**
+     * Sets the handler called when a room's tick throws. The room is removed before the
+     * handler is called, on the worker thread that ran the tick, and the exception is
+     * also kept by the room (see {@link Room#getFailure()}).
+     *
+     * @param handler receives the room and the exception, or null for none
+     */
+    public void setFailureHandler(final BiConsumer<Room, Throwable> handler)
+    {
+        failureHandler = handler;
+    }
+
+    /**
+     * @return the number of rooms currently added
+     */
+    public int getRoomCount()
+    {
+        return rooms.get();
+    }
+
+    /**
+     * Stops scheduling ticks, and waits for those
+     * in progress to complete.
+     *
+     * @throws InterruptedException
+     */
+    public void shutdown() throws InterruptedException
+    {
+        running = false;
+        LockSupport.unpark(scheduler);
+        scheduler.join();
+
+        pool.shutdown();
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+    }
+
+    private void reschedule(final Room r)
+    {
+        incoming.offer(r);
+    }
+
+    /**
+     * Main loop of the scheduler thread.
+     */
+    private void schedule()
+    {
+        Room r;
+
+        while (running)
+        {
+            while ((r = incoming.poll()) != null)
+            {
+                if (r.removed)
+                    continue;
+
+                // equal deadlines are served in arrival order
+                r.sequence = sequence++;
+                queue.add(r);
+            }
+
+            final long now = System.nanoTime();
+
+            while ((r = queue.peek()) != null && r.deadline - now <= 0L)
+            {
+                queue.poll();
+
+                if (!r.removed)
+                    ready.add(r);
+            }
+
+            // runners stop when the ready queue is empty, so we might need new ones
+            while (!ready.isEmpty() && runners.get() < parallelism)
+            {
+                runners.incrementAndGet();
+                pool.execute(runner);
+            }
+
+            LockSupport.parkNanos(this, r == null ? MAX_WAIT : Math.min(r.deadline - now, MAX_WAIT));
+        }
+    }
+
+    /**
+     * Ticks the ready rooms until there are none left.
+     */
+    private void runReady()
+    {
+        Room r;
+
+        while (running && (r = ready.poll()) != null)
+        {
+            if (!r.removed)
+                r.run();
+        }
+
+        runners.decrementAndGet();
+    }
+
+    /**
+     * A {@link Simulator} ticked by a {@link SimulationHost}, with its statistics.
+     * The statistics can be read from any thread.
+     */
+    public static final class Room
+    {
+        private final SimulationHost host;
+        private final Simulator      simulator;
+        private final double         dt;
+        private final long           period;
+
+        // only touched by the scheduler thread while queued,
+        // and by the worker thread while ticking
+        private long   deadline;
+        private long   sequence;
+        // moving average of the fraction of the period spent ticking
+        private double load;
+
+        private volatile boolean removed;
+
+        private volatile long      ticks;
+        private volatile long      overruns;
+        private volatile long      droppedTicks;
+        private volatile long      busyNanos;
+        private volatile long      maxTickNanos;
+        private volatile Throwable failure;
+
+        private Room(final SimulationHost host, final Simulator simulator, final double tickRate)
+        {
+            this.host = host;
+            this.simulator = simulator;
+
+            dt = 1.0 / tickRate;
+            period = Math.max(1L, (long) (1000000000.0 / tickRate));
+        }
+
+        private void run()
+        {
+            final long start = System.nanoTime();
+
+            try
+            {
+                simulator.update(dt);
+            } catch (final Throwable t)
+            {
+                // a broken room is not ticked anymore
+                failure = t;
+                host.remove(this);
+
+                final BiConsumer<Room, Throwable> handler = host.failureHandler;
+
+                if (handler != null)
+                    handler.accept(this, t);
+
+                return;
+            }
+
+            final long end  = System.nanoTime();
+            final long took = end - start;
+
+            ticks++;
+            busyNanos += took;
+            if (took > maxTickNanos)
+                maxTickNanos = took;
+            if (took > period)
+                overruns++;
+
+            load += LOAD_SMOOTHING * ((double) took / period - load);
+
+            long next = deadline + period;
+
+            // if we are more than a tick late, the missed ticks are dropped:
+            // the next one is still due immediately, but nothing older
+            final long late = (end - next) / period;
+            if (late > 0L)
+            {
+                droppedTicks += late;
+                next += late * period;
+            }
+
+            // a room that can't keep up with its own tick rate backs off, so that it
+            // doesn't take more than a fraction of a worker
+            if (took > period)
+            {
+                final long skip = (end + OVERRUN_BACKOFF * took - next + period - 1) / period;
+
+                if (skip > 0L)
+                {
+                    droppedTicks += skip;
+                    next += skip * period;
+                }
+            }
+
+            deadline = next;
+
+            if (!removed)
+                host.reschedule(this);
+        }
+
+        public Simulator getSimulator()
+        {
+            return simulator;
+        }
+
+        /**
+         * @return the fixed timestep of each tick, in seconds
+         */
+        public double getTimestep()
+        {
+            return dt;
+        }
+
+        public boolean isRemoved()
+        {
+            return removed;
+        }
+
+        /**
+         * @return ticks completed so far
+         */
+        public long getTicks()
+        {
+            return ticks;
+        }
+
+        /**
+         * @return ticks that took longer than the tick period
+         */
+        public long getOverruns()
+        {
+            return overruns;
+        }
+
+        /**
+         * @return ticks skipped because the room was running late
+         */
+        public long getDroppedTicks()
+        {
+            return droppedTicks;
+        }
+
+        /**
+         * @return total time spent ticking, in nanoseconds
+         */
+        public long getBusyNanos()
+        {
+            return busyNanos;
+        }
+
+        /**
+         * @return duration of the longest tick, in nanoseconds
+         */
+        public long getMaxTickNanos()
+        {
+            return maxTickNanos;
+        }
+
+        /**
+         * @return the exception that made the room stop, or null
+         */
+        public Throwable getFailure()
+        {
+            return failure;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "Room [ticks=" + ticks + ", overruns=" + overruns + ", dropped=" + droppedTicks + ", busy=" +
+                   busyNanos / 1000000L + "ms, max=" + maxTickNanos / 1000L + "us]";
+        }
+    }
+}
@@ -19,258 +19,1827 @@ package engine;
 import collision.BroadPhase;
 import collision.Static;
 import collision.broadphase.NullBroadPhase;
+import environment.Fluid;
+import environment.ForceGenerator;
 import environment.Forces;
+import environment.Interaction;
 import environment.World;
 import environment.world.NullWorld;
 import utils.ImmutableVect3D;
 import utils.Vect3D;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 /**
  * Entry point of this engine. Simulates the movement of all
- * added particles and keeps
+ * added particles and keeps their state in a structure-of-arrays
+ * {@link ParticleStore}.
  *
  * @author Fabio Ticconi
  */
 public class Simulator
 {
     public static final boolean VERBOSE       = false;
+    // never a valid particle handle
+    public static final long    NO_HANDLE     = -1L;
+    // resolution of the reorder curve, per axis
+    private static final int    MORTON_BITS   = 10;
+    // particles handed together to the world, see ParticleBatch
+    private static final int    BATCH_SIZE    = 32;
     // initial maximum number of particles, used to
-    // initialise the array
+    // initialise the store
     private             int     MAX_PARTICLES = 1000;
-    private int        NUM_OF_PARTICLES;
-    private Particle[] particles;
-    private World      world;
-    private BroadPhase collider;
+    private final ParticleStore       particles;
+    // scratch state used by the calling thread in serial mode
+    private final Cursor              cursor;
+    // scratch state of each worker thread in parallel mode
+    private final ThreadLocal<Cursor> cursors;
+    private       World               world;
+    private       BroadPhase          collider;
+    private       Integrator          integrator;
+
+    // parallel stepping, disabled when pool is null
+    private ForkJoinPool pool;
+    private int          chunkSize;
+
+    // squared sleep thresholds (see setSleeping)
+    private double sleepSpeed2;
+    private double sleepForce2;
+
+    // adaptive substepping (see setSubstepping)
+    private double substepFraction;
+    private int    maxParticleSubsteps;
+
+    // fixed timestep driver (see advance)
+    private double fixedDt;
+    private long   stepNanos;
+    private int    maxSubSteps;
+    private long   accumulator;
+
+    // steps taken so far, and the simulation time they covered
+    private long   stepCount;
+    private double time;
+
+    // steps between spatial reorders of the store, 0 to disable (see setReorderInterval)
+    private int reorderInterval;
+
+    // level of detail (see addActivationRegion), disabled when there are no regions
+    private ActivationRegion[] regions;
+    private double             bandWidth;
+    private int                bandInterval;
+    // sum of the regions' versions at the last classification
+    private long               regionsVersion;
+    private boolean            regionsChanged;
+
+    private Emitter[] emitters;
+
+    // user-specified forces, applied after the world's (see addForceGenerator)
+    private ForceGenerator[] generators;
+
+    // particle-particle contacts, null when disabled (see setParticleCollisions)
+    private SpatialHash  contacts;
+    // neighbour lists of the contacts, null to rebuild the hash at every step (see setNeighborSkin)
+    private NeighborList neighbors;
+
+    // forces between all particles, null when disabled (see setInteraction)
+    private BarnesHut interactions;
+    // pressure and viscosity between particles, null when disabled (see setFluid)
+    private SphSolver fluid;
+    // solved after each step
+    private final Constraints constraints;
+
+    // mutations requested by other threads, applied at the start of each step
+    private final ConcurrentLinkedQueue<Consumer<Simulator>> commands;
+
+    // asynchronous stepping (see beginUpdate)
+    private          ExecutorService     stepper;
+    private          Future<?>           pending;
+    // every buffer ever published, reused once released by all readers
+    private final    ArrayList<Snapshot> snapshots;
+    private volatile Snapshot            snapshot;
 
     public Simulator()
     {
         world = new NullWorld();
         collider = new NullBroadPhase();
+        integrator = Integrator.VELOCITY_VERLET;
+
+        particles = new ParticleStore(MAX_PARTICLES);
+        cursor = new Cursor();
+        cursors = ThreadLocal.withInitial(Cursor::new);
+
+        pool = null;
+        chunkSize = 4096;
+
+        substepFraction = 0.0;
+        maxParticleSubsteps = 1;
 
-        particles = new Particle[MAX_PARTICLES];
-        NUM_OF_PARTICLES = 0;
+        setFixedTimestep(1.0 / 60.0);
+        maxSubSteps = 5;
+        accumulator = 0L;
+
+        stepCount = 0L;
+        time = 0.0;
+        reorderInterval = 0;
+
+        regions = new ActivationRegion[0];
+        bandWidth = 0.0;
+        bandInterval = 1;
+        regionsVersion = 0L;
+        regionsChanged = false;
+
+        emitters = new Emitter[0];
+
+        generators = new ForceGenerator[0];
+
+        constraints = new Constraints();
+
+        commands = new ConcurrentLinkedQueue<>();
+
+        stepper = null;
+        pending = null;
+        snapshots = new ArrayList<>(3);
+        snapshot = null;
     }
 
     public void setWorld(final World world)
     {
         this.world = world;
 
+        wakeAll();
     }
 
     public void setBroadPhase(final BroadPhase collider)
     {
         this.collider = collider;
 
+        wakeAll();
     }
 
     /**
-     * Returns the number of currently active
-     * particles.
+     * Adds a static object to the {@link BroadPhase}, waking
+     * up the sleeping particles around it.
      *
-     * @return
+     * @param s the {@link Static} to add
      */
-    public int getParticlesNumber()
+    public void addStatic(final Static s)
     {
-        return NUM_OF_PARTICLES;
+        collider.add(s);
+
+        wakeAround(s);
     }
 
     /**
-     * Adds a new particle to the simulator.<br />
-     * O(1)
+     * Removes a static object from the {@link BroadPhase}, waking
+     * up the sleeping particles around it (that might have been resting
+     * on it).
      *
-     * @param p {@link Particle} to be added
+     * @param s the {@link Static} to remove
      */
-    public void addParticle(final Particle p)
+    public void removeStatic(final Static s)
     {
-        if (p == null)
-            return;
+        collider.remove(s);
 
-        if (NUM_OF_PARTICLES >= MAX_PARTICLES)
-        {
-            MAX_PARTICLES *= 2;
+        wakeAround(s);
+    }
 
-            // TODO: check heap exception
-            particles = Arrays.copyOf(particles, MAX_PARTICLES);
-        }
+    /**
+     * Enables particle sleeping: a particle that stays below both thresholds for the given
+     * number of consecutive steps is put to sleep, and skipped by {@link #update(double)}
+     * until it is woken up. This happens when one of its setters is called, when a static object
+     * around it is added or removed through {@link #addStatic(Static)} and {@link #removeStatic(Static)},
+     * or when the world or broadphase are replaced.
+     * <p>
+     * The net force is the one that actually changed the velocity over the step
+     * (ie, mass * |dv| / dt), so a particle resting on the ground isn't kept awake by gravity.
+     *
+     * @param maxSpeed maximum speed of a resting particle
+     * @param maxForce maximum net force on a resting particle
+     * @param steps    steps at rest before sleeping, 0 or less to disable sleeping
+     */
+    public void setSleeping(final double maxSpeed, final double maxForce, final int steps)
+    {
+        sleepSpeed2 = maxSpeed * maxSpeed;
+        sleepForce2 = maxForce * maxForce;
+
+        particles.sleepSteps = Math.max(0, steps);
 
-        particles[NUM_OF_PARTICLES++] = p;
+        wakeAll();
     }
 
     /**
-     * Removes a particle from the simulator,
-     * if it was there. <br />
-     * O(N)
+     * Enables per-particle adaptive substepping, to avoid fast particles tunnelling through
+     * thin static objects without shrinking the timestep of the whole simulation.
+     * A particle that would move more than the given fraction of its radius, or of the
+     * broadphase cell size, in one step is integrated in as many smaller substeps as needed
+     * (up to the given maximum). Slower particles still take a single step.
      *
-     * @param p {@link Particle} to be removed
+     * @param fraction    fraction of the radius (or cell size) a particle can move in one (sub)step
+     * @param maxSubsteps maximum substeps per particle per step, 1 or less to disable substepping
      */
-    public void removeParticle(final Particle p)
+    public void setSubstepping(final double fraction, final int maxSubsteps)
     {
-        if (p == null)
-            return;
+        substepFraction = fraction;
+        maxParticleSubsteps = fraction > 0.0 ? Math.max(1, maxSubsteps) : 1;
+    }
 
-        for (int i = 0; i < NUM_OF_PARTICLES; i++)
-            if (particles[i] == p)
-            {
-                particles[i] = particles[--NUM_OF_PARTICLES];
-                break;
-            }
+    /**
+     * Changes the scheme used to integrate the particles' movement. The default,
+     * {@link Integrator#VELOCITY_VERLET}, evaluates the forces twice per step: the others
+     * only once, trading accuracy for about twice the throughput (see {@link Integrator}).
+     *
+     * @param integrator
+     */
+    public void setIntegrator(final Integrator integrator)
+    {
+        this.integrator = integrator;
+    }
+
+    public Integrator getIntegrator()
+    {
+        return integrator;
     }
 
     /**
-     * Removes all particles from the simulator. <br />
-     * O(1)
+     * Enables collisions between particles, which otherwise pass through each other. After
+     * all particles have been stepped, overlapping pairs are pushed apart and bounced off
+     * each other, using the bounciness of their materials. The contacts are found with a
+     * spatial hash rebuilt at every step, with cells twice as wide as the largest particle:
+     * it works best when particles have similar radii.
+     * <p>
+     * The contacts are resolved in the same way in serial and parallel mode, so the results
+     * are still bit-identical (see {@link #setParallelism(int)}). Sleeping particles don't move
+     * in a contact, unless hit faster than the sleep speed (see {@link #setSleeping(double, double, int)}).
+     *
+     * @param enabled true to resolve particle-particle contacts
      */
-    public void clearParticles()
+    public void setParticleCollisions(final boolean enabled)
+    {
+        if (!enabled)
+            contacts = null;
+        else if (contacts == null)
+            contacts = new SpatialHash();
+    }
+
+    public boolean isParticleCollisions()
     {
-        NUM_OF_PARTICLES = 0;
+        return contacts != null;
     }
 
     /**
+     * Makes particle-particle contacts (see {@link #setParticleCollisions(boolean)}) use Verlet
+     * neighbour lists: the spatial hash is rebuilt only when some particle has moved by more
+     * than half the skin, and in between the contacts are searched among the particles that
+     * were closer than the largest diameter plus the skin at the last rebuild.
      * <p>
-     * Verlet Velocity integration method, slightly modified to take into account forces dependent on velocity (eg,
-     * fluid drag). Reference (particle physics paper):
-     * http://pages.csam.montclair.edu/~yecko/ferro/papers/FerroDPD/GrootWarren_ReviewDPD_97.pdf
-     * </p>
+     * The best skin is a few times the distance a particle covers in a step: a small one means
+     * rebuilding often, a large one long lists. Adding, removing or reordering particles
+     * also forces a rebuild.
+     *
+     * @param skin margin added to the contact distance, 0 or less to rebuild the hash at every step
+     */
+    public void setNeighborSkin(final double skin)
+    {
+        neighbors = skin > 0.0 ? new NeighborList(skin) : null;
+    }
+
+    public double getNeighborSkin()
+    {
+        return neighbors == null ? 0.0 : neighbors.getSkin();
+    }
+
+    /**
+     * Makes all particles interact with each other, for example through gravitation
+     * (see {@link Interaction#gravitation(double, double)}). The forces are approximated
+     * with the Barnes-Hut method, in O(N log N): distant groups of particles act as a single
+     * particle at their centre of mass, if seen under an angle smaller than theta.
      * <p>
+     * The forces are computed once per step, with the positions at the start of the step, in
+     * parallel if enabled (see {@link #setParallelism(int)}), and the results don't depend on the
+     * number of threads.
+     *
+     * @param interaction the force between pairs of particles, or null to disable it
+     * @param theta       opening angle, in radians: 0 is exact but O(N^2), 0.5 is usually
+     *                    accurate to 1%, larger values are faster and less accurate
+     */
+    public void setInteraction(final Interaction interaction, final double theta)
+    {
+        interactions = interaction == null ? null : new BarnesHut(interaction, Math.max(0.0, theta));
+    }
+
+    public Interaction getInteraction()
+    {
+        return interactions == null ? null : interactions.getInteraction();
+    }
+
+    public double getOpeningAngle()
+    {
+        return interactions == null ? 0.0 : interactions.getTheta();
+    }
+
+    /**
+     * Makes all particles behave as a fluid, simulated with smoothed-particle hydrodynamics:
+     * particles closer than the smoothing length push each other apart when denser than the
+     * fluid at rest, and drag each other's velocity through the viscosity. The static objects
+     * still collide with the particles, so they can be used to contain the fluid.
      * <p>
-     * However, as also described here: http://gamedev.stackexchange.com/a/41917/51181 we used a lambda of 1 and
-     * re-arranged a bit to reduce the number of divisions and multiplications. Semantically is the same as the above
-     * paper.
-     * </p>
+     * The forces are computed once per step, with the state at the start of the step, in
+     * parallel if enabled (see {@link #setParallelism(int)}), and the results don't depend on the
+     * number of threads.
      *
-     * @param dt how much to advance the simulation of
+     * @param fluid the parameters of the fluid, or null to disable it
      */
-    public void update(final double dt)
+    public void setFluid(final Fluid fluid)
     {
-        // TODO: if particles will begin interacting with each other (attractors for example), this will need some
-        // modifications (updating all positions before recalculating new accelerations?)
+        this.fluid = fluid == null ? null : new SphSolver(fluid);
+    }
 
-        // halve the delta t, to save
-        // a few divisions
-        final double dt2 = dt / 2.0;
+    public Fluid getFluid()
+    {
+        return fluid == null ? null : fluid.getFluid();
+    }
 
-        Particle     p;
-        Vect3D       acc;
-        Vect3D       force;
-        Vect3D       vel;
-        final Vect3D oldpos = new Vect3D();
-        Vect3D       pos;
-        for (int i = 0; i < NUM_OF_PARTICLES; i++)
-        {
-            p = particles[i];
+    /**
+     * Returns the constraints between the particles of this simulator (distances, pins
+     * and bending, for ropes, chains and cloth), solved at the end of each step, after
+     * the particle-particle collisions. There are none at the start, and they cost
+     * nothing until some are added.
+     *
+     * @return the constraints
+     */
+    public Constraints getConstraints()
+    {
+        return constraints;
+    }
 
-            // reset the acceleration vector
-            acc = p.acc.set(ImmutableVect3D.zero);
-            // reset the force vector
-            force = p.force.set(ImmutableVect3D.zero);
+    /**
+     * Switches the storage of the particles' movement state (positions, velocity,
+     * acceleration and force) to single or double precision (the default). The existing
+     * state is converted. In single precision the memory used by those values is halved,
+     * and the API doesn't change.
+     * <p>
+     * This is only a storage option: a step is still computed in double precision, and its
+     * results are rounded to float when stored. It saves memory, not time: most of a step
+     * is spent by the world and the broadphase on batches already in cache, so steps take
+     * about as long as in double precision.
+     *
+     * @param single true for single precision (float) storage
+     */
+    public void setSinglePrecision(final boolean single)
+    {
+        particles.setSinglePrecision(single);
+    }
 
-            vel = p.vel;
+    public boolean isSinglePrecision()
+    {
+        return particles.isSinglePrecision();
+    }
 
-            // newpos will be updated in the following code,
-            // and thus update the actual particle position
-            pos = p.getCenter();
-            // save current position
-            oldpos.set(pos);
+    /**
+     * Enables the deterministic (lockstep) mode: after each step, {@link #getChecksum()} returns
+     * a 64-bit checksum of the state of all particles, so that two simulators fed the same
+     * commands can detect a desync within one step, without serializing the world.
+     * <p>
+     * The checksum is the sum (modulo 2^64) of a hash of each particle's state, taken bit by bit: it's
+     * kept up to date incrementally, only rehashing the particles that are stepped (or changed through
+     * their setters, added or removed), and the sum doesn't depend on the order the parallel tasks complete.
+     * <p>
+     * {@link #update(double)} is itself deterministic, in this mode or not, as long as its inputs are.
+     * Its result doesn't depend on the parallelism or on the chunk size (see {@link #setParallelism(int)}):
+     * each particle is integrated on its own, and where particles interact every sum has a fixed order:
+     * <ul>
+     * <li>contacts: each particle sums the corrections from the particles it overlaps in the order
+     * of the spatial hash (by bucket, then by slot), and all are applied at the end of the pass</li>
+     * <li>Barnes-Hut: the forces are summed in the order of the octree, built along a Morton curve</li>
+     * <li>fluids: densities and forces are summed over each particle's neighbour list, in its order,
+     * and each particle only writes its own values</li>
+     * <li>constraints: the colours are solved one after the other, each with the constraints in the order
+     * they were added, and no two constraints of a colour share a particle</li>
+     * <li>force generators: applied to each particle on its own, in the order they were added</li>
+     * </ul>
+     * These orders depend on the slots of the particles, though: the same particles added in a different
+     * order, or reordered at a different step (see {@link #setReorderInterval(int)}), give results that
+     * differ in the lowest bits as soon as they interact. Emitters must be seeded (see
+     * {@link Emitter#setSeed(long)}).
+     * <p>
+     * The step only uses basic arithmetic and exactly rounded functions (like {@link Math#sqrt(double)}),
+     * that give the same bits on all JVMs. For that to hold across machines:
+     * <ul>
+     * <li>custom {@link environment.World} and {@link collision.BroadPhase} implementations, and their cells,
+     * must use {@link StrictMath} instead of {@link Math} for transcendental functions (sin, exp, pow..)</li>
+     * <li>the timestep must be fixed, so {@link #update(double)} should be called directly rather than
+     * through {@link #advance(long)}, which depends on the wall clock</li>
+     * <li>commands must be enqueued in the same order on all machines (eg, from a single thread)</li>
+     * </ul>
+     * The single-precision mode can also be used, as long as all simulators use it.
+     *
+     * @param deterministic true to keep the checksum
+     */
+    public void setDeterministic(final boolean deterministic)
+    {
+        particles.setHashing(deterministic);
+    }
 
-            if (VERBOSE)
-                System.out.println("\n#simulator#\npre: " + p);
-
-            // Preliminaries:
-            // as static objects and particles could be added
-            // at any point of space and time, we need to immediately
-            // (before anything changes) apply basic corrections to the position
-            // (for example, warp the particle in the right place if the world is toroidal,
-            // or block it in place in case it has been added right inside a static object).
-
-            // world corrections:
-            // applies space-dependent correction of position.
-            // for example, if the world is non-toroidal it clamps
-            // newpos to be just at the border, if it was over it.
-            // Conversely, if toroidal it moves the particle to the
-            // right side
-            world.process(p, dt);
+    public boolean isDeterministic()
+    {
+        return particles.hashing;
+    }
 
-            // collision resolution:
-            // apply impact forces and position correction in case the particle
-            // is colliding with static objects
-            resolveCollisions(p, dt);
+    /**
+     * Returns the checksum of the current state of all particles,
+     * see {@link #setDeterministic(boolean)}.<br />
+     * O(1)
+     *
+     * @return the checksum, or 0 if the deterministic mode is disabled
+     */
+    public long getChecksum()
+    {
+        return particles.checksum;
+    }
 
-            if (VERBOSE)
-                System.out.println("processed: " + p);
+    /**
+     * Adds a region where particles are simulated at full rate. As soon as there is at least one
+     * region, particles are split in three tiers (see {@link ActivationRegion}): those inside a region
+     * are stepped normally, those in the band around the regions are stepped less often
+     * (see {@link #setActivationBand(double, int)}), and all the others are frozen in place: contacts
+     * and constraints don't move them either, as if their mass was infinite.
+     * <p>
+     * A particle changes tier when it's stepped across a region boundary, or when the regions
+     * change (they are then checked against all particles at the start of the next step).
+     * Particles added, or changed through their setters, are active until their next step.
+     *
+     * @param r the region, that can be moved later on
+     */
+    public void addActivationRegion(final ActivationRegion r)
+    {
+        regions = Arrays.copyOf(regions, regions.length + 1);
+        regions[regions.length - 1] = r;
 
-            // calculate acceleration from the accumulated forces
-            acc.x = (force.x * p.invmass);
-            acc.y = (force.y * p.invmass);
-            acc.z = (force.z * p.invmass);
+        regionsChanged = true;
+    }
 
-            if (VERBOSE)
-                System.out.println("acc: " + acc);
+    /**
+     * Removes an activation region. When there are no regions left,
+     * all particles are stepped normally.
+     *
+     * @param r
+     */
+    public void removeActivationRegion(final ActivationRegion r)
+    {
+        for (int i = 0; i < regions.length; i++)
+        {
+            if (regions[i] == r)
+            {
+                final ActivationRegion[] rs = new ActivationRegion[regions.length - 1];
 
-            pos.x += dt * (vel.x + (dt2 * acc.x));
-            pos.y += dt * (vel.y + (dt2 * acc.y));
-            pos.z += dt * (vel.z + (dt2 * acc.z));
+                System.arraycopy(regions, 0, rs, 0, i);
+                System.arraycopy(regions, i + 1, rs, i, rs.length - i);
 
-            // pos has been changed, now the ex current position
-            // becomes the old position
-            p.oldCenter.set(oldpos);
+                regions = rs;
+                regionsChanged = true;
 
-            if (VERBOSE)
-                System.out.println("newpos: " + pos);
+                return;
+            }
+        }
+    }
 
-            vel.x += dt * acc.x;
-            vel.y += dt * acc.y;
-            vel.z += dt * acc.z;
+    /**
+     * Configures the band around the activation regions: particles within it
+     * take a step only once every given number of steps, with a timestep
+     * as many times longer.
+     *
+     * @param width    width of the band around each region
+     * @param interval steps between two steps of a particle in the band
+     */
+    public void setActivationBand(final double width, final int interval)
+    {
+        bandWidth = Math.max(0.0, width);
+        bandInterval = Math.max(1, interval);
 
-            if (VERBOSE)
-                System.out.println("vel: " + vel);
+        regionsChanged = true;
+    }
 
-            // now we finish the time step by re-calculating
-            // forces with the new velocity (see paper for details)
+    /**
+     * Returns the tier of the particle, relative to the activation regions
+     * at its last step.
+     *
+     * @param p a particle of this simulator
+     * @return {@link ActivationRegion#ACTIVE} (also when there are no regions),
+     * {@link ActivationRegion#BAND} or {@link ActivationRegion#FROZEN}
+     */
+    public byte getActivation(final Particle p)
+    {
+        if (p.store != particles || regions.length == 0)
+            return ActivationRegion.ACTIVE;
 
-            // recalculate force and correct position
-            force.set(ImmutableVect3D.zero);
-            world.process(p, dt);
-            resolveCollisions(p, dt);
+        return particles.tier[p.index];
+    }
 
-            if (VERBOSE)
-                System.out.println("processed: " + pos);
+    /**
+     * Adds a particle emitter. From the next step, it spawns its particles at the start of
+     * each step, and removes the expired ones (putting them back in its pool) at the end.
+     * An emitter can only be added to one simulator.
+     *
+     * @param e
+     */
+    public void addEmitter(final Emitter e)
+    {
+        for (final Emitter other : emitters)
+            if (other == e)
+                return;
 
-            acc.x = -acc.x + (force.x * p.invmass);
-            acc.y = -acc.y + (force.y * p.invmass);
-            acc.z = -acc.z + (force.z * p.invmass);
+        emitters = Arrays.copyOf(emitters, emitters.length + 1);
+        emitters[emitters.length - 1] = e;
+    }
 
-            if (VERBOSE)
-                System.out.println("acc: " + acc);
+    /**
+     * Removes an emitter, together with all its live particles.
+     *
+     * @param e
+     */
+    public void removeEmitter(final Emitter e)
+    {
+        for (int i = 0; i < emitters.length; i++)
+        {
+            if (emitters[i] == e)
+            {
+                final Emitter[] es = new Emitter[emitters.length - 1];
 
-            vel.x += dt2 * acc.x;
-            vel.y += dt2 * acc.y;
-            vel.z += dt2 * acc.z;
+                System.arraycopy(emitters, 0, es, 0, i);
+                System.arraycopy(emitters, i + 1, es, i, es.length - i);
 
-            if (VERBOSE)
-                System.out.println("post: " + p);
+                emitters = es;
+                e.clear(particles);
+
+                return;
+            }
         }
     }
 
-    private void resolveCollisions(final Particle p, final double dt)
+    /**
+     * Enables the periodic spatial reordering of the particles (see {@link #reorder()}),
+     * at the start of one step every given number of steps. Deterministic simulators
+     * must all use the same interval, if particles interact.
+     *
+     * @param steps steps between reorders, 0 or less to disable it
+     */
+    public void setReorderInterval(final int steps)
+    {
+        reorderInterval = Math.max(0, steps);
+    }
+
+    /**
+     * Adds a user-specified force, applied to all particles at each evaluation of the
+     * forces, after the world's and in the order the generators were added. Each generator
+     * is called once per batch of particles, so dozens of them only cost their own loops.
+     * <p>
+     * Sleeping particles (see {@link #setSleeping(double, double, int)}) are not evaluated,
+     * so a force starting later, or entering their region, doesn't wake them up.
+     *
+     * @param g
+     */
+    public void addForceGenerator(final ForceGenerator g)
     {
-        final Vect3D pos = p.getCenter();
+        for (final ForceGenerator other : generators)
+            if (other == g)
+                return;
 
-        final List<Static> collisions = collider.getPossibleCollisions(pos);
+        generators = Arrays.copyOf(generators, generators.length + 1);
+        generators[generators.length - 1] = g;
+    }
 
-        if (collisions.size() > 0)
+    /**
+     * @param g a generator added with {@link #addForceGenerator(ForceGenerator)}
+     */
+    public void removeForceGenerator(final ForceGenerator g)
+    {
+        for (int i = 0; i < generators.length; i++)
         {
-            if (VERBOSE)
+            if (generators[i] == g)
             {
-                System.out.println(p);
-                System.out.println("colliding with " + collisions.size() + " objects");
+                final ForceGenerator[] gs = new ForceGenerator[generators.length - 1];
+
+                System.arraycopy(generators, 0, gs, 0, i);
+                System.arraycopy(generators, i + 1, gs, i, gs.length - i);
+
+                generators = gs;
+
+                return;
             }
+        }
+    }
+
+    public int getReorderInterval()
+    {
+        return reorderInterval;
+    }
+
+    /**
+     * Sorts the particles in the internal store along a Z-order curve, so that particles
+     * close in space are also close in memory and are stepped one after the other: this
+     * improves the cache hit rate of the {@link BroadPhase} and of the {@link World}. Particles
+     * that don't interact are stepped exactly as before, and only the order of
+     * {@link #getInterpolatedPositions(double[])} changes. Contacts, Barnes-Hut and fluids, however,
+     * sum over the particles in an order that depends on their slots, so with them the results
+     * change in the lowest bits (see {@link #setDeterministic(boolean)}).
+     * Particle handles and objects stay valid. <br />
+     * O(N log N)
+     */
+    public void reorder()
+    {
+        particles.reorder(MORTON_BITS);
+    }
+
+    /**
+     * Wakes up all particles. <br />
+     * O(N)
+     */
+    public void wakeAll()
+    {
+        Arrays.fill(particles.calm, 0, particles.size, 0);
+    }
+
+    /**
+     * Wakes up the particles within the given static object,
+     * grown by its own extent and the particle radius. <br />
+     * O(N)
+     *
+     * @param s
+     */
+    private void wakeAround(final Static s)
+    {
+        if (particles.sleepSteps == 0)
+            return;
+
+        final ParticleStore ps     = particles;
+        final Vect3D        center = s.getCenter();
+        final Vect3D        extent = s.getExtent();
+
+        for (int i = 0; i < ps.size; i++)
+        {
+            final double r = ps.radius[i];
+
+            if (Math.abs(ps.pos.x(i) - center.x) <= 2.0 * extent.x + r &&
+                Math.abs(ps.pos.y(i) - center.y) <= 2.0 * extent.y + r &&
+                Math.abs(ps.pos.z(i) - center.z) <= 2.0 * extent.z + r)
+                ps.calm[i] = 0;
+        }
+    }
+
+    /**
+     * Sets how many threads step the particles. With a parallelism
+     * of 1 (the default) everything runs on the calling thread.
+     * Otherwise the particles are split in chunks and stepped
+     * by a dedicated {@link ForkJoinPool}: the results are
+     * bit-identical to the serial mode, as long as the {@link World}
+     * and the {@link BroadPhase} are thread-safe for concurrent reads.
+     *
+     * @param parallelism number of threads, 1 or less to step serially
+     */
+    public void setParallelism(final int parallelism)
+    {
+        if (pool != null)
+            pool.shutdown();
+
+        pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+    }
+
+    public int getParallelism()
+    {
+        return pool == null ? 1 : pool.getParallelism();
+    }
+
+    /**
+     * Sets the maximum number of consecutive particles stepped
+     * by a single task in parallel mode.
+     *
+     * @param chunkSize number of particles, at least 1
+     */
+    public void setChunkSize(final int chunkSize)
+    {
+        this.chunkSize = Math.max(1, chunkSize);
+    }
+
+    public int getChunkSize()
+    {
+        return chunkSize;
+    }
+
+    /**
+     * Returns the number of currently active
+     * particles.
+     *
+     * @return
+     */
+    public int getParticlesNumber()
+    {
+        return particles.size;
+    }
+
+    /**
+     * Adds a new particle to the simulator.
+     * Its state is copied into the simulator's store,
+     * and the particle becomes a view on it.<br />
+     * O(1)
+     *
+     * @param p {@link Particle} to be added
+     * @return the stable handle of the particle, or {@link #NO_HANDLE} if it couldn't be added
+     */
+    public long addParticle(final Particle p)
+    {
+        if (p == null || p.store != null)
+            return NO_HANDLE;
+
+        ensureCapacity(particles.size + 1);
+
+        return particles.handle(particles.add(p));
+    }
+
+    /**
+     * Adds all the given particles, resizing the store
+     * at most once.<br />
+     * O(k)
+     *
+     * @param ps the {@link Particle}s to be added
+     */
+    public void addParticles(final Particle... ps)
+    {
+        ensureCapacity(particles.size + ps.length);
+
+        for (final Particle p : ps)
+            if (p != null && p.store == null)
+                particles.add(p);
+    }
+
+    /**
+     * Adds all the given particles, resizing the store
+     * at most once.<br />
+     * O(k)
+     *
+     * @param ps the {@link Particle}s to be added
+     */
+    public void addParticles(final List<Particle> ps)
+    {
+        ensureCapacity(particles.size + ps.size());
+
+        for (final Particle p : ps)
+            if (p != null && p.store == null)
+                particles.add(p);
+    }
+
+    /**
+     * Doubles the store until it can hold the given
+     * number of particles.
+     *
+     * @param capacity the number of particles needed
+     */
+    private void ensureCapacity(final int capacity)
+    {
+        if (capacity <= MAX_PARTICLES)
+            return;
+
+        int size = MAX_PARTICLES;
+
+        while (capacity > size)
+            size *= 2;
+
+        // only recorded once the store has grown
+        particles.resize(size);
+        MAX_PARTICLES = size;
+    }
+
+    /**
+     * Removes a particle from the simulator,
+     * if it was there. Its current state is copied
+     * back into the particle object. <br />
+     * O(1)
+     *
+     * @param p {@link Particle} to be removed
+     */
+    public void removeParticle(final Particle p)
+    {
+        if (p == null || p.store != particles)
+            return;
+
+        particles.remove(p.index);
+    }
+
+    /**
+     * Removes all particles matching the predicate in a single
+     * pass, keeping the order of the others. The predicate is
+     * given the particles still attached to the simulator.<br />
+     * O(N)
+     *
+     * @param filter returns true for the particles to be removed
+     * @return the number of removed particles
+     */
+    public int removeIf(final Predicate<Particle> filter)
+    {
+        return particles.removeIf(filter);
+    }
+
+    /**
+     * Removes the particle with the given handle,
+     * if the handle is still valid. <br />
+     * O(1)
+     *
+     * @param handle as returned by {@link #addParticle(Particle)}
+     * @return true if a particle was removed, false if the handle was stale
+     */
+    public boolean removeParticle(final long handle)
+    {
+        final int i = particles.slot(handle);
+
+        if (i < 0)
+            return false;
+
+        particles.remove(i);
+
+        return true;
+    }
+
+    /**
+     * Returns the particle with the given handle. <br />
+     * O(1)
+     *
+     * @param handle as returned by {@link #addParticle(Particle)}
+     * @return the {@link Particle}, or null if the handle is stale
+     */
+    public Particle getParticle(final long handle)
+    {
+        final int i = particles.slot(handle);
+
+        if (i < 0)
+            return null;
+
+        return particles.particles[i];
+    }
+
+    /**
+     * Checks whether the handle still refers to
+     * a particle in this simulator. <br />
+     * O(1)
+     *
+     * @param handle as returned by {@link #addParticle(Particle)}
+     * @return true if the particle has not been removed yet
+     */
+    public boolean isValid(final long handle)
+    {
+        return particles.slot(handle) >= 0;
+    }
+
+    /**
+     * Removes all particles from the simulator. <br />
+     * O(N)
+     */
+    public void clearParticles()
+    {
+        particles.clear();
+    }
+
+    /**
+     * Queues a mutation of the simulator, to be applied by the thread running the
+     * simulation at the start of the next step (see {@link #applyCommands()}).
+     * <p>
+     * Unlike the other methods, this can be called from any thread at any time, even
+     * while a step is in progress: it never blocks, and the commands of each
+     * thread are applied in the order they were queued.
+     *
+     * @param command the mutation to apply
+     */
+    public void enqueue(final Consumer<Simulator> command)
+    {
+        commands.offer(command);
+    }
+
+    /**
+     * Queues {@link #addParticle(Particle)}. The particle must not be
+     * used by the calling thread afterwards.
+     *
+     * @param p
+     */
+    public void enqueueAddParticle(final Particle p)
+    {
+        enqueue(s -> s.addParticle(p));
+    }
+
+    /**
+     * Queues {@link #removeParticle(Particle)}.
+     *
+     * @param p
+     */
+    public void enqueueRemoveParticle(final Particle p)
+    {
+        enqueue(s -> s.removeParticle(p));
+    }
+
+    /**
+     * Queues {@link #removeParticle(long)}.
+     *
+     * @param handle
+     */
+    public void enqueueRemoveParticle(final long handle)
+    {
+        enqueue(s -> s.removeParticle(handle));
+    }
+
+    /**
+     * Queues {@link #addStatic(Static)}.
+     *
+     * @param o
+     */
+    public void enqueueAddStatic(final Static o)
+    {
+        enqueue(s -> s.addStatic(o));
+    }
+
+    /**
+     * Queues {@link #removeStatic(Static)}.
+     *
+     * @param o
+     */
+    public void enqueueRemoveStatic(final Static o)
+    {
+        enqueue(s -> s.removeStatic(o));
+    }
+
+    /**
+     * Queues {@link #setWorld(World)}.
+     *
+     * @param w
+     */
+    public void enqueueSetWorld(final World w)
+    {
+        enqueue(s -> s.setWorld(w));
+    }
+
+    /**
+     * Applies all queued commands, in order. Called automatically at the
+     * start of {@link #update(double)}: it only needs to be called directly to see
+     * the effect of the commands without taking a step.
+     * Commands queued while this runs are applied too.
+     *
+     * @return the number of applied commands
+     */
+    public int applyCommands()
+    {
+        int applied = 0;
+
+        Consumer<Simulator> command;
+        while ((command = commands.poll()) != null)
+        {
+            command.accept(this);
+            applied++;
+        }
+
+        return applied;
+    }
+
+    /**
+     * Sets the duration of the steps taken by {@link #advance(long)}.
+     *
+     * @param dt fixed step duration, in seconds
+     */
+    public void setFixedTimestep(final double dt)
+    {
+        fixedDt = dt;
+        stepNanos = Math.max(1L, Math.round(dt * 1000000000.0));
+    }
+
+    public double getFixedTimestep()
+    {
+        return fixedDt;
+    }
+
+    /**
+     * Sets the maximum number of steps a single call to {@link #advance(long)}
+     * can take. If the simulation falls further behind than this, the excess
+     * time is dropped instead of being simulated later, so that a slow frame cannot
+     * trigger an ever-growing number of steps (the "spiral of death").
+     *
+     * @param maxSubSteps at least 1
+     */
+    public void setMaxSubSteps(final int maxSubSteps)
+    {
+        this.maxSubSteps = Math.max(1, maxSubSteps);
+    }
+
+    public int getMaxSubSteps()
+    {
+        return maxSubSteps;
+    }
+
+    /**
+     * Fixed-timestep driver: accumulates the elapsed real time, and consumes it by calling
+     * {@link #update(double)} with the fixed timestep as many times as needed (but at most
+     * {@link #getMaxSubSteps()} times). The time left over, less than one step, is carried over
+     * to the next call and exposed as {@link #getAlpha()}, so that the renderer can interpolate
+     * between the last two steps.
+     *
+     * @param elapsedNanos real time elapsed since the previous call
+     * @return the number of steps taken
+     */
+    public int advance(final long elapsedNanos)
+    {
+        accumulator += elapsedNanos;
+
+        int steps = 0;
+        while (accumulator >= stepNanos && steps < maxSubSteps)
+        {
+            update(fixedDt);
+
+            accumulator -= stepNanos;
+            steps++;
+        }
+
+        // falling behind: drop what we couldn't simulate
+        if (accumulator >= stepNanos)
+            accumulator %= stepNanos;
+
+        return steps;
+    }
+
+    /**
+     * Returns how far the real time is between the last step taken by
+     * {@link #advance(long)} and the next one.
+     *
+     * @return the interpolation factor, in [0, 1)
+     */
+    public double getAlpha()
+    {
+        return (double) accumulator / stepNanos;
+    }
+
+    /**
+     * Fills the buffer with the positions of all particles interpolated
+     * between the previous and the current step using {@link #getAlpha()}, so that rendering
+     * can run at any rate. The buffer is packed as x, y, z for each slot, in the
+     * same order as the internal store (use {@link #getInterpolatedCenter(Particle, Vect3D)}
+     * to get a specific particle).
+     *
+     * @param buffer the buffer to fill, or null
+     * @return the given buffer, or a new one if it was null or too short
+     */
+    public double[] getInterpolatedPositions(final double[] buffer)
+    {
+        final ParticleStore ps    = particles;
+        final double        alpha = getAlpha();
+
+        final double[] out = buffer == null || buffer.length < ps.size * 3 ? new double[ps.size * 3] : buffer;
+
+        for (int i = 0, j = 0; i < ps.size; i++, j += 3)
+        {
+            out[j] = ps.old.x(i) + (ps.pos.x(i) - ps.old.x(i)) * alpha;
+            out[j + 1] = ps.old.y(i) + (ps.pos.y(i) - ps.old.y(i)) * alpha;
+            out[j + 2] = ps.old.z(i) + (ps.pos.z(i) - ps.old.z(i)) * alpha;
+        }
+
+        return out;
+    }
+
+    /**
+     * Interpolates the position of the given particle between the
+     * previous and the current step using {@link #getAlpha()}.
+     *
+     * @param p   a particle of this simulator
+     * @param out will contain the interpolated position
+     * @return out
+     */
+    public Vect3D getInterpolatedCenter(final Particle p, final Vect3D out)
+    {
+        if (p.store != particles)
+            return out.set(p.getCenter());
+
+        final ParticleStore ps    = particles;
+        final int           i     = p.index;
+        final double        alpha = getAlpha();
+
+        out.x = ps.old.x(i) + (ps.pos.x(i) - ps.old.x(i)) * alpha;
+        out.y = ps.old.y(i) + (ps.pos.y(i) - ps.old.y(i)) * alpha;
+        out.z = ps.old.z(i) + (ps.pos.z(i) - ps.old.z(i)) * alpha;
+
+        return out;
+    }
+
+    /**
+     * Returns the number of steps taken so far, by {@link #update(double)}
+     * or by {@link #advance(long)}.
+     *
+     * @return the number of steps
+     */
+    public long getStepCount()
+    {
+        return stepCount;
+    }
+
+    /**
+     * Returns the simulation time covered by the steps taken so far: during a step, it's
+     * the time at its start (as seen by the {@link ForceGenerator}s).
+     *
+     * @return the sum of the timesteps
+     */
+    public double getTime()
+    {
+        return time;
+    }
+
+    /**
+     * Starts an {@link #update(double)} on a background thread, and returns immediately. When
+     * the step is complete, an immutable {@link Snapshot} of the new state is published for
+     * {@link #acquireSnapshot()}. In the meantime, other threads can read the previous snapshot
+     * (eg, to render it) without waiting for the physics.
+     * <p>
+     * If another step is still in progress, it waits for it first. Until {@link #endUpdate()}
+     * is called, the simulator and its particles must not be used in any other way than
+     * through {@link #acquireSnapshot()}.
+     *
+     * @param dt how much to advance the simulation of
+     */
+    public void beginUpdate(final double dt)
+    {
+        begin(() -> update(dt));
+    }
+
+    /**
+     * Like {@link #beginUpdate(double)}, but on the background thread it
+     * runs {@link #advance(long)}.
+     *
+     * @param elapsedNanos real time elapsed since the previous call
+     */
+    public void beginAdvance(final long elapsedNanos)
+    {
+        begin(() -> advance(elapsedNanos));
+    }
+
+    /**
+     * Waits for the step started by {@link #beginUpdate(double)} or {@link #beginAdvance(long)}
+     * to complete, if any. Afterwards the simulator can be used normally.
+     * <p>
+     * A step can't be abandoned half way, so this keeps waiting even if the calling thread
+     * is interrupted: the interrupt status is then set again before returning.
+     */
+    public void endUpdate()
+    {
+        final Future<?> f = pending;
+
+        if (f == null)
+            return;
+
+        boolean interrupted = false;
+
+        try
+        {
+            while (true)
+            {
+                try
+                {
+                    f.get();
+                    break;
+                } catch (final InterruptedException e)
+                {
+                    interrupted = true;
+                }
+            }
+        } catch (final ExecutionException e)
+        {
+            final Throwable cause = e.getCause();
+
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if (cause instanceof Error)
+                throw (Error) cause;
+
+            throw new RuntimeException(cause);
+        } finally
+        {
+            // only now the step is over
+            pending = null;
+
+            if (interrupted)
+                Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the latest published snapshot, holding it until {@link Snapshot#release()}
+     * is called. Can be called from any thread, even while a step is in progress.
+     *
+     * @return the latest snapshot, or null if no asynchronous step has been started yet
+     */
+    public Snapshot acquireSnapshot()
+    {
+        while (true)
+        {
+            final Snapshot s = snapshot;
+
+            // it fails only if s has just been replaced
+            // and released by everyone
+            if (s == null || s.retain())
+                return s;
+        }
+    }
+
+    private void begin(final Runnable step)
+    {
+        endUpdate();
+
+        if (stepper == null)
+        {
+            stepper = Executors.newSingleThreadExecutor(r ->
+            {
+                final Thread t = new Thread(r, "simulator");
+                t.setDaemon(true);
+
+                return t;
+            });
+        }
+
+        // readers must have something to read from the start
+        if (snapshot == null)
+            publish();
+
+        pending = stepper.submit(() ->
+        {
+            step.run();
+            publish();
+        });
+    }
+
+    /**
+     * Copies the current state into a free buffer, and makes it the
+     * latest snapshot. Only called while no step is running
+     * concurrently.
+     */
+    private void publish()
+    {
+        Snapshot next = null;
+
+        for (final Snapshot s : snapshots)
+        {
+            if (s.isFree())
+            {
+                next = s;
+                break;
+            }
+        }
+
+        if (next == null)
+        {
+            next = new Snapshot();
+            snapshots.add(next);
+        }
+
+        next.capture(particles, stepCount, getAlpha());
+
+        final Snapshot previous = snapshot;
+        snapshot = next;
+
+        // drop the simulator's own reference
+        if (previous != null)
+            previous.release();
+    }
+
+    /**
+     * Advances the simulation by one step, integrating all
+     * particles with the current {@link Integrator}.
+     *
+     * @param dt how much to advance the simulation of
+     */
+    public void update(final double dt)
+    {
+        // halve the delta t, to save
+        // a few divisions
+        final double dt2 = dt / 2.0;
+
+        applyCommands();
+
+        stepCount++;
+
+        for (final Emitter e : emitters)
+            e.emit(this, dt);
+
+        if (reorderInterval > 0 && stepCount % reorderInterval == 0)
+            reorder();
+
+        if (regions.length > 0)
+            classifyIfMoved();
+        else if (regionsChanged)
+        {
+            // the last region was removed: contacts and constraints
+            // must not take any particle as frozen anymore
+            regionsChanged = false;
+            Arrays.fill(particles.tier, 0, particles.size, ActivationRegion.ACTIVE);
+        }
+
+        // the forces between particles need all positions,
+        // so they are computed before moving any of them
+        if (interactions != null)
+            interactions.compute(particles, pool, chunkSize);
+        if (fluid != null)
+            fluid.compute(particles, pool, chunkSize);
+
+        // each particle is independent from the others, so
+        // the range can be split in any way without changing the result
+        final long delta;
+
+        if (pool == null || particles.size <= chunkSize)
+        {
+            delta = step(0, particles.size, cursor, dt, dt2);
+        }
+        else
+        {
+            final StepTask task = new StepTask(0, particles.size, dt, dt2);
+            pool.invoke(task);
+
+            delta = task.delta;
+        }
+
+        // the sum is modulo 2^64, so it doesn't depend on how the range was split
+        particles.checksum += delta;
+
+        if (contacts != null)
+            particles.checksum += contacts.collide(particles, pool, chunkSize, Math.sqrt(sleepSpeed2), neighbors);
+
+        particles.checksum += constraints.solve(particles, pool, chunkSize, dt, Math.sqrt(sleepSpeed2));
+
+        for (final Emitter e : emitters)
+            e.expire(particles);
+
+        time += dt;
+    }
+
+    /**
+     * Advances all particles in the given range of slots.
+     *
+     * @param from first slot (inclusive)
+     * @param to   last slot (exclusive)
+     * @param c    scratch state of the current thread
+     * @param dt   how much to advance the simulation of
+     * @param dt2  half of dt
+     * @return the change of the checksum (see {@link #setDeterministic(boolean)})
+     */
+    private long step(final int from, final int to, final Cursor c, final double dt, final double dt2)
+    {
+        final ParticleStore ps    = particles;
+        final boolean       sleep = ps.sleepSteps > 0;
+        final boolean       lod   = regions.length > 0;
+
+        // particles in the band take a longer step, once every bandInterval steps
+        final double bandDt  = dt * bandInterval;
+        final double bandDt2 = bandDt / 2.0;
+
+        // per-particle displacement limit is this times min(radius, cell size)
+        final double limit = maxParticleSubsteps > 1 ? substepFraction / dt : 0.0;
+        final double cell  = collider.getCellSize();
+
+        long delta = 0L;
+
+        // particles are gathered in batches with the same timestep, and stepped
+        // together when a batch is full. Consecutive slots are copied in runs
+        int run    = from;
+        int length = 0;
+
+        for (int i = from; i < to; i++)
+        {
+            if (sleep && ps.calm[i] >= ps.sleepSteps)
+                continue;
+
+            ParticleBatch b = c.batch;
+
+            if (lod)
+            {
+                final byte tier = ps.tier[i];
+
+                if (tier == ActivationRegion.FROZEN)
+                    continue;
+
+                if (tier == ActivationRegion.BAND)
+                {
+                    // the ids spread the band particles over the steps
+                    if ((stepCount + ps.ids[i]) % bandInterval != 0)
+                        continue;
+
+                    b = c.band;
+                }
+            }
+
+            final double pdt = b == c.band ? bandDt : dt;
+            final int    n   = limit > 0.0 ? substeps(i, limit * Math.min(ps.radius[i], cell) * dt / pdt) : 1;
+
+            if (n == 1 && b == c.batch)
+            {
+                if (length > 0 && run + length != i)
+                {
+                    b.add(ps, run, length);
+                    length = 0;
+                }
+
+                if (length == 0)
+                    run = i;
+
+                if (b.size + ++length == BATCH_SIZE)
+                {
+                    b.add(ps, run, length);
+                    length = 0;
+
+                    delta += step(c, b, dt, dt2);
+                }
+
+                continue;
+            }
+
+            if (n == 1)
+            {
+                b.add(ps, i, 1);
+
+                if (b.isFull())
+                    delta += step(c, b, bandDt, bandDt2);
+
+                continue;
+            }
+
+            // a fast particle is stepped on its own, in n shorter steps
+            final ParticleBatch single = c.single;
+            final double        sdt    = pdt / n;
+
+            single.add(ps, i, 1);
+
+            final double x = single.x[0];
+            final double y = single.y[0];
+            final double z = single.z[0];
+
+            for (int k = 0; k < n; k++)
+                integrator.integrate(this, c, single, sdt, sdt / 2.0);
+
+            // as far as the outside is concerned, it was a single step
+            single.oldX[0] = x;
+            single.oldY[0] = y;
+            single.oldZ[0] = z;
+
+            delta += flush(single, pdt);
+        }
+
+        if (length > 0)
+            c.batch.add(ps, run, length);
+
+        if (c.batch.size > 0)
+            delta += step(c, c.batch, dt, dt2);
+        if (c.band.size > 0)
+            delta += step(c, c.band, bandDt, bandDt2);
+
+        return delta;
+    }
+
+    /**
+     * Steps all particles of a batch and writes them back to the store.
+     *
+     * @param c   scratch state of the current thread
+     * @param b   batch to step
+     * @param dt  how much to advance the simulation of
+     * @param dt2 half of dt
+     * @return the change of the checksum
+     */
+    private long step(final Cursor c, final ParticleBatch b, final double dt, final double dt2)
+    {
+        integrator.integrate(this, c, b, dt, dt2);
+
+        return flush(b, dt);
+    }
+
+    /**
+     * Writes the particles of a stepped batch back to the store, updates their
+     * sleep counters, activation tiers and hashes, and empties the batch.
+     *
+     * @param b  the batch
+     * @param dt the batch's timestep
+     * @return the change of the checksum
+     */
+    private long flush(final ParticleBatch b, final double dt)
+    {
+        final ParticleStore ps    = particles;
+        final boolean       sleep = ps.sleepSteps > 0;
+        final boolean       lod   = regions.length > 0;
+        final Vect3D        pos   = b.point;
+
+        long delta = 0L;
+
+        if (sleep)
+        {
+            for (int k = 0; k < b.size; k++)
+            {
+                final int i = b.slots[k];
+
+                // the store still has the velocity at the start of the step
+                final double dvx = b.velX[k] - ps.vel.x(i);
+                final double dvy = b.velY[k] - ps.vel.y(i);
+                final double dvz = b.velZ[k] - ps.vel.z(i);
+
+                b.write(ps, k, 1);
+
+                rest(i, dvx, dvy, dvz, dt);
+            }
+        }
+        else
+        {
+            // in runs of consecutive slots
+            for (int k = 0, n; k < b.size; k += n)
+            {
+                n = 1;
+
+                while (k + n < b.size && b.slots[k + n] == b.slots[k] + n)
+                    n++;
+
+                b.write(ps, k, n);
+            }
+        }
+
+        if (!lod && !ps.hashing)
+        {
+            b.size = 0;
+
+            return 0L;
+        }
+
+        for (int k = 0; k < b.size; k++)
+        {
+            final int i = b.slots[k];
+
+            // it might have crossed a region boundary
+            if (lod)
+            {
+                pos.x = b.x[k];
+                pos.y = b.y[k];
+                pos.z = b.z[k];
+
+                ps.tier[i] = classify(pos);
+            }
+
+            if (ps.hashing)
+            {
+                final long h = ps.hash(i);
+
+                delta += h - ps.hash[i];
+                ps.hash[i] = h;
+            }
+        }
+
+        b.size = 0;
+
+        return delta;
+    }
+
+    /**
+     * Classifies a position relative to all activation regions.
+     *
+     * @param pos
+     * @return the tier of a particle in that position
+     */
+    private byte classify(final Vect3D pos)
+    {
+        byte best = ActivationRegion.FROZEN;
+
+        for (final ActivationRegion r : regions)
+        {
+            final byte tier = r.tier(pos.x, pos.y, pos.z, bandWidth);
+
+            if (tier < best)
+            {
+                if (tier == ActivationRegion.ACTIVE)
+                    return tier;
+
+                best = tier;
+            }
+        }
+
+        return best;
+    }
+
+    /**
+     * Classifies all particles again, if the activation regions
+     * have changed since the last time.<br />
+     * O(N * regions)
+     */
+    private void classifyIfMoved()
+    {
+        long version = 0L;
+        for (final ActivationRegion r : regions)
+            version += r.getVersion();
+
+        if (!regionsChanged && version == regionsVersion)
+            return;
+
+        regionsChanged = false;
+        regionsVersion = version;
+
+        final ParticleStore ps  = particles;
+        final Vect3D        pos = cursor.batch.point;
+
+        for (int i = 0; i < ps.size; i++)
+            ps.tier[i] = classify(ps.pos.get(i, pos));
+    }
+
+    /**
+     * Computes how many substeps the particle needs so that it
+     * doesn't move more than the given speed times dt in each of them.
+     *
+     * @param i        slot of the particle
+     * @param maxSpeed highest speed allowed for a single step
+     * @return the number of substeps, at least 1
+     */
+    private int substeps(final int i, final double maxSpeed)
+    {
+        final ParticleStore ps = particles;
+
+        final Vect3DColumn v = ps.vel;
+
+        final double speed2 = v.x(i) * v.x(i) + v.y(i) * v.y(i) + v.z(i) * v.z(i);
+
+        if (speed2 <= maxSpeed * maxSpeed)
+            return 1;
+
+        return (int) Math.min(maxParticleSubsteps, Math.ceil(Math.sqrt(speed2) / maxSpeed));
+    }
+
+    /**
+     * Counts the consecutive steps a particle has spent at rest, and
+     * puts it to sleep when it has been at rest for long enough.
+     *
+     * @param i   slot of the particle, just stepped
+     * @param dvx velocity change over the step, x component
+     * @param dvy velocity change over the step, y component
+     * @param dvz velocity change over the step, z component
+     * @param dt  the step duration
+     */
+    private void rest(final int i, final double dvx, final double dvy, final double dvz, final double dt)
+    {
+        final ParticleStore ps = particles;
+
+        final Vect3DColumn v = ps.vel;
+
+        final double speed2 = v.x(i) * v.x(i) + v.y(i) * v.y(i) + v.z(i) * v.z(i);
+        final double m      = ps.mass[i] / dt;
+        final double force2 = (dvx * dvx + dvy * dvy + dvz * dvz) * m * m;
+
+        if (speed2 > sleepSpeed2 || force2 > sleepForce2)
+        {
+            ps.calm[i] = 0;
+            return;
+        }
+
+        if (++ps.calm[i] < ps.sleepSteps)
+            return;
+
+        // falling asleep: the particle must not carry
+        // any motion when it wakes up
+        ps.vel.set(i, 0.0, 0.0, 0.0);
+        ps.acc.set(i, 0.0, 0.0, 0.0);
+        ps.force.set(i, 0.0, 0.0, 0.0);
+        ps.old.set(i, ps.pos.x(i), ps.pos.y(i), ps.pos.z(i));
+    }
+
+    /**
+     * Evaluates the forces on all particles of a batch: the world's forces and position
+     * corrections, the user-specified forces, the forces between particles, then impact
+     * forces and position correction against static objects.
+     * Called by the {@link Integrator} once or twice per step.
+     *
+     * @param c  scratch state of the current thread
+     * @param b  the batch
+     * @param dt
+     */
+    void evaluate(final Cursor c, final ParticleBatch b, final double dt)
+    {
+        // world corrections:
+        // applies space-dependent correction of position.
+        // for example, if the world is non-toroidal it clamps
+        // newpos to be just at the border, if it was over it.
+        // Conversely, if toroidal it moves the particle to the
+        // right side
+        world.process(b, 0, b.size, dt);
+
+        for (final ForceGenerator g : generators)
+            g.apply(b, 0, b.size, time, dt);
+
+        if (interactions != null)
+            interactions.apply(b);
+        if (fluid != null)
+            fluid.apply(b);
+
+        for (int k = 0; k < b.size; k++)
+        {
+            // collision resolution:
+            // apply impact forces and position correction in case the particle
+            // is colliding with static objects
+            resolveCollisions(c, b, k, dt);
+
+            if (VERBOSE)
+                System.out.println("processed: " + b.get(k));
+        }
+    }
+
+    /**
+     * Applies impact forces and position correction to a particle of the batch,
+     * if it's colliding with static objects.
+     *
+     * @param c  scratch state of the current thread
+     * @param b  the batch
+     * @param k  entry of the particle
+     * @param dt
+     */
+    private void resolveCollisions(final Cursor c, final ParticleBatch b, final int k, final double dt)
+    {
+        final List<Static> collisions = c.collisions;
+        final Vect3D       pos        = b.point;
+
+        pos.x = b.x[k];
+        pos.y = b.y[k];
+        pos.z = b.z[k];
+
+        collisions.clear();
+        collider.getPossibleCollisions(pos, collisions);
+
+        if (collisions.isEmpty())
+            return;
+
+        if (VERBOSE)
+        {
+            System.out.println(b.get(k));
+            System.out.println("colliding with " + collisions.size() + " objects");
+        }
+
+        // indexed loop, so that no iterator is created
+        for (int i = 0; i < collisions.size(); i++)
+            if (Forces.processImpact(b, k, collisions.get(i), dt))
+                return;
+    }
+
+    /**
+     * Scratch state needed to step the particles,
+     * so that stepping never allocates.
+     */
+    static final class Cursor
+    {
+        // particles waiting to be stepped together: with the global timestep,
+        // in the activation band, and one fast particle being substepped
+        final ParticleBatch     batch      = new ParticleBatch(BATCH_SIZE);
+        final ParticleBatch     band       = new ParticleBatch(BATCH_SIZE);
+        final ParticleBatch     single     = new ParticleBatch(1);
+        // reused for all broadphase queries
+        final ArrayList<Static> collisions = new ArrayList<>();
+    }
+
+    /**
+     * Recursively halves a range of slots until it
+     * fits in a chunk, then steps it.
+     */
+    private final class StepTask extends RecursiveAction
+    {
+        private static final long serialVersionUID = 4210253490475657739L;
+
+        private final int    from;
+        private final int    to;
+        private final double dt;
+        private final double dt2;
+
+        // change of the checksum over the range
+        private long delta;
+
+        StepTask(final int from, final int to, final double dt, final double dt2)
+        {
+            this.from = from;
+            this.to = to;
+            this.dt = dt;
+            this.dt2 = dt2;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize)
+            {
+                delta = step(from, to, cursors.get(), dt, dt2);
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+
+            final StepTask left  = new StepTask(from, mid, dt, dt2);
+            final StepTask right = new StepTask(mid, to, dt, dt2);
+
+            invokeAll(left, right);
 
-            for (final Static obj : collisions)
-                if (Forces.processImpact(p, obj, dt))
-                    return;
+            delta = left.delta + right.delta;
         }
     }
 }
@@ -0,0 +1,261 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import utils.Vect3D;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Immutable copy of the particles' state at the end of a step, published by
+ * the asynchronous stepping of a {@link Simulator} (see {@link Simulator#beginUpdate(double)}).
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * A snapshot obtained from {@link Simulator#acquireSnapshot()} can be read from any thread,
+ * while the simulator keeps stepping. Once done with it, the reader must call {@link #release()}:
+ * the simulator then reuses its buffers for a later step, so that no memory is allocated
+ * in the steady state. A snapshot must not be read after being released.
+ * <p>
+ * Particles are indexed in the order of the simulator's store at that step:
+ * use {@link #getHandle(int)} to know which particle is at a given index.
+ *
+ * @author Fabio Ticconi
+ */
+public class Snapshot
+{
+    // 0 while free (or being written), then 1 for the simulator plus 1 for each reader
+    private final AtomicInteger refs;
+
+    private long     step;
+    private double   alpha;
+    private int      size;
+    private long[]   handles;
+    // packed as x, y, z for each particle
+    private double[] positions;
+    private double[] previous;
+    private double[] velocities;
+    private double[] radii;
+
+    Snapshot()
+    {
+        refs = new AtomicInteger();
+
+        handles = new long[0];
+        positions = new double[0];
+        previous = new double[0];
+        velocities = new double[0];
+        radii = new double[0];
+    }
+
+    /**
+     * Copies the current state of the store. Must only be called
+     * while the snapshot is free: it becomes visible to readers
+     * (with the simulator's reference) when the copy is complete.
+     *
+     * @param ps    the store to copy
+     * @param step  number of steps taken so far
+     * @param alpha interpolation factor of the fixed timestep driver
+     */
+    void capture(final ParticleStore ps, final long step, final double alpha)
+    {
+        final int n = ps.size;
+
+        if (handles.length < n)
+        {
+            final int capacity = ps.capacity();
+
+            handles = new long[capacity];
+            positions = new double[capacity * 3];
+            previous = new double[capacity * 3];
+            velocities = new double[capacity * 3];
+            radii = new double[capacity];
+        }
+
+        for (int i = 0, j = 0; i < n; i++, j += 3)
+        {
+            handles[i] = ps.handle(i);
+            radii[i] = ps.radius[i];
+
+            positions[j] = ps.pos.x(i);
+            positions[j + 1] = ps.pos.y(i);
+            positions[j + 2] = ps.pos.z(i);
+            previous[j] = ps.old.x(i);
+            previous[j + 1] = ps.old.y(i);
+            previous[j + 2] = ps.old.z(i);
+            velocities[j] = ps.vel.x(i);
+            velocities[j + 1] = ps.vel.y(i);
+            velocities[j + 2] = ps.vel.z(i);
+        }
+
+        this.step = step;
+        this.alpha = alpha;
+        size = n;
+
+        refs.set(1);
+    }
+
+    /**
+     * @return true if no one holds this snapshot, and it can be overwritten
+     */
+    boolean isFree()
+    {
+        return refs.get() == 0;
+    }
+
+    /**
+     * Adds a reference, unless the snapshot has already been dropped by everyone.
+     *
+     * @return true if the snapshot is now held by the caller
+     */
+    boolean retain()
+    {
+        int r;
+
+        do
+        {
+            r = refs.get();
+
+            if (r == 0)
+                return false;
+        } while (!refs.compareAndSet(r, r + 1));
+
+        return true;
+    }
+
+    /**
+     * Gives the snapshot back to the simulator. It must not be used afterwards.
+     */
+    public void release()
+    {
+        refs.decrementAndGet();
+    }
+
+    /**
+     * @return number of steps taken by the simulator when this snapshot was taken
+     */
+    public long getStep()
+    {
+        return step;
+    }
+
+    /**
+     * @return the interpolation factor between the previous and the current positions
+     * @see Simulator#getAlpha()
+     */
+    public double getAlpha()
+    {
+        return alpha;
+    }
+
+    /**
+     * @return number of particles
+     */
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * @param i index of the particle
+     * @return the handle of the particle
+     * @see Simulator#getParticle(long)
+     */
+    public long getHandle(final int i)
+    {
+        return handles[i];
+    }
+
+    /**
+     * Finds the index of a particle. <br />
+     * O(N)
+     *
+     * @param handle
+     * @return the index of the particle, or -1 if not in this snapshot
+     */
+    public int indexOf(final long handle)
+    {
+        for (int i = 0; i < size; i++)
+            if (handles[i] == handle)
+                return i;
+
+        return -1;
+    }
+
+    public double getRadius(final int i)
+    {
+        return radii[i];
+    }
+
+    /**
+     * @param i   index of the particle
+     * @param out will contain the position
+     * @return out
+     */
+    public Vect3D getPosition(final int i, final Vect3D out)
+    {
+        final int j = i * 3;
+
+        out.x = positions[j];
+        out.y = positions[j + 1];
+        out.z = positions[j + 2];
+
+        return out;
+    }
+
+    /**
+     * @param i   index of the particle
+     * @param out will contain the velocity
+     * @return out
+     */
+    public Vect3D getVelocity(final int i, final Vect3D out)
+    {
+        final int j = i * 3;
+
+        out.x = velocities[j];
+        out.y = velocities[j + 1];
+        out.z = velocities[j + 2];
+
+        return out;
+    }
+
+    /**
+     * Interpolates the position of a particle between the previous and the
+     * current step, using the alpha of this snapshot.
+     *
+     * @param i   index of the particle
+     * @param out will contain the interpolated position
+     * @return out
+     */
+    public Vect3D getInterpolatedPosition(final int i, final Vect3D out)
+    {
+        final int j = i * 3;
+
+        out.x = previous[j] + (positions[j] - previous[j]) * alpha;
+        out.y = previous[j + 1] + (positions[j + 1] - previous[j + 1]) * alpha;
+        out.z = previous[j + 2] + (positions[j + 2] - previous[j + 2]) * alpha;
+
+        return out;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "Snapshot [step=" + step + ", size=" + size + "]";
+    }
+}
@@ -0,0 +1,938 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import environment.Materials;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Uniform spatial hash of the particles of a {@link ParticleStore}, used to resolve the contacts
+ * between particles (see {@link Simulator#setParticleCollisions(boolean)}) and to build {@link NeighborList}s.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Space is divided in cubic cells, and each cell is mapped to a bucket of a table, as if the table
+ * was a grid of cells wrapping around in all directions (so the cells sharing a bucket are far apart).
+ * There are no per-bucket lists: the particles are counting-sorted by bucket into a single array, so that
+ * each bucket is a contiguous range of it, and their positions are copied in the same order. Neighbouring
+ * cells along x are then next to each other. Cells are twice as wide as the search range (for contacts,
+ * the diameter of the largest particle): as a particle only looks half a cell away, it only needs the
+ * 2 x 2 x 2 cells nearest to it, 4 contiguous ranges scanned in order while going through the particles.
+ * The sort runs in parallel, in two stable passes, so the order (and thus the result) doesn't depend
+ * on the number of threads. First the particles are sorted by range of buckets: each fixed block of
+ * slots counts its particles per range, with a row of counters much shorter than the table, and then
+ * puts them at their place. Then each range is sorted by bucket on its own, as it owns its part of
+ * the table. Both passes cost O(N + buckets), plus O(blocks * ranges) to sum the rows.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Contacts are then resolved Jacobi-style: each particle sums the corrections due to all the
+ * particles it overlaps, reading only the state at the end of the integration, and they are all
+ * applied at the end. A pair of overlapping particles is pushed apart along the line
+ * between their centres, proportionally to their inverse masses, and if they are approaching they
+ * get an impulse with the bounciness of their materials. Sleeping particles don't move, unless hit
+ * fast enough to be woken up, and frozen ones (see {@link ActivationRegion}) never do. With a {@link NeighborList}, the hash is only rebuilt with the list,
+ * and in between the particles are kept in the order of the last build and the contacts are searched
+ * among the neighbours of each.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * All arrays are reused, and only grow with the number of particles, so rebuilding doesn't
+ * allocate in serial mode.
+ *
+ * @author Fabio Ticconi
+ */
+final class SpatialHash
+{
+    private static final int KEYS     = 0;
+    private static final int COUNT    = 1;
+    private static final int SCATTER  = 2;
+    private static final int REFINE   = 3;
+    private static final int GATHER   = 4;
+    private static final int CONTACTS = 5;
+    private static final int APPLY    = 6;
+    private static final int LIST     = 7;
+    private static final int JOIN     = 8;
+    private static final int PAIRS    = 9;
+
+    // the first pass of the sort groups the buckets in ranges of this many (a power of two)
+    private static final int RANGE_BITS = 10;
+
+    // bits of each coordinate in a packed cell
+    private static final int  CELL_BITS = 21;
+    private static final long CELL_MASK = (1L << CELL_BITS) - 1;
+
+    private ParticleStore ps;
+    private int           n;
+    private int           blocks;
+    private int           chunkSize;
+
+    // inverse of the cell size
+    private double inv;
+    // squared search range of the neighbour lists
+    private double range2;
+    // cells searched on each axis by LIST
+    private int    span;
+    // buckets - 1 (a power of two)
+    private int    mask;
+    // bits of a bucket within its range, and number of ranges
+    private int    shift;
+    private int    ranges;
+    // bits of the x and y coordinates in a bucket,
+    // and the masks of the three coordinates
+    private int    bitsX;
+    private int    bitsY;
+    private int    maskX;
+    private int    maskY;
+    private int    maskZ;
+    // particles hit faster than this are woken up
+    private double wakeSpeed;
+
+    // the list being built or used, if any
+    private NeighborList list;
+
+    // packed cell coordinates and bucket of each slot
+    private long[] cells;
+    private int[]  keys;
+
+    // counters of each block (one row of ranges per block), then offsets
+    private int[] counts;
+    // first index of each range in partial, plus one at the end
+    private int[] segments;
+    // slots sorted by range only
+    private int[] partial;
+    // first sorted index of each bucket, plus one at the end
+    private int[] starts;
+
+    // neighbours found by each block, and how many
+    // (with their index in the list, once joined)
+    private int[][] found;
+    private int[]   lengths;
+
+    // slots sorted by bucket, and their position, radius,
+    // inverse mass (0 when asleep or frozen) and cell
+    private int[]    sorted;
+    private double[] sx;
+    private double[] sy;
+    private double[] sz;
+    private double[] sr;
+    private double[] sm;
+    private long[]   scells;
+
+    // corrections of each sorted particle
+    private double[]  dx;
+    private double[]  dy;
+    private double[]  dz;
+    private double[]  dvx;
+    private double[]  dvy;
+    private double[]  dvz;
+    private boolean[] hit;
+    private boolean[] woken;
+
+    SpatialHash()
+    {
+        keys = sorted = partial = new int[0];
+        cells = scells = new long[0];
+        sx = sy = sz = sr = sm = dx = dy = dz = dvx = dvy = dvz = new double[0];
+        hit = woken = new boolean[0];
+        counts = segments = starts = lengths = new int[0];
+        found = new int[0][];
+    }
+
+    /**
+     * Resolves the contacts between all particles, rebuilding the hash with the
+     * current positions or, if a list is given, updating the list when needed.
+     *
+     * @param ps        the store
+     * @param pool      used for parallel passes, or null to run them on the calling thread
+     * @param chunkSize maximum number of slots (or buckets) processed by a single task
+     * @param wakeSpeed minimum approaching speed that wakes up a sleeping particle
+     * @param list      neighbour lists to search the contacts in, or null to search the hash
+     * @return the change of the checksum
+     */
+    long collide(final ParticleStore ps,
+                 final ForkJoinPool pool,
+                 final int chunkSize,
+                 final double wakeSpeed,
+                 final NeighborList list)
+    {
+        if (ps.size < 2)
+            return 0L;
+
+        double max = 0.0;
+        for (int i = 0; i < ps.size; i++)
+            max = Math.max(max, ps.radius[i]);
+
+        if (max <= 0.0)
+            return 0L;
+
+        this.wakeSpeed = wakeSpeed;
+
+        if (list == null)
+        {
+            sort(ps, pool, chunkSize, 4.0 * max);
+            invoke(pool, CONTACTS, 0, n);
+        }
+        else
+        {
+            // it may use the hash itself
+            list.update(ps, this, pool, chunkSize, 2.0 * max);
+
+            this.ps = ps;
+            this.list = list;
+            n = ps.size;
+            this.chunkSize = chunkSize;
+            blocks = pool == null || n <= chunkSize ? 1 : pool.getParallelism();
+
+            ensureCapacity();
+
+            // the particles are kept in the order of the last build
+            System.arraycopy(list.order, 0, sorted, 0, n);
+
+            invoke(pool, GATHER, 0, n);
+            invoke(pool, PAIRS, 0, n);
+        }
+
+        final long delta = invoke(pool, APPLY, 0, n);
+
+        this.ps = null;
+        this.list = null;
+
+        return delta;
+    }
+
+    /**
+     * Rebuilds the hash, then fills the list with the neighbours of
+     * each particle within the given range.
+     *
+     * @param list      the list to fill
+     * @param ps        the store
+     * @param pool      used for parallel passes, or null to run them on the calling thread
+     * @param chunkSize maximum number of slots (or buckets) processed by a single task
+     * @param range     maximum distance between the centres of two neighbours
+     * @param dense     true to search the 3 x 3 x 3 cells as large as the range around each particle,
+     *                  instead of the nearest 2 x 2 x 2 cells twice as large: less than half the volume,
+     *                  which pays off when there are many particles in it, but twice the rows to go through
+     */
+    void link(final NeighborList list,
+              final ParticleStore ps,
+              final ForkJoinPool pool,
+              final int chunkSize,
+              final double range,
+              final boolean dense)
+    {
+        sort(ps, pool, chunkSize, dense ? range : 2.0 * range);
+
+        this.list = list;
+        range2 = range * range;
+        span = dense ? 3 : 2;
+
+        list.ensureCapacity(n, 0);
+
+        if (found.length < blocks)
+        {
+            found = Arrays.copyOf(found, blocks);
+            lengths = new int[blocks];
+
+            for (int b = 0; b < blocks; b++)
+                if (found[b] == null)
+                    found[b] = new int[Math.max(16, n / blocks)];
+        }
+
+        // each block lists its particles' neighbours on its own,
+        // then the lists are copied one after the other
+        invoke(pool, LIST, 0, blocks);
+
+        int total = 0;
+
+        for (int b = 0; b < blocks; b++)
+        {
+            final int length = lengths[b];
+
+            lengths[b] = total;
+            total += length;
+        }
+
+        list.ensureCapacity(n, total);
+        list.first[n] = total;
+
+        invoke(pool, JOIN, 0, blocks);
+
+        System.arraycopy(sorted, 0, list.order, 0, n);
+
+        this.ps = null;
+        this.list = null;
+    }
+
+    /**
+     * Sorts the particles in their cells.
+     *
+     * @param ps        the store
+     * @param pool      used for parallel passes, or null to run them on the calling thread
+     * @param chunkSize maximum number of slots (or buckets) processed by a single task
+     * @param size      width of the cells
+     */
+    private void sort(final ParticleStore ps, final ForkJoinPool pool, final int chunkSize, final double size)
+    {
+        this.ps = ps;
+        n = ps.size;
+        this.chunkSize = chunkSize;
+
+        inv = 1.0 / size;
+        blocks = pool == null || n <= chunkSize ? 1 : pool.getParallelism();
+
+        ensureCapacity();
+
+        invoke(pool, KEYS, 0, n);
+        invoke(pool, COUNT, 0, blocks);
+        prefix();
+        invoke(pool, SCATTER, 0, blocks);
+        invoke(pool, REFINE, 0, ranges);
+        invoke(pool, GATHER, 0, n);
+    }
+
+    /**
+     * Runs a pass on the calling thread if there is
+     * no pool or a single block, otherwise in parallel.
+     *
+     * @param pool
+     * @param pass
+     * @param from first slot, block or bucket (inclusive)
+     * @param to   last slot, block or bucket (exclusive)
+     * @return the change of the checksum (only for APPLY)
+     */
+    private long invoke(final ForkJoinPool pool, final int pass, final int from, final int to)
+    {
+        if (pool == null || blocks == 1)
+            return run(pass, from, to);
+
+        final Pass task = new Pass(pass, from, to);
+        pool.invoke(task);
+
+        return task.delta;
+    }
+
+    private void ensureCapacity()
+    {
+        // at least a bucket per particle, so that few cells share one
+        final int buckets = Integer.highestOneBit(Math.max(16, n) - 1) << 1;
+
+        mask = buckets - 1;
+
+        // the bits are split as evenly as possible between the axes
+        final int bits = Integer.numberOfTrailingZeros(buckets);
+
+        bitsX = (bits + 2) / 3;
+        bitsY = (bits + 1) / 3;
+        maskX = (1 << bitsX) - 1;
+        maskY = (1 << bitsY) - 1;
+        maskZ = (1 << (bits - bitsX - bitsY)) - 1;
+
+        shift = Math.min(bits, RANGE_BITS);
+        ranges = buckets >>> shift;
+
+        if (starts.length != buckets + 1)
+            starts = new int[buckets + 1];
+
+        if (segments.length != ranges + 1)
+            segments = new int[ranges + 1];
+
+        if (counts.length < blocks * ranges)
+            counts = new int[blocks * ranges];
+
+        if (keys.length >= n)
+            return;
+
+        final int capacity = Math.max(n, keys.length * 2);
+
+        cells = new long[capacity];
+        keys = new int[capacity];
+        partial = new int[capacity];
+        sorted = new int[capacity];
+        sx = new double[capacity];
+        sy = new double[capacity];
+        sz = new double[capacity];
+        sr = new double[capacity];
+        sm = new double[capacity];
+        scells = new long[capacity];
+        dx = new double[capacity];
+        dy = new double[capacity];
+        dz = new double[capacity];
+        dvx = new double[capacity];
+        dvy = new double[capacity];
+        dvz = new double[capacity];
+        hit = new boolean[capacity];
+        woken = new boolean[capacity];
+    }
+
+    private int bucket(final int x, final int y, final int z)
+    {
+        return (x & maskX) | ((y & maskY) << bitsX) | ((z & maskZ) << (bitsX + bitsY));
+    }
+
+    /**
+     * Runs a pass over a range.
+     *
+     * @param pass
+     * @param from first slot, block or bucket (inclusive)
+     * @param to   last slot, block or bucket (exclusive)
+     * @return the change of the checksum (only for APPLY)
+     */
+    private long run(final int pass, final int from, final int to)
+    {
+        switch (pass)
+        {
+            case KEYS:
+                keys(from, to);
+                break;
+            case COUNT:
+                for (int b = from; b < to; b++)
+                    count(b);
+                break;
+            case SCATTER:
+                for (int b = from; b < to; b++)
+                    scatter(b);
+                break;
+            case REFINE:
+                for (int r = from; r < to; r++)
+                    refine(r);
+                break;
+            case GATHER:
+                gather(from, to);
+                break;
+            case CONTACTS:
+                contacts(from, to);
+                break;
+            case LIST:
+                for (int b = from; b < to; b++)
+                    list(b);
+                break;
+            case JOIN:
+                for (int b = from; b < to; b++)
+                    join(b);
+                break;
+            case PAIRS:
+                pairs(from, to);
+                break;
+            default:
+                return apply(from, to);
+        }
+
+        return 0L;
+    }
+
+    private int blockStart(final int b)
+    {
+        return (int) ((long) n * b / blocks);
+    }
+
+    private void keys(final int from, final int to)
+    {
+        final Vect3DColumn pos = ps.pos;
+
+        for (int i = from; i < to; i++)
+        {
+            final int x = (int) Math.floor(pos.x(i) * inv);
+            final int y = (int) Math.floor(pos.y(i) * inv);
+            final int z = (int) Math.floor(pos.z(i) * inv);
+
+            cells[i] = (x & CELL_MASK) | (y & CELL_MASK) << CELL_BITS | (z & CELL_MASK) << (2 * CELL_BITS);
+            keys[i] = bucket(x, y, z);
+        }
+    }
+
+    private void count(final int b)
+    {
+        final int row = b * ranges;
+
+        Arrays.fill(counts, row, row + ranges, 0);
+
+        for (int i = blockStart(b); i < blockStart(b + 1); i++)
+            counts[row + (keys[i] >>> shift)]++;
+    }
+
+    /**
+     * Turns the range sizes of each block into the first index of its particles
+     * in each range. O(blocks * ranges)
+     */
+    private void prefix()
+    {
+        int sum = 0;
+
+        for (int r = 0; r < ranges; r++)
+        {
+            segments[r] = sum;
+
+            // within a range, the particles of each block
+            // follow those of the previous blocks
+            for (int b = 0; b < blocks; b++)
+            {
+                final int size = counts[b * ranges + r];
+
+                counts[b * ranges + r] = sum;
+                sum += size;
+            }
+        }
+
+        segments[ranges] = sum;
+        starts[mask + 1] = sum;
+    }
+
+    private void scatter(final int b)
+    {
+        final int row = b * ranges;
+
+        for (int i = blockStart(b); i < blockStart(b + 1); i++)
+            partial[counts[row + (keys[i] >>> shift)]++] = i;
+    }
+
+    /**
+     * Sorts the particles of a range by bucket, filling
+     * the starts of the range's buckets.
+     *
+     * @param r the range
+     */
+    private void refine(final int r)
+    {
+        final int first = r << shift;
+        final int last  = first + (1 << shift);
+        final int from  = segments[r];
+        final int to    = segments[r + 1];
+
+        Arrays.fill(starts, first, last, 0);
+
+        for (int k = from; k < to; k++)
+            starts[keys[partial[k]]]++;
+
+        int next = from;
+
+        for (int h = first; h < last; h++)
+        {
+            final int size = starts[h];
+
+            starts[h] = next;
+            next += size;
+        }
+
+        for (int k = from; k < to; k++)
+        {
+            final int i = partial[k];
+            final int m = starts[keys[i]]++;
+
+            sorted[m] = i;
+            scells[m] = cells[i];
+        }
+
+        // each start is now the next one: shift them back
+        for (int h = last - 1; h > first; h--)
+            starts[h] = starts[h - 1];
+
+        starts[first] = from;
+    }
+
+    /**
+     * Copies the state needed to find the contacts
+     * in the sorted order.
+     *
+     * @param from first sorted index (inclusive)
+     * @param to   last sorted index (exclusive)
+     */
+    private void gather(final int from, final int to)
+    {
+        final Vect3DColumn pos   = ps.pos;
+        final int          sleep = ps.sleepSteps;
+
+        for (int k = from; k < to; k++)
+        {
+            final int i = sorted[k];
+
+            sx[k] = pos.x(i);
+            sy[k] = pos.y(i);
+            sz[k] = pos.z(i);
+            sr[k] = ps.radius[i];
+            sm[k] = sleep > 0 && ps.calm[i] >= sleep || ps.tier[i] == ActivationRegion.FROZEN ? 0.0 : ps.invmass[i];
+        }
+    }
+
+    /**
+     * Sums the corrections of the given range of sorted particles.
+     *
+     * @param from first sorted index (inclusive)
+     * @param to   last sorted index (exclusive)
+     */
+    private void contacts(final int from, final int to)
+    {
+        for (int k = from; k < to; k++)
+        {
+            dx[k] = dy[k] = dz[k] = 0.0;
+            dvx[k] = dvy[k] = dvz[k] = 0.0;
+            woken[k] = false;
+
+            hit[k] = scan(k, CONTACTS, 0, 0) > 0 && (sm[k] > 0.0 || woken[k]);
+        }
+    }
+
+    /**
+     * Lists the neighbours of the sorted particles of a block, one list
+     * after the other, keeping the (local) first index of each.
+     *
+     * @param b block
+     */
+    private void list(final int b)
+    {
+        final int[] first = list.first;
+
+        int length = 0;
+
+        for (int k = blockStart(b); k < blockStart(b + 1); k++)
+        {
+            first[k] = length;
+            length += scan(k, LIST, b, length);
+        }
+
+        lengths[b] = length;
+    }
+
+    /**
+     * Copies the lists of a block into the neighbour list.
+     *
+     * @param b block
+     */
+    private void join(final int b)
+    {
+        final int[] first  = list.first;
+        final int   offset = lengths[b];
+        final int   end    = b + 1 < blocks ? lengths[b + 1] : first[n];
+
+        System.arraycopy(found[b], 0, list.neighbors, offset, end - offset);
+
+        for (int k = blockStart(b); k < blockStart(b + 1); k++)
+            first[k] += offset;
+    }
+
+    /**
+     * Goes through the particles in the 2 x 2 x 2 cells nearest to a sorted particle (or in
+     * the 3 x 3 x 3 around it, for dense lists): for CONTACTS, it adds the corrections due
+     * to those it overlaps, and for LIST it writes those within range after the other
+     * neighbours found by its block.
+     *
+     * @param k    sorted index
+     * @param pass CONTACTS or LIST
+     * @param b    block of the particle (only for LIST)
+     * @param at   neighbours found by the block so far (only for LIST)
+     * @return the number of overlapping particles (CONTACTS) or neighbours
+     */
+    private int scan(final int k, final int pass, final int b, final int at)
+    {
+        final double x  = sx[k];
+        final double y  = sy[k];
+        final double z  = sz[k];
+        final double r  = sr[k];
+        final long   c  = scells[k];
+        final int    cx = (int) (c & CELL_MASK);
+        final int    cy = (int) (c >>> CELL_BITS & CELL_MASK);
+        final int    cz = (int) (c >>> (2 * CELL_BITS));
+
+        int count = 0;
+
+        // with cells twice the range, only the nearest neighbour on each axis is
+        // needed (the first of the two cells in each row), otherwise both are
+        final int     cells      = pass == LIST ? span : 2;
+        final int     lx         = cells == 3 ? cx - 1 : cx - (x * inv - Math.floor(x * inv) < 0.5 ? 1 : 0);
+        final int     ly         = cells == 3 ? cy - 1 : cy - (y * inv - Math.floor(y * inv) < 0.5 ? 1 : 0);
+        final int     lz         = cells == 3 ? cz - 1 : cz - (z * inv - Math.floor(z * inv) < 0.5 ? 1 : 0);
+        final int     x0         = lx & maskX;
+        // contiguous buckets, unless the row wraps around
+        final boolean contiguous = x0 + cells <= maskX + 1;
+
+        for (int ny = ly; ny < ly + cells; ny++)
+            for (int nz = lz; nz < lz + cells; nz++)
+            {
+                final int  row     = ((ny & maskY) << bitsX) | ((nz & maskZ) << (bitsX + bitsY));
+                final long cellsYZ = (ny & CELL_MASK) << CELL_BITS | (nz & CELL_MASK) << (2 * CELL_BITS);
+
+                for (int ox = 0; ox < cells; ox++)
+                {
+                    final int lo;
+                    final int hi;
+
+                    if (contiguous)
+                    {
+                        if (ox > 0)
+                            break;
+
+                        lo = starts[row + x0];
+                        hi = starts[row + x0 + cells];
+                    }
+                    else
+                    {
+                        final int h = row + ((x0 + ox) & maskX);
+
+                        lo = starts[h];
+                        hi = starts[h + 1];
+                    }
+
+                    for (int l = lo; l < hi; l++)
+                    {
+                        final long cl = scells[l];
+
+                        // the buckets are shared with faraway cells
+                        if (l == k || (cl & ~CELL_MASK) != cellsYZ || ((cl & CELL_MASK) - lx & CELL_MASK) >= cells)
+                            continue;
+
+                        final double ddx   = x - sx[l];
+                        final double ddy   = y - sy[l];
+                        final double ddz   = z - sz[l];
+                        final double dist2 = ddx * ddx + ddy * ddy + ddz * ddz;
+
+                        if (pass == CONTACTS)
+                        {
+                            final double sum = r + sr[l];
+
+                            // coincident centres have no direction to separate along
+                            if (dist2 >= sum * sum || dist2 == 0.0)
+                                continue;
+
+                            push(k, sorted[k], sorted[l], ddx, ddy, ddz, dist2, sum, sm[k], sm[l]);
+                        }
+                        else if (dist2 < range2)
+                        {
+                            if (at + count == found[b].length)
+                                found[b] = Arrays.copyOf(found[b], 2 * found[b].length);
+
+                            found[b][at + count] = l;
+                        }
+                        else
+                            continue;
+
+                        count++;
+                    }
+                }
+            }
+
+        return count;
+    }
+
+    /**
+     * Sums the corrections of the given range of sorted particles,
+     * going through the neighbour list of each.
+     *
+     * @param from first sorted index (inclusive)
+     * @param to   last sorted index (exclusive)
+     */
+    private void pairs(final int from, final int to)
+    {
+        final int[] first     = list.first;
+        final int[] neighbors = list.neighbors;
+
+        for (int k = from; k < to; k++)
+        {
+            final double x = sx[k];
+            final double y = sy[k];
+            final double z = sz[k];
+            final double r = sr[k];
+
+            dx[k] = dy[k] = dz[k] = 0.0;
+            dvx[k] = dvy[k] = dvz[k] = 0.0;
+            woken[k] = false;
+
+            boolean any = false;
+
+            for (int m = first[k]; m < first[k + 1]; m++)
+            {
+                final int    l     = neighbors[m];
+                final double ddx   = x - sx[l];
+                final double ddy   = y - sy[l];
+                final double ddz   = z - sz[l];
+                final double sum   = r + sr[l];
+                final double dist2 = ddx * ddx + ddy * ddy + ddz * ddz;
+
+                if (dist2 >= sum * sum || dist2 == 0.0)
+                    continue;
+
+                push(k, sorted[k], sorted[l], ddx, ddy, ddz, dist2, sum, sm[k], sm[l]);
+
+                any = true;
+            }
+
+            hit[k] = any && (sm[k] > 0.0 || woken[k]);
+        }
+    }
+
+    /**
+     * Adds to the corrections of a particle those due to a particle it overlaps.
+     *
+     * @param k     index of the corrections
+     * @param i     slot of the particle
+     * @param j     slot of the other particle
+     * @param ddx   x distance from the other particle
+     * @param ddy   y distance from the other particle
+     * @param ddz   z distance from the other particle
+     * @param dist2 squared distance between the centres
+     * @param sum   sum of the radii
+     * @param im    inverse mass of the particle, 0 if asleep or frozen
+     * @param jm    inverse mass of the other particle, 0 if asleep or frozen
+     */
+    private void push(final int k,
+                      final int i,
+                      final int j,
+                      final double ddx,
+                      final double ddy,
+                      final double ddz,
+                      final double dist2,
+                      final double sum,
+                      final double im,
+                      final double jm)
+    {
+        final ParticleStore s = ps;
+
+        final double dist = Math.sqrt(dist2);
+        final double nrx  = ddx / dist;
+        final double nry  = ddy / dist;
+        final double nrz  = ddz / dist;
+
+        // relative velocity along the normal
+        final double vn = (s.vel.x(i) - s.vel.x(j)) * nrx +
+                          (s.vel.y(i) - s.vel.y(j)) * nry +
+                          (s.vel.z(i) - s.vel.z(j)) * nrz;
+
+        // a sleeping particle hit fast enough wakes up, and takes
+        // part in the contact with its own mass (on both sides),
+        // while a frozen one never moves
+        final boolean fast  = -vn > wakeSpeed;
+        final boolean wakeI = fast && im == 0.0 && s.tier[i] != ActivationRegion.FROZEN;
+        final boolean wakeJ = fast && jm == 0.0 && s.tier[j] != ActivationRegion.FROZEN;
+
+        if (wakeI && s.sleepSteps > 0 && s.calm[i] >= s.sleepSteps)
+            woken[k] = true;
+
+        final double wi = wakeI ? s.invmass[i] : im;
+        final double wj = wakeJ ? s.invmass[j] : jm;
+        final double w  = wi + wj;
+
+        if (w == 0.0)
+            return;
+
+        // this particle's share of the overlap
+        final double push = (sum - dist) * wi / w;
+
+        dx[k] += nrx * push;
+        dy[k] += nry * push;
+        dz[k] += nrz * push;
+
+        if (vn < 0.0)
+        {
+            final double e       = Materials.getBounciness(s.material[i], s.material[j]);
+            final double impulse = -(1.0 + e) * vn / w * wi;
+
+            dvx[k] += nrx * impulse;
+            dvy[k] += nry * impulse;
+            dvz[k] += nrz * impulse;
+        }
+    }
+
+    /**
+     * Applies the corrections of the given range of sorted particles.
+     *
+     * @param from first sorted index (inclusive)
+     * @param to   last sorted index (exclusive)
+     * @return the change of the checksum
+     */
+    private long apply(final int from, final int to)
+    {
+        final ParticleStore s = ps;
+
+        long delta = 0L;
+
+        for (int k = from; k < to; k++)
+        {
+            final int i = sorted[k];
+
+            // it will move at the next step
+            if (woken[k])
+                s.calm[i] = 0;
+
+            if (!hit[k])
+                continue;
+
+            s.pos.set(i, s.pos.x(i) + dx[k], s.pos.y(i) + dy[k], s.pos.z(i) + dz[k]);
+            s.vel.set(i, s.vel.x(i) + dvx[k], s.vel.y(i) + dvy[k], s.vel.z(i) + dvz[k]);
+
+            if (s.hashing)
+            {
+                final long h = s.hash(i);
+
+                delta += h - s.hash[i];
+                s.hash[i] = h;
+            }
+        }
+
+        return delta;
+    }
+
+    /**
+     * Recursively halves a range until it fits in a
+     * chunk (or a single block), then runs a pass on it.
+     */
+    private final class Pass extends RecursiveAction
+    {
+        private static final long serialVersionUID = 273001983601371519L;
+
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        // change of the checksum over the range
+        private long delta;
+
+        Pass(final int pass, final int from, final int to)
+        {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            // one block or range per task
+            final boolean overBlocks = pass == COUNT || pass == SCATTER || pass == REFINE ||
+                                       pass == LIST || pass == JOIN;
+
+            if (to - from <= (overBlocks ? 1 : chunkSize))
+            {
+                delta = run(pass, from, to);
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+
+            final Pass left  = new Pass(pass, from, mid);
+            final Pass right = new Pass(pass, mid, to);
+
+            invokeAll(left, right);
+
+            delta = left.delta + right.delta;
+        }
+    }
+}
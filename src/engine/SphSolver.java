@@ -0,0 +1,356 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package engine;
+
+import environment.Fluid;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Smoothed-particle hydrodynamics: pressure and viscosity forces between the particles
+ * of a {@link ParticleStore}, so that they behave as a {@link Fluid}
+ * (see {@link Simulator#setFluid(Fluid)}).
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * At each step, the density of each particle is summed over the particles within the
+ * smoothing length, weighted by the poly6 kernel, and gives its pressure (proportional to
+ * the density over the rest one, and never negative, so that the fluid doesn't clump).
+ * Then each pair of neighbours is pushed apart by their mean pressure, along the gradient
+ * of the spiky kernel, and their velocities are smoothed by the viscosity, along the
+ * laplacian of the viscosity kernel (Muller et al., 2003). Both forces are symmetric,
+ * so the momentum is conserved.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The neighbours are found with a {@link NeighborList}, and the particles' state is
+ * copied in its order, so that each pass reads neighbours from nearby memory. Each pass
+ * runs in parallel over fixed ranges of particles, and each particle only writes its own
+ * values, so the results don't depend on the number of threads. As for {@link BarnesHut},
+ * the force per unit mass is computed once per step, with the state at the start of
+ * the step, and added to the force of each evaluation.
+ *
+ * @author Fabio Ticconi
+ */
+final class SphSolver
+{
+    private static final int GATHER  = 0;
+    private static final int DENSITY = 1;
+    private static final int FORCES  = 2;
+
+    // skin of the neighbour lists, relative to the smoothing length
+    private static final double SKIN = 0.25;
+
+    private final Fluid fluid;
+
+    // smoothing length, its square, and the constant factors of the kernels
+    private final double h;
+    private final double h2;
+    private final double poly6;
+    private final double spiky;
+
+    private final SpatialHash  hash;
+    private final NeighborList list;
+
+    private ParticleStore ps;
+    private int           n;
+    private int           chunkSize;
+
+    // state of each particle, in the order of the lists
+    private double[] sx;
+    private double[] sy;
+    private double[] sz;
+    private double[] svx;
+    private double[] svy;
+    private double[] svz;
+    private double[] sm;
+    private double[] density;
+    private double[] pressure;
+
+    // force per unit mass of each slot
+    double[] fx;
+    double[] fy;
+    double[] fz;
+
+    SphSolver(final Fluid fluid)
+    {
+        this.fluid = fluid;
+
+        h = fluid.getSmoothing();
+        h2 = h * h;
+        // powers by multiplication: Math.pow may differ between machines
+        final double h3 = h2 * h;
+        poly6 = 315.0 / (64.0 * Math.PI * h3 * h3 * h3);
+        spiky = 45.0 / (Math.PI * h3 * h3);
+
+        hash = new SpatialHash();
+        list = new NeighborList(SKIN * h, true);
+
+        sx = sy = sz = svx = svy = svz = sm = density = pressure = fx = fy = fz = new double[0];
+    }
+
+    Fluid getFluid()
+    {
+        return fluid;
+    }
+
+    /**
+     * Computes the density of each particle, then the
+     * pressure and viscosity force per unit mass on it.
+     *
+     * @param ps        the store
+     * @param pool      used for parallel passes, or null to run them on the calling thread
+     * @param chunkSize maximum number of particles processed by a single task
+     */
+    void compute(final ParticleStore ps, final ForkJoinPool pool, final int chunkSize)
+    {
+        this.ps = ps;
+        n = ps.size;
+        this.chunkSize = chunkSize;
+
+        if (n == 0)
+            return;
+
+        list.update(ps, hash, pool, chunkSize, h);
+
+        ensureCapacity();
+
+        if (pool == null || n <= chunkSize)
+        {
+            run(GATHER, 0, n);
+            run(DENSITY, 0, n);
+            run(FORCES, 0, n);
+        }
+        else
+        {
+            pool.invoke(new Pass(GATHER, 0, n));
+            pool.invoke(new Pass(DENSITY, 0, n));
+            pool.invoke(new Pass(FORCES, 0, n));
+        }
+
+        this.ps = null;
+    }
+
+    /**
+     * Adds the forces to the particles of a batch.
+     *
+     * @param b the batch
+     */
+    void apply(final ParticleBatch b)
+    {
+        final int[] slots = b.slots;
+
+        for (int k = 0; k < b.size; k++)
+        {
+            final int    i = slots[k];
+            final double m = b.mass[k];
+
+            b.forceX[k] += fx[i] * m;
+            b.forceY[k] += fy[i] * m;
+            b.forceZ[k] += fz[i] * m;
+        }
+    }
+
+    private void ensureCapacity()
+    {
+        if (sx.length >= n)
+            return;
+
+        final int capacity = Math.max(n, sx.length * 2);
+
+        sx = new double[capacity];
+        sy = new double[capacity];
+        sz = new double[capacity];
+        svx = new double[capacity];
+        svy = new double[capacity];
+        svz = new double[capacity];
+        sm = new double[capacity];
+        density = new double[capacity];
+        pressure = new double[capacity];
+        fx = new double[capacity];
+        fy = new double[capacity];
+        fz = new double[capacity];
+    }
+
+    /**
+     * Runs a pass over a range of particles, in the order of the lists.
+     *
+     * @param pass
+     * @param from first particle (inclusive)
+     * @param to   last particle (exclusive)
+     */
+    private void run(final int pass, final int from, final int to)
+    {
+        switch (pass)
+        {
+            case GATHER:
+                gather(from, to);
+                break;
+            case DENSITY:
+                density(from, to);
+                break;
+            default:
+                forces(from, to);
+        }
+    }
+
+    private void gather(final int from, final int to)
+    {
+        final Vect3DColumn pos   = ps.pos;
+        final Vect3DColumn vel   = ps.vel;
+        final int[]        order = list.order;
+
+        for (int k = from; k < to; k++)
+        {
+            final int i = order[k];
+
+            sx[k] = pos.x(i);
+            sy[k] = pos.y(i);
+            sz[k] = pos.z(i);
+            svx[k] = vel.x(i);
+            svy[k] = vel.y(i);
+            svz[k] = vel.z(i);
+            sm[k] = ps.mass[i];
+        }
+    }
+
+    private void density(final int from, final int to)
+    {
+        final int[]  first     = list.first;
+        final int[]  neighbors = list.neighbors;
+        final double rest      = fluid.getRestDensity();
+        final double stiffness = fluid.getStiffness();
+
+        for (int k = from; k < to; k++)
+        {
+            final double x = sx[k];
+            final double y = sy[k];
+            final double z = sz[k];
+
+            // the particle itself, at distance 0
+            double rho = sm[k] * poly6 * h2 * h2 * h2;
+
+            for (int m = first[k]; m < first[k + 1]; m++)
+            {
+                final int    l  = neighbors[m];
+                final double dx = x - sx[l];
+                final double dy = y - sy[l];
+                final double dz = z - sz[l];
+                final double d  = h2 - (dx * dx + dy * dy + dz * dz);
+
+                if (d > 0.0)
+                    rho += sm[l] * poly6 * d * d * d;
+            }
+
+            density[k] = rho;
+            pressure[k] = Math.max(0.0, stiffness * (rho - rest));
+        }
+    }
+
+    private void forces(final int from, final int to)
+    {
+        final int[]  first     = list.first;
+        final int[]  neighbors = list.neighbors;
+        final int[]  order     = list.order;
+        final double mu        = fluid.getViscosity();
+
+        for (int k = from; k < to; k++)
+        {
+            final double x   = sx[k];
+            final double y   = sy[k];
+            final double z   = sz[k];
+            final double rho = density[k];
+            final double p   = pressure[k];
+
+            double ax = 0.0, ay = 0.0, az = 0.0;
+
+            for (int m = first[k]; m < first[k + 1]; m++)
+            {
+                final int    l  = neighbors[m];
+                final double dx = x - sx[l];
+                final double dy = y - sy[l];
+                final double dz = z - sz[l];
+                final double r2 = dx * dx + dy * dy + dz * dz;
+
+                // coincident particles have no direction to push along
+                if (r2 >= h2 || r2 == 0.0)
+                    continue;
+
+                final double r      = Math.sqrt(r2);
+                final double d      = h - r;
+                final double shared = sm[l] * spiky * d / (rho * density[l]);
+
+                // pressure, away from the neighbour
+                final double sp = shared * (p + pressure[l]) * 0.5 * d / r;
+
+                ax += dx * sp;
+                ay += dy * sp;
+                az += dz * sp;
+
+                // viscosity, towards the neighbour's velocity
+                final double sv = shared * mu;
+
+                ax += (svx[l] - svx[k]) * sv;
+                ay += (svy[l] - svy[k]) * sv;
+                az += (svz[l] - svz[k]) * sv;
+            }
+
+            final int i = order[k];
+
+            fx[i] = ax;
+            fy[i] = ay;
+            fz[i] = az;
+        }
+    }
+
+    /**
+     * Recursively halves a range until it fits
+     * in a chunk, then runs a pass on it.
+     */
+    private final class Pass extends RecursiveAction
+    {
+        private static final long serialVersionUID = -7405694498655191131L;
+
+        private final int pass;
+        private final int from;
+        private final int to;
+
+        Pass(final int pass, final int from, final int to)
+        {
+            this.pass = pass;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (to - from <= chunkSize)
+            {
+                run(pass, from, to);
+                return;
+            }
+
+            final int mid = (from + to) >>> 1;
+
+            invokeAll(new Pass(pass, from, mid), new Pass(pass, mid, to));
+        }
+    }
+}
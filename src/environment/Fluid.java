@@ -0,0 +1,108 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package environment;
+
+/**
+ * Parameters of a fluid simulated with smoothed-particle hydrodynamics (see
+ * {@link engine.Simulator#setFluid(Fluid)}): each particle is a small parcel of fluid,
+ * and its density is estimated from the particles within the smoothing length.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The smoothing length should be about twice the spacing of the particles at rest, and
+ * each particle's mass about the rest density times the cube of the spacing (see
+ * {@link #getParticleMass(double)}). A higher stiffness makes the fluid less compressible
+ * but needs a smaller timestep: the speed of sound is the square root of the stiffness,
+ * and it should not cross more than a fraction of the smoothing length per step. Some
+ * viscosity is needed anyway, to damp the noise of the pressure between particles.
+ *
+ * @author Fabio Ticconi
+ */
+public final class Fluid
+{
+    private final double smoothing;
+    private final double restDensity;
+    private final double stiffness;
+    private final double viscosity;
+
+    /**
+     * @param smoothing   distance within which particles interact, more than 0
+     * @param restDensity density at which there is no pressure
+     * @param stiffness   pressure per unit of density over the rest density
+     * @param viscosity   dynamic viscosity (0 for none)
+     */
+    public Fluid(final double smoothing, final double restDensity, final double stiffness, final double viscosity)
+    {
+        this.smoothing = smoothing;
+        this.restDensity = restDensity;
+        this.stiffness = stiffness;
+        this.viscosity = viscosity;
+    }
+
+    public double getSmoothing()
+    {
+        return smoothing;
+    }
+
+    public double getRestDensity()
+    {
+        return restDensity;
+    }
+
+    public double getStiffness()
+    {
+        return stiffness;
+    }
+
+    public double getViscosity()
+    {
+        return viscosity;
+    }
+
+    /**
+     * The density of a particle is estimated from its neighbours, so even a regular lattice
+     * of particles with mass equal to the rest density times the cube of the spacing is a
+     * bit denser or lighter than at rest, and would start moving. This returns the mass that
+     * makes a cubic lattice exactly at rest (with the same poly6 kernel as the solver).
+     *
+     * @param spacing distance between neighbouring particles, more than 0
+     * @return the mass of each particle
+     */
+    public double getParticleMass(final double spacing)
+    {
+        final double h2 = smoothing * smoothing;
+        final int    n  = (int) Math.ceil(smoothing / spacing);
+
+        double sum = 0.0;
+
+        for (int x = -n; x <= n; x++)
+            for (int y = -n; y <= n; y++)
+                for (int z = -n; z <= n; z++)
+                {
+                    final double d = h2 - (x * x + y * y + z * z) * spacing * spacing;
+
+                    if (d > 0.0)
+                        sum += d * d * d;
+                }
+
+        // same as the solver's kernel constant, without Math.pow (see Simulator#setDeterministic)
+        final double h3 = h2 * smoothing;
+
+        return restDensity / (sum * 315.0 / (64.0 * Math.PI * h3 * h3 * h3));
+    }
+}
@@ -0,0 +1,271 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package environment;
+
+import engine.ParticleBatch;
+import utils.ImmutableVect3D;
+
+/**
+ * A user-specified force, added to the particles after the {@link World}'s own (see
+ * {@link engine.Simulator#addForceGenerator(ForceGenerator)}). Like
+ * {@link World#process(ParticleBatch, int, int, double)}, it works on a whole range of a
+ * batch at a time, so that a simulator with many generators makes one call per generator
+ * and batch, and not one per generator and particle.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Generators are built from the factories below, and restricted with {@link #during(double, double)}
+ * to a window of simulation time, and with {@link #where(Condition)} to the particles meeting a
+ * condition on their position, velocity or force. For example, a wind blowing for two seconds,
+ * only over a box:
+ * <p>
+ * <code>ForceGenerator.acceleration(wind).during(1.0, 3.0).where(Condition.inside(min, max))</code>
+ *
+ * @author Fabio Ticconi
+ */
+public interface ForceGenerator
+{
+    /**
+     * Adds forces to the particles in the given range of the batch. It's called for every
+     * batch once or twice per step (depending on the {@link engine.Integrator}), so it should
+     * be cheap and never allocate.
+     *
+     * @param b    the particles' state
+     * @param from first entry (inclusive)
+     * @param to   last entry (exclusive)
+     * @param time simulation time at the start of the step (see {@link engine.Simulator#getTime()})
+     * @param dt
+     */
+    void apply(final ParticleBatch b, final int from, final int to, final double time, final double dt);
+
+    /**
+     * Restricts this generator to a window of simulation time. The window is checked once
+     * per batch, so it costs nothing outside of it.
+     *
+     * @param start first time the force is applied (inclusive)
+     * @param end   last time the force is applied (exclusive)
+     * @return the restricted generator
+     */
+    default ForceGenerator during(final double start, final double end)
+    {
+        return (b, from, to, time, dt) ->
+        {
+            if (time >= start && time < end)
+                apply(b, from, to, time, dt);
+        };
+    }
+
+    /**
+     * Restricts this generator to the particles meeting a condition. The condition is
+     * checked on each particle, but this generator is applied to whole runs of consecutive
+     * particles meeting it: as the simulator keeps close particles close in the batches (see
+     * {@link engine.Simulator#setReorderInterval(int)}), a condition on the position usually
+     * selects a few long runs.
+     *
+     * @param condition
+     * @return the restricted generator
+     */
+    default ForceGenerator where(final Condition condition)
+    {
+        return (b, from, to, time, dt) ->
+        {
+            int k = from;
+
+            while (k < to)
+            {
+                while (k < to && !condition.test(b, k))
+                    k++;
+
+                final int first = k;
+
+                while (k < to && condition.test(b, k))
+                    k++;
+
+                if (k > first)
+                    apply(b, first, k, time, dt);
+            }
+        };
+    }
+
+    /**
+     * @param force the force on each particle
+     * @return a generator adding the same force to all particles
+     */
+    static ForceGenerator force(final ImmutableVect3D force)
+    {
+        final double fx = force.x;
+        final double fy = force.y;
+        final double fz = force.z;
+
+        return (b, from, to, time, dt) ->
+        {
+            for (int k = from; k < to; k++)
+            {
+                b.forceX[k] += fx;
+                b.forceY[k] += fy;
+                b.forceZ[k] += fz;
+            }
+        };
+    }
+
+    /**
+     * @param acceleration the acceleration of each particle
+     * @return a generator adding a force proportional to the mass, like gravity
+     */
+    static ForceGenerator acceleration(final ImmutableVect3D acceleration)
+    {
+        final double ax = acceleration.x;
+        final double ay = acceleration.y;
+        final double az = acceleration.z;
+
+        return (b, from, to, time, dt) ->
+        {
+            for (int k = from; k < to; k++)
+            {
+                final double m = b.mass[k];
+
+                b.forceX[k] += ax * m;
+                b.forceY[k] += ay * m;
+                b.forceZ[k] += az * m;
+            }
+        };
+    }
+
+    /**
+     * @param coefficient force per unit of speed
+     * @return a generator adding a linear damping, -coefficient * velocity
+     */
+    static ForceGenerator damping(final double coefficient)
+    {
+        return (b, from, to, time, dt) ->
+        {
+            for (int k = from; k < to; k++)
+            {
+                b.forceX[k] -= coefficient * b.velX[k];
+                b.forceY[k] -= coefficient * b.velY[k];
+                b.forceZ[k] -= coefficient * b.velZ[k];
+            }
+        };
+    }
+
+    /**
+     * @param coefficient force per squared unit of speed
+     * @return a generator adding a quadratic drag, -coefficient * |velocity| * velocity
+     */
+    static ForceGenerator drag(final double coefficient)
+    {
+        return (b, from, to, time, dt) ->
+        {
+            for (int k = from; k < to; k++)
+            {
+                final double vx = b.velX[k];
+                final double vy = b.velY[k];
+                final double vz = b.velZ[k];
+                final double c  = coefficient * Math.sqrt(vx * vx + vy * vy + vz * vz);
+
+                b.forceX[k] -= c * vx;
+                b.forceY[k] -= c * vy;
+                b.forceZ[k] -= c * vz;
+            }
+        };
+    }
+
+    /**
+     * A condition on a particle of a batch (see {@link #where(Condition)}).
+     */
+    interface Condition
+    {
+        /**
+         * Tells whether a particle meets the condition. It's called for many particles at
+         * each step, so it should be cheap and never allocate.
+         *
+         * @param b the particles' state
+         * @param k entry of the particle
+         * @return true if the particle meets the condition
+         */
+        boolean test(final ParticleBatch b, final int k);
+
+        /**
+         * @param other
+         * @return a condition met when both this and the other condition are
+         */
+        default Condition and(final Condition other)
+        {
+            return (b, k) -> test(b, k) && other.test(b, k);
+        }
+
+        /**
+         * @return a condition met when this one isn't
+         */
+        default Condition negate()
+        {
+            return (b, k) -> !test(b, k);
+        }
+
+        /**
+         * @param min minimum corner of the box
+         * @param max maximum corner of the box
+         * @return a condition met by the particles inside the box
+         */
+        static Condition inside(final ImmutableVect3D min, final ImmutableVect3D max)
+        {
+            final double x0 = min.x;
+            final double y0 = min.y;
+            final double z0 = min.z;
+            final double x1 = max.x;
+            final double y1 = max.y;
+            final double z1 = max.z;
+
+            return (b, k) -> b.x[k] >= x0 && b.x[k] <= x1 &&
+                             b.y[k] >= y0 && b.y[k] <= y1 &&
+                             b.z[k] >= z0 && b.z[k] <= z1;
+        }
+
+        /**
+         * @param speed
+         * @return a condition met by the particles faster than the given speed
+         */
+        static Condition fasterThan(final double speed)
+        {
+            final double s2 = speed * speed;
+
+            return (b, k) -> b.velX[k] * b.velX[k] + b.velY[k] * b.velY[k] + b.velZ[k] * b.velZ[k] > s2;
+        }
+
+        /**
+         * The net force includes the world's and those of the generators applied before.
+         *
+         * @param acceleration
+         * @return a condition met by the particles whose net force, so far, would accelerate
+         * them more than the given acceleration
+         */
+        static Condition acceleratedMoreThan(final double acceleration)
+        {
+            final double a2 = acceleration * acceleration;
+
+            return (b, k) ->
+            {
+                final double fx = b.forceX[k] * b.invmass[k];
+                final double fy = b.forceY[k] * b.invmass[k];
+                final double fz = b.forceZ[k] * b.invmass[k];
+
+                return fx * fx + fy * fy + fz * fz > a2;
+            };
+        }
+    }
+}
@@ -18,6 +18,7 @@ package environment;
 import collision.Collider;
 import collision.Static;
 import engine.Particle;
+import engine.ParticleBatch;
 import engine.Simulator;
 import utils.ImmutableVect3D;
 import utils.Vect3D;
@@ -27,6 +28,15 @@ import utils.Vect3D;
  */
 public class Forces
 {
+    // per-thread scratch vectors for processImpact
+    private static final ThreadLocal<Vect3D[]> scratch = ThreadLocal.withInitial(() -> new Vect3D[] {new Vect3D(),
+                                                                                                     new Vect3D(),
+                                                                                                     new Vect3D(),
+                                                                                                     new Vect3D(),
+                                                                                                     new Vect3D(),
+                                                                                                     new Vect3D(),
+                                                                                                     new Vect3D()});
+
     /**
      * When a particle has both old and current position within a box,
      * we must zero the velocity because in that case no further movement is allowed:
@@ -38,6 +48,8 @@ public class Forces
      * <p>
      * We also have to apply friction on the contact surface, if the particle is moving
      * there too.
+     * <p>
+     * This is called for every contact at every step, so it never allocates.
      *
      * @param p
      * @param box
@@ -46,13 +58,9 @@ public class Forces
      */
     public static boolean processImpact(final Particle p, final Static box, final double dt)
     {
-        final Vect3D force  = p.getForce();
         final Vect3D vel    = p.getVelocity();
         final Vect3D pos    = p.getCenter();
         final Vect3D oldpos = p.getOldCenter();
-        final double b      = p.getBounciness();
-        final double m      = p.getMass();
-        final double ud     = (p.getFriction() + box.getFriction()) / 2.0;
 
         // if the previous position is in the box, then
         // we shouldn't do anything: we are stuck
@@ -69,50 +77,72 @@ public class Forces
         // and the old position is, then we
         else if (Collider.test(pos, box))
         {
-            // our movement has brought us inside a box,
-            // we must move back towards the old position and stop just outside the box,
-            // then add a contact force
-
-            final Vect3D isec      = new Vect3D();
-            final Vect3D normal    = new Vect3D();
-            final Vect3D direction = new Vect3D(pos).sub(oldpos).normalise();
+            impact(oldpos, pos, vel, p.getMass(), p.getMaterial(), box, dt, p.getForce());
 
-            // FIXME: this should be extended to other Shapes!
-            Collider.intersectRayBox(oldpos, direction, box, isec, normal);
+            return true;
+        }
 
-            // normal component of velocity relative to the contact surface
-            final Vect3D normalComponent = new Vect3D(normal).mul(Vect3D.dot(normal, vel));
-            // final Vect3D normalComponentForce = new Vect3D(normal).mul(Vect3D.dot(normal, force));
-            // tangential component of velocity relative to the contact surface
-            final Vect3D tangentialComponent = new Vect3D(vel).sub(normalComponent);
+        return false;
+    }
 
-            // FIXME: that "times 2.0" is totally made up: without it, the force is not enough
-            // to change velocity, even with bounciness=1. With this multiplication, it seems to work fine..
-            final Vect3D f = new Vect3D(normalComponent).mul(Math.round(-(1.0 + b) * m)).mul(2.0);
-            // FIXME: this is wrong. It should technically be:
-            // f.add(new Vect3D(tangentialComponent).invert().mul(normalComponentForce).mul(ud * m));
-            // but if the particle force is still zero, it won't work.
-            // in general, friction should NOT be proportional to velocity (even just the tangential component)
-            // but in practice, it does the job.
-            f.add(new Vect3D(tangentialComponent).invert().mul(ud * m));
-            f.div(dt);
-            force.add(f);
+    /**
+     * Same as {@link #processImpact(Particle, Static, double)}, for
+     * a particle of a batch.
+     *
+     * @param b   the particles' state
+     * @param k   entry of the particle
+     * @param box
+     * @param dt
+     * @return
+     */
+    public static boolean processImpact(final ParticleBatch b, final int k, final Static box, final double dt)
+    {
+        final double ox = b.oldX[k];
+        final double oy = b.oldY[k];
+        final double oz = b.oldZ[k];
 
-            // move the particle just before the Box
-            pos.set(isec.add(normal.mul(0.01)));
+        // if the previous position is in the box, then
+        // we shouldn't do anything: we are stuck
+        if (Collider.test(ox, oy, oz, box))
+        {
+            b.velX[k] = b.velY[k] = b.velZ[k] = 0.0;
 
-            // vel.set(ImmutableVect3D.zero);
+            // we reset the position to the previous one
+            b.x[k] = ox;
+            b.y[k] = oy;
+            b.z[k] = oz;
 
-            if (Simulator.VERBOSE)
-            {
-                System.out.println("\n#process impact#");
-                System.out.format("normal comp: %s\n", normalComponent);
-                System.out.format("tangential comp: %s\n", tangentialComponent);
-                System.out.format("vel: %s\n", vel);
-                System.out.format("impact force: %s\n", f);
-                System.out.format("pos: %s\n", pos);
-                System.out.println();
-            }
+            return true;
+        }
+        // if the previous position is NOT in the box,
+        // and the old position is, then we
+        else if (Collider.test(b.x[k], b.y[k], b.z[k], box))
+        {
+            final Vect3D[] tmp    = scratch.get();
+            final Vect3D   oldpos = tmp[3];
+            final Vect3D   pos    = tmp[4];
+            final Vect3D   vel    = tmp[5];
+            final Vect3D   force  = tmp[6].set(ImmutableVect3D.zero);
+
+            oldpos.x = ox;
+            oldpos.y = oy;
+            oldpos.z = oz;
+            pos.x = b.x[k];
+            pos.y = b.y[k];
+            pos.z = b.z[k];
+            vel.x = b.velX[k];
+            vel.y = b.velY[k];
+            vel.z = b.velZ[k];
+
+            impact(oldpos, pos, vel, b.mass[k], b.material[k], box, dt, force);
+
+            b.forceX[k] += force.x;
+            b.forceY[k] += force.y;
+            b.forceZ[k] += force.z;
+
+            b.x[k] = pos.x;
+            b.y[k] = pos.y;
+            b.z[k] = pos.z;
 
             return true;
         }
@@ -120,6 +150,85 @@ public class Forces
         return false;
     }
 
+    /**
+     * Our movement has brought us inside a box: we must move back towards the old
+     * position and stop just outside the box, then add a contact force.
+     * It only uses the first three scratch vectors.
+     *
+     * @param oldpos   position before the movement, outside the box
+     * @param pos      position inside the box, replaced with the one just outside
+     * @param vel      velocity
+     * @param m        mass
+     * @param material material of the particle
+     * @param box
+     * @param dt
+     * @param force    gets the contact force added
+     */
+    private static void impact(final Vect3D oldpos,
+                               final Vect3D pos,
+                               final Vect3D vel,
+                               final double m,
+                               final int material,
+                               final Static box,
+                               final double dt,
+                               final Vect3D force)
+    {
+        final double b  = Materials.getBounciness(material, box.getMaterial());
+        final double ud = Materials.getFriction(material, box.getMaterial());
+
+        // scratch vectors, so that no allocation happens on this hot path
+        final Vect3D[] tmp       = scratch.get();
+        final Vect3D   isec      = tmp[0].set(ImmutableVect3D.zero);
+        final Vect3D   normal    = tmp[1].set(ImmutableVect3D.zero);
+        final Vect3D   direction = tmp[2].set(pos).sub(oldpos).normalise();
+
+        // FIXME: this should be extended to other Shapes!
+        Collider.intersectRayBox(oldpos, direction, box, isec, normal);
+
+        // normal component of velocity relative to the contact surface
+        final double dn  = Vect3D.dot(normal, vel);
+        final double ncx = normal.x * dn;
+        final double ncy = normal.y * dn;
+        final double ncz = normal.z * dn;
+        // tangential component of velocity relative to the contact surface
+        final double tcx = vel.x - ncx;
+        final double tcy = vel.y - ncy;
+        final double tcz = vel.z - ncz;
+
+        // FIXME: that "times 2.0" is totally made up: without it, the force is not enough
+        // to change velocity, even with bounciness=1. With this multiplication, it seems to work fine..
+        final double bounce = Math.round(-(1.0 + b) * m);
+        // FIXME: this is wrong. It should technically be proportional to the normal component of the force,
+        // but if the particle force is still zero, it won't work.
+        // in general, friction should NOT be proportional to velocity (even just the tangential component)
+        // but in practice, it does the job.
+        final double fric = ud * m;
+
+        final double fx = ((ncx * bounce) * 2.0 + (-tcx) * fric) / dt;
+        final double fy = ((ncy * bounce) * 2.0 + (-tcy) * fric) / dt;
+        final double fz = ((ncz * bounce) * 2.0 + (-tcz) * fric) / dt;
+
+        force.x += fx;
+        force.y += fy;
+        force.z += fz;
+
+        // move the particle just before the Box
+        pos.set(isec.add(normal.mul(0.01)));
+
+        // vel.set(ImmutableVect3D.zero);
+
+        if (Simulator.VERBOSE)
+        {
+            System.out.println("\n#process impact#");
+            System.out.format("normal comp: (%f, %f, %f)\n", ncx, ncy, ncz);
+            System.out.format("tangential comp: (%f, %f, %f)\n", tcx, tcy, tcz);
+            System.out.format("vel: %s\n", vel);
+            System.out.format("impact force: (%f, %f, %f)\n", fx, fy, fz);
+            System.out.format("pos: %s\n", pos);
+            System.out.println();
+        }
+    }
+
     public static Vect3D contact(final Particle p, final Static box, final double dt)
     {
         if (Collider.test(p.getCenter(), box))
@@ -132,9 +241,10 @@ public class Forces
             final Vect3D vel    = p.getVelocity();
             final Vect3D pos    = p.getCenter();
             final Vect3D oldpos = p.getOldCenter();
-            final double b      = p.getBounciness();
+            final int    mat    = p.getMaterial();
+            final double b      = Materials.getBounciness(mat, box.getMaterial());
             final double m      = p.getMass();
-            final double ud     = (p.getFriction() + box.getFriction()) / 2.0;
+            final double ud     = Materials.getFriction(mat, box.getMaterial());
 
             final Vect3D isec      = new Vect3D();
             final Vect3D normal    = new Vect3D();
@@ -0,0 +1,59 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+
+package environment;
+
+/**
+ * A force acting between every pair of particles, depending only on their distance, like
+ * gravitation (see {@link engine.Simulator#setInteraction(Interaction, double)}).
+ * The force on a particle is directed along the line to the other particle, and proportional to
+ * both their masses: it attracts the particle when the strength is positive, and repels it when
+ * negative.
+ *
+ * @author Fabio Ticconi
+ */
+public interface Interaction
+{
+    /**
+     * Returns the strength of the interaction at the given distance. It's called
+     * for many pairs at each step, so it should be cheap and never allocate.
+     *
+     * @param r2 squared distance between two particles
+     * @return the force between two particles of unit mass, divided by their distance
+     * (positive if attractive, negative if repulsive)
+     */
+    double strength(final double r2);
+
+    /**
+     * Newtonian gravitation, G m1 m2 / r^2, softened so that it stays finite at short
+     * distances: the force is G m1 m2 r / (r^2 + e^2)^(3/2).
+     *
+     * @param g         gravitational constant (negative for a repulsion)
+     * @param softening length e below which the force fades, more than 0 if particles can overlap
+     * @return the interaction
+     */
+    static Interaction gravitation(final double g, final double softening)
+    {
+        final double e2 = softening * softening;
+
+        return r2 ->
+        {
+            final double d2 = r2 + e2;
+
+            return g / (d2 * Math.sqrt(d2));
+        };
+    }
+}
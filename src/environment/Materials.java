@@ -0,0 +1,188 @@
+/*
+  Copyright 2015 Fabio Ticconi
+  <p>
+  Licensed under the Apache License, Version 2.0 (the "License");
+  you may not use this file except in compliance with the License.
+  You may obtain a copy of the License at
+  <p>
+  http://www.apache.org/licenses/LICENSE-2.0
+  <p>
+  Unless required by applicable law or agreed to in writing, software
+  distributed under the License is distributed on an "AS IS" BASIS,
+  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+  See the License for the specific language governing permissions and
+  limitations under the License.
+ */
+package environment;
+
+import java.util.Arrays;
+
+/**
+ * Registry of the surface materials shared by particles and static objects.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * Instead of storing their own friction and bounciness, particles and statics
+ * reference a small integer id. For each pair of materials, the combined
+ * properties of a contact are precomputed, so that resolving an impact
+ * only needs a table lookup:
+ * <ul>
+ * <li>friction is the average of the two frictions</li>
+ * <li>bounciness is the highest of the two</li>
+ * </ul>
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * The registry is global, shared by all simulators, and never forgets a material. Materials are
+ * meant to be few (a dozen or so): registering one rebuilds the pair tables, in O(n^2), and at most
+ * {@link #MAX} can exist. Looking up a material that already exists (which is what
+ * {@link engine.Particle#setFriction(double)} and its siblings do first) takes no lock and doesn't
+ * allocate, so per-particle properties should be picked from a small set of values (eg, rounded),
+ * rather than be random.
+ *
+ * @author Fabio Ticconi
+ */
+public class Materials
+{
+    // the default material of a particle
+    public static final int DEFAULT = 0;
+
+    // the most materials that can be registered
+    public static final int MAX = 256;
+
+    // the tables are never modified once published, only replaced
+    private static volatile double[]   friction       = new double[0];
+    private static volatile double[]   bounciness     = new double[0];
+    private static volatile double[][] pairFriction   = new double[0][];
+    private static volatile double[][] pairBounciness = new double[0][];
+
+    static
+    {
+        register(0.4, 0.0);
+    }
+
+    /**
+     * Returns the id of the material with the given properties, without registering it.
+     *
+     * @param friction   friction coefficient
+     * @param bounciness bounciness
+     * @return the material id, or -1 if there's no such material
+     */
+    public static int find(final double friction, final double bounciness)
+    {
+        // the bounciness is published first, so it's never shorter than the friction
+        final double[] f = Materials.friction;
+        final double[] b = Materials.bounciness;
+
+        for (int i = 0; i < f.length; i++)
+            if (Double.compare(f[i], friction) == 0 && Double.compare(b[i], bounciness) == 0)
+                return i;
+
+        return -1;
+    }
+
+    /**
+     * Returns the id of the material with the given properties,
+     * registering it if it doesn't exist yet.
+     *
+     * @param friction   friction coefficient
+     * @param bounciness bounciness, 0 for a completely inelastic material
+     * @return the material id
+     * @throws IllegalStateException if the material is new, and there are already {@link #MAX}
+     */
+    public static int register(final double friction, final double bounciness)
+    {
+        final int existing = find(friction, bounciness);
+
+        if (existing >= 0)
+            return existing;
+
+        return add(friction, bounciness);
+    }
+
+    private static synchronized int add(final double friction, final double bounciness)
+    {
+        // registered by another thread in the meantime
+        final int existing = find(friction, bounciness);
+
+        if (existing >= 0)
+            return existing;
+
+        final double[] f = Materials.friction;
+        final double[] b = Materials.bounciness;
+
+        final int id = f.length;
+
+        if (id == MAX)
+            throw new IllegalStateException("too many materials: at most " + MAX + " can be registered");
+
+        final double[] newF = Arrays.copyOf(f, id + 1);
+        final double[] newB = Arrays.copyOf(b, id + 1);
+        newF[id] = friction;
+        newB[id] = bounciness;
+
+        final double[][] pairF = new double[id + 1][id + 1];
+        final double[][] pairB = new double[id + 1][id + 1];
+
+        for (int i = 0; i <= id; i++)
+            for (int j = 0; j <= id; j++)
+            {
+                pairF[i][j] = (newF[i] + newF[j]) / 2.0;
+                pairB[i][j] = Math.max(newB[i], newB[j]);
+            }
+
+        // publish the tables
+        pairFriction = pairF;
+        pairBounciness = pairB;
+        Materials.bounciness = newB;
+        Materials.friction = newF;
+
+        return id;
+    }
+
+    /**
+     * Returns the number of registered materials.
+     *
+     * @return the number of materials
+     */
+    public static int size()
+    {
+        return friction.length;
+    }
+
+    public static double getFriction(final int material)
+    {
+        return friction[material];
+    }
+
+    public static double getBounciness(final int material)
+    {
+        return bounciness[material];
+    }
+
+    /**
+     * Returns the friction of a contact between the two materials.
+     *
+     * @param m1
+     * @param m2
+     * @return the combined friction coefficient
+     */
+    public static double getFriction(final int m1, final int m2)
+    {
+        return pairFriction[m1][m2];
+    }
+
+    /**
+     * Returns the bounciness of a contact between the two materials.
+     *
+     * @param m1
+     * @param m2
+     * @return the combined bounciness
+     */
+    public static double getBounciness(final int m1, final int m2)
+    {
+        return pairBounciness[m1][m2];
+    }
+}
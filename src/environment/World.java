@@ -16,6 +16,7 @@
 package environment;
 
 import engine.Particle;
+import engine.ParticleBatch;
 import utils.ImmutableVect3D;
 import utils.Vect3D;
 
@@ -38,6 +39,31 @@ public interface World
      */
     void process(final Particle p, final double dt);
 
+    /**
+     * Batch form of {@link #process(Particle, double)}: applies environmental forces and
+     * corrects the position of the particles in the given range of the batch. The
+     * {@link engine.Simulator} calls this for most particles, so that the world can process
+     * them in a tight loop over the state arrays, and compute the shared terms only once.
+     * <p>
+     * The default implementation simply processes one particle at a time.
+     *
+     * @param b    the particles' state
+     * @param from first entry (inclusive)
+     * @param to   last entry (exclusive)
+     * @param dt
+     */
+    default void process(final ParticleBatch b, final int from, final int to, final double dt)
+    {
+        for (int k = from; k < to; k++)
+        {
+            final Particle p = b.get(k);
+
+            process(p, dt);
+
+            b.set(k, p);
+        }
+    }
+
     /**
      * Returns the environmental forces acting on the particle.
      *
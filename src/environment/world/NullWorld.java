@@ -16,6 +16,7 @@
 package environment.world;
 
 import engine.Particle;
+import engine.ParticleBatch;
 import engine.Simulator;
 import environment.World;
 import utils.ImmutableVect3D;
@@ -41,6 +42,17 @@ public class NullWorld implements World
         // do nothing
     }
 
+    /*
+     * (non-Javadoc)
+     *
+     * @see environment.World#process(engine.ParticleBatch, int, int, double)
+     */
+    @Override
+    public void process(final ParticleBatch b, final int from, final int to, final double dt)
+    {
+        // do nothing
+    }
+
     /*
      * (non-Javadoc)
      * 
@@ -31,10 +31,16 @@ package utils;
  * <br />
  * <p>
  * This means half the bits for each dimension are wasted. A pity.
+ * <p>
+ * <br />
+ * <br />
+ * <p>
+ * It also generates Morton (Z-order) keys, which interleave the bits of three
+ * coordinates: points close in space tend to get close keys.
  *
  * @author Fabio Ticconi
  */
-class Coords
+public class Coords
 {
     /**
      * The mask is a <b>long</b> with the 16 least significant bits on, the rest
@@ -77,4 +83,39 @@ class Coords
 
         return (long) u << 48 | (long) x << 32 | (long) y << 16 | (long) z;
     }
+
+    /**
+     * Generates a Morton (Z-order) key from three coordinates, interleaving their bits
+     * (x in the least significant one, then y, then z).
+     * Only the 21 least significant bits of each coordinate are used.
+     *
+     * @param x
+     * @param y
+     * @param z
+     * @return the 63 bits key
+     */
+    public static long makeMortonKey(final int x, final int y, final int z)
+    {
+        return spread(x) | spread(y) << 1 | spread(z) << 2;
+    }
+
+    /**
+     * Spreads the 21 least significant bits of v, so that
+     * there are two zero bits between each of them.
+     *
+     * @param v
+     * @return the spread bits
+     */
+    private static long spread(final int v)
+    {
+        long x = v & 0x1FFFFFL;
+
+        x = (x | x << 32) & 0x1F00000000FFFFL;
+        x = (x | x << 16) & 0x1F0000FF0000FFL;
+        x = (x | x << 8) & 0x100F00F00F00F00FL;
+        x = (x | x << 4) & 0x10C30C30C30C30C3L;
+        x = (x | x << 2) & 0x1249249249249249L;
+
+        return x;
+    }
 }
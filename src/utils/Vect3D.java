@@ -285,7 +285,7 @@ public class Vect3D
     public Vect3D max(final Vect3D v)
     {
         x = Math.max(x, v.x);
-        y = Math.max(y, v.x);
+        y = Math.max(y, v.y);
         z = Math.max(z, v.z);
 
         return this;
@@ -303,7 +303,7 @@ public class Vect3D
     public Vect3D min(final Vect3D v)
     {
         x = Math.min(x, v.x);
-        y = Math.min(y, v.x);
+        y = Math.min(y, v.y);
         z = Math.min(z, v.z);
 
         return this;
@@ -0,0 +1,116 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ActivationTest
+{
+    private static final double DT = 0.01;
+
+    protected Simulator        simulator;
+    protected ActivationRegion region;
+
+    protected Particle active;
+    protected Particle band;
+    protected Particle frozen;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+
+        region = ActivationRegion.sphere(new Vect3D(), 10.0);
+        simulator.addActivationRegion(region);
+        simulator.setActivationBand(5.0, 4);
+
+        // all moving at 1 m/s
+        active = new Particle(1.0, 1.0, new Vect3D(), new Vect3D(1.0, 0.0, 0.0));
+        band = new Particle(1.0, 1.0, new Vect3D(12.0, 0.0, 0.0), new Vect3D(1.0, 0.0, 0.0));
+        frozen = new Particle(1.0, 1.0, new Vect3D(100.0, 0.0, 0.0), new Vect3D(1.0, 0.0, 0.0));
+
+        simulator.addParticle(active);
+        simulator.addParticle(band);
+        simulator.addParticle(frozen);
+    }
+
+    @Test
+    public final void testTiers()
+    {
+        for (int i = 0; i < 8; i++)
+            simulator.update(DT);
+
+        assertEquals(ActivationRegion.ACTIVE, simulator.getActivation(active));
+        assertEquals(ActivationRegion.BAND, simulator.getActivation(band));
+        assertEquals(ActivationRegion.FROZEN, simulator.getActivation(frozen));
+
+        // the band takes one step of 4 dt every 4 steps: same distance, fewer steps
+        assertEquals(0.08, active.getCenter().x, 1e-9);
+        assertEquals(12.08, band.getCenter().x, 1e-9);
+        assertEquals(100.0, frozen.getCenter().x, 0.0);
+        assertEquals(1.0, frozen.getVelocity().x, 0.0);
+    }
+
+    @Test
+    public final void testMovingTheRegionWakesTheFrozen()
+    {
+        simulator.update(DT);
+
+        assertEquals(100.0, frozen.getCenter().x, 0.0);
+
+        region.setCenter(new Vect3D(100.0, 0.0, 0.0));
+        simulator.update(DT);
+
+        assertEquals(ActivationRegion.ACTIVE, simulator.getActivation(frozen));
+        assertEquals(ActivationRegion.FROZEN, simulator.getActivation(active));
+        assertEquals(100.01, frozen.getCenter().x, 1e-9);
+        assertEquals(0.01, active.getCenter().x, 1e-9);
+
+        // with no regions, everything moves
+        simulator.removeActivationRegion(region);
+        simulator.update(DT);
+
+        assertEquals(ActivationRegion.ACTIVE, simulator.getActivation(active));
+        assertEquals(0.02, active.getCenter().x, 1e-9);
+    }
+
+    @Test
+    public final void testFrozenParticlesAreNotPushed()
+    {
+        final Simulator s = new Simulator();
+        s.setWorld(new NullWorld());
+        s.setParticleCollisions(true);
+        s.addActivationRegion(ActivationRegion.sphere(new Vect3D(), 10.0));
+        s.setActivationBand(0.0, 4);
+
+        // overlapping, across the region's boundary
+        final Particle a = new Particle(1.0, 1.0, new Vect3D(9.0, 0.0, 0.0), new Vect3D(5.0, 0.0, 0.0));
+        final Particle f = new Particle(1.0, 1.0, new Vect3D(10.5, 0.0, 0.0), new Vect3D(0.0, 1.0, 0.0));
+        a.setBounciness(1.0);
+        f.setBounciness(1.0);
+
+        s.addParticle(a);
+        s.addParticle(f);
+
+        for (int i = 0; i < 10; i++)
+            s.update(DT);
+
+        assertEquals(ActivationRegion.ACTIVE, s.getActivation(a));
+        assertEquals(ActivationRegion.FROZEN, s.getActivation(f));
+
+        // the frozen particle is a wall: it keeps its position and velocity
+        assertEquals(10.5, f.getCenter().x, 0.0);
+        assertEquals(0.0, f.getCenter().y, 0.0);
+        assertEquals(0.0, f.getVelocity().x, 0.0);
+        assertEquals(1.0, f.getVelocity().y, 0.0);
+
+        // and the active one bounced off it, as off an infinite mass
+        assertEquals(-5.0, a.getVelocity().x, 1e-9);
+        assertTrue(a.getCenter().x < 8.5);
+    }
+}
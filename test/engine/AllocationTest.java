@@ -0,0 +1,31 @@
+package engine;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class AllocationTest
+{
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = TestUtils.createSimulator();
+    }
+
+    @Test
+    public final void testUpdateDoesNotAllocate()
+    {
+        // warm up: lazy initialisations and scratch lists reaching their final size
+        for (int i = 0; i < 200; i++)
+            simulator.update(1.0 / 60.0);
+
+        assertEquals(0L, TestUtils.allocatedBytes(() ->
+        {
+            for (int i = 0; i < 100; i++)
+                simulator.update(1.0 / 60.0);
+        }));
+    }
+}
@@ -0,0 +1,136 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class AsyncTest
+{
+    private static final double DT = 0.01;
+
+    protected Simulator simulator;
+    protected Particle  particle;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+
+        particle = new Particle(1.0, 1.0, new Vect3D(), new Vect3D(1.0, 0.0, 0.0));
+        simulator.addParticle(particle);
+    }
+
+    @Test
+    public final void testSnapshotsDoNotChange()
+    {
+        assertNull(simulator.acquireSnapshot());
+
+        simulator.beginUpdate(DT);
+        simulator.endUpdate();
+
+        final Snapshot first = simulator.acquireSnapshot();
+
+        assertEquals(1L, first.getStep());
+        assertEquals(1, first.size());
+        assertEquals(DT, first.getPosition(0, new Vect3D()).x, 1e-12);
+        assertEquals(0, first.indexOf(particle.getHandle()));
+
+        simulator.beginUpdate(DT);
+        simulator.endUpdate();
+
+        final Snapshot second = simulator.acquireSnapshot();
+
+        // the held snapshot isn't reused
+        assertTrue(first != second);
+        assertEquals(1L, first.getStep());
+        assertEquals(DT, first.getPosition(0, new Vect3D()).x, 1e-12);
+        assertEquals(2L, second.getStep());
+        assertEquals(2.0 * DT, second.getPosition(0, new Vect3D()).x, 1e-12);
+
+        first.release();
+        second.release();
+
+        // a second endUpdate has nothing to wait for
+        simulator.endUpdate();
+        assertEquals(2L, simulator.getStepCount());
+    }
+
+    @Test
+    public final void testAdvance()
+    {
+        simulator.setFixedTimestep(DT);
+
+        // two and a half steps
+        simulator.beginAdvance(25000000L);
+        simulator.endUpdate();
+
+        final Snapshot s = simulator.acquireSnapshot();
+
+        assertEquals(2L, s.getStep());
+        assertEquals(0.5, s.getAlpha(), 1e-12);
+        assertEquals(1.5 * DT, s.getInterpolatedPosition(0, new Vect3D()).x, 1e-12);
+
+        s.release();
+    }
+
+    @Test
+    public final void testEndUpdateWaitsEvenIfInterrupted() throws Exception
+    {
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        // a step that blocks until released
+        simulator.setWorld(new NullWorld()
+        {
+            @Override
+            public void process(final ParticleBatch b, final int from, final int to, final double dt)
+            {
+                started.countDown();
+
+                try
+                {
+                    release.await();
+                } catch (final InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+
+        simulator.beginUpdate(DT);
+        started.await();
+
+        final Thread releaser = new Thread(() ->
+        {
+            try
+            {
+                Thread.sleep(100L);
+            } catch (final InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+
+            release.countDown();
+        });
+        releaser.start();
+
+        Thread.currentThread().interrupt();
+        simulator.endUpdate();
+
+        // the step was over when it returned, and the interrupt is kept
+        assertTrue(Thread.interrupted());
+        assertEquals(0L, release.getCount());
+        assertEquals(1L, simulator.getStepCount());
+        assertEquals(DT, particle.getCenter().x, 1e-12);
+
+        releaser.join();
+    }
+}
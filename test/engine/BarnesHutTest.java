@@ -0,0 +1,144 @@
+package engine;
+
+import environment.Interaction;
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BarnesHutTest
+{
+    private static final Interaction GRAVITY = Interaction.gravitation(1.0, 0.01);
+
+    private static ParticleStore createStore(final int n)
+    {
+        final ParticleStore ps = new ParticleStore(n);
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < n; i++)
+        {
+            // a dense core in a sparse cloud
+            final double size = i % 4 == 0 ? 2.0 : 20.0;
+
+            ps.add(new Particle(0.5 + r.nextDouble(),
+                                0.1,
+                                new Vect3D(r.nextDouble() * size - size / 2.0,
+                                           r.nextDouble() * size - size / 2.0,
+                                           r.nextDouble() * size - size / 2.0),
+                                new Vect3D()));
+        }
+
+        return ps;
+    }
+
+    /**
+     * @param ps
+     * @return the exact force per unit mass on each particle
+     */
+    private static double[][] bruteForce(final ParticleStore ps)
+    {
+        final double[][] f = new double[ps.size][3];
+
+        for (int i = 0; i < ps.size; i++)
+            for (int j = 0; j < ps.size; j++)
+            {
+                final double dx = ps.pos.x(j) - ps.pos.x(i);
+                final double dy = ps.pos.y(j) - ps.pos.y(i);
+                final double dz = ps.pos.z(j) - ps.pos.z(i);
+
+                if (i == j)
+                    continue;
+
+                final double s = ps.mass[j] * GRAVITY.strength(dx * dx + dy * dy + dz * dz);
+
+                f[i][0] += dx * s;
+                f[i][1] += dy * s;
+                f[i][2] += dz * s;
+            }
+
+        return f;
+    }
+
+    /**
+     * @param ps
+     * @param theta
+     * @return the root mean square of the relative error of the forces
+     */
+    private static double error(final ParticleStore ps, final double theta)
+    {
+        final BarnesHut bh = new BarnesHut(GRAVITY, theta);
+        bh.compute(ps, null, 4096);
+
+        final double[][] f = bruteForce(ps);
+
+        double sum = 0.0;
+
+        for (int i = 0; i < ps.size; i++)
+        {
+            final double dx = bh.fx[i] - f[i][0];
+            final double dy = bh.fy[i] - f[i][1];
+            final double dz = bh.fz[i] - f[i][2];
+
+            sum += (dx * dx + dy * dy + dz * dz) / (f[i][0] * f[i][0] + f[i][1] * f[i][1] + f[i][2] * f[i][2]);
+        }
+
+        return Math.sqrt(sum / ps.size);
+    }
+
+    @Test
+    public final void testExactWithoutOpeningAngle()
+    {
+        assertTrue(error(createStore(2000), 0.0) < 1e-12);
+    }
+
+    @Test
+    public final void testAccuracy()
+    {
+        assertTrue(error(createStore(2000), 0.5) < 1e-2);
+    }
+
+    @Test
+    public final void testParallelMatchesSerial()
+    {
+        final ParticleStore ps       = createStore(20000);
+        final BarnesHut     serial   = new BarnesHut(GRAVITY, 0.5);
+        final BarnesHut     parallel = new BarnesHut(GRAVITY, 0.5);
+        final ForkJoinPool  pool     = new ForkJoinPool(4);
+
+        serial.compute(ps, null, 4096);
+        parallel.compute(ps, pool, 256);
+
+        pool.shutdown();
+
+        TestUtils.assertSameBits(serial.fx, parallel.fx, ps.size);
+        TestUtils.assertSameBits(serial.fy, parallel.fy, ps.size);
+        TestUtils.assertSameBits(serial.fz, parallel.fz, ps.size);
+    }
+
+    @Test
+    public final void testTwoBodies()
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setInteraction(Interaction.gravitation(1.0, 0.0), 0.5);
+
+        final Particle p1 = new Particle(1.0, 0.1, new Vect3D(-1.0, 0.0, 0.0), new Vect3D());
+        final Particle p2 = new Particle(3.0, 0.1, new Vect3D(1.0, 0.0, 0.0), new Vect3D());
+
+        simulator.addParticle(p1);
+        simulator.addParticle(p2);
+
+        simulator.update(0.01);
+
+        // they attract each other, and the momentum is still zero
+        assertTrue(p1.getVelocity().x > 0.0);
+        assertEquals(0.0, p1.getVelocity().x * 1.0 + p2.getVelocity().x * 3.0, 1e-12);
+
+        // the first one is pulled by G m2 / r^2
+        assertEquals(3.0 / 4.0 * 0.01, p1.getVelocity().x, 1e-9);
+    }
+}
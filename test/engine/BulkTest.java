@@ -0,0 +1,86 @@
+package engine;
+
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class BulkTest
+{
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+    }
+
+    @Test
+    public final void testAddParticles()
+    {
+        final Particle[] ps = new Particle[2500];
+
+        for (int i = 0; i < ps.length; i++)
+            ps[i] = new Particle(new Vect3D(i, 0.0, 0.0));
+
+        simulator.addParticles(ps);
+
+        assertEquals(ps.length, simulator.getParticlesNumber());
+
+        // already added, or null: skipped
+        simulator.addParticles(ps[0], null);
+
+        final List<Particle> more = new ArrayList<>();
+
+        for (int i = 0; i < 100; i++)
+            more.add(new Particle(new Vect3D(-i, 0.0, 0.0)));
+
+        simulator.addParticles(more);
+
+        assertEquals(ps.length + 100, simulator.getParticlesNumber());
+
+        for (final Particle p : ps)
+            assertTrue(simulator.isValid(p.getHandle()));
+    }
+
+    @Test
+    public final void testRemoveIfKeepsTheOthersInOrder()
+    {
+        final Particle[] ps = new Particle[1000];
+
+        for (int i = 0; i < ps.length; i++)
+            ps[i] = new Particle(new Vect3D(i, 0.0, 0.0));
+
+        simulator.addParticles(ps);
+
+        assertEquals(500, simulator.removeIf(p -> p.getCenter().x % 2.0 == 0.0));
+        assertEquals(0, simulator.removeIf(p -> p.getCenter().x % 2.0 == 0.0));
+        assertEquals(500, simulator.getParticlesNumber());
+
+        // the predicate sees the particles in store order
+        final List<Double> seen = new ArrayList<>();
+
+        simulator.removeIf(p -> !seen.add(p.getCenter().x));
+
+        assertEquals(500, seen.size());
+
+        for (int i = 0; i < seen.size(); i++)
+            assertEquals(2 * i + 1, seen.get(i), 0.0);
+
+        // removed particles keep their state, and can be added again
+        for (int i = 0; i < ps.length; i += 2)
+        {
+            assertEquals(Simulator.NO_HANDLE, ps[i].getHandle());
+            assertEquals(i, ps[i].getCenter().x, 0.0);
+        }
+
+        simulator.addParticles(ps[0], ps[2]);
+
+        assertEquals(502, simulator.getParticlesNumber());
+    }
+}
@@ -0,0 +1,94 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CommandQueueTest
+{
+    private static final double DT = 0.01;
+
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+    }
+
+    @Test
+    public final void testAppliedAtTheNextStep()
+    {
+        final Particle p = new Particle(new Vect3D());
+
+        simulator.enqueueAddParticle(p);
+
+        assertEquals(0, simulator.getParticlesNumber());
+
+        simulator.update(DT);
+
+        assertEquals(1, simulator.getParticlesNumber());
+
+        // in order: added, then removed
+        final Particle q = new Particle(new Vect3D());
+
+        simulator.enqueueAddParticle(q);
+        simulator.enqueueRemoveParticle(q);
+        simulator.enqueueRemoveParticle(p.getHandle());
+
+        assertEquals(3, simulator.applyCommands());
+        assertEquals(0, simulator.getParticlesNumber());
+        assertEquals(0, simulator.applyCommands());
+    }
+
+    @Test
+    public final void testManyThreadsDuringSteps() throws Exception
+    {
+        final Thread[]   threads = new Thread[4];
+        final AtomicLong last    = new AtomicLong(-1L);
+
+        for (int t = 0; t < threads.length; t++)
+        {
+            final int offset = t * 1000;
+
+            threads[t] = new Thread(() ->
+            {
+                for (int i = 0; i < 250; i++)
+                {
+                    final int x = offset + i;
+
+                    simulator.enqueueAddParticle(new Particle(new Vect3D(x, 0.0, 0.0)));
+
+                    // commands are run by the simulation thread, at the start of a step
+                    simulator.enqueue(s -> last.set(s.getStepCount()));
+                }
+            });
+        }
+
+        for (final Thread t : threads)
+            t.start();
+
+        // stepping in the background meanwhile
+        for (int i = 0; i < 20; i++)
+        {
+            simulator.beginUpdate(DT);
+            simulator.endUpdate();
+        }
+
+        for (final Thread t : threads)
+            t.join();
+
+        simulator.update(DT);
+
+        assertEquals(1000, simulator.getParticlesNumber());
+        assertTrue(last.get() < simulator.getStepCount());
+        assertEquals(0, simulator.applyCommands());
+    }
+}
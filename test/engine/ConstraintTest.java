@@ -0,0 +1,120 @@
+package engine;
+
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConstraintTest
+{
+    private static final double DT = 1.0 / 60.0;
+
+    private static Simulator createSimulator()
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(TestUtils.gravity(null));
+
+        return simulator;
+    }
+
+    /**
+     * Hangs a square cloth of particles, a unit apart, by two corners.
+     *
+     * @param simulator
+     * @param side      particles on each side
+     * @return the particles, row by row
+     */
+    private static Particle[] createCloth(final Simulator simulator, final int side)
+    {
+        final Particle[]  cloth       = new Particle[side * side];
+        final Constraints constraints = simulator.getConstraints();
+
+        for (int i = 0; i < cloth.length; i++)
+        {
+            cloth[i] = new Particle(new Vect3D(i % side, i / side, 0.0));
+            simulator.addParticle(cloth[i]);
+        }
+
+        for (int i = 0; i < cloth.length; i++)
+        {
+            if (i % side < side - 1)
+                constraints.addDistance(cloth[i], cloth[i + 1], 0.0);
+            if (i / side < side - 1)
+                constraints.addDistance(cloth[i], cloth[i + side], 0.0);
+            if (i % side < side - 2)
+                constraints.addBending(cloth[i], cloth[i + 1], cloth[i + 2], 1e-3);
+        }
+
+        constraints.addPin(cloth[0], 0.0);
+        constraints.addPin(cloth[side - 1], 0.0);
+
+        return cloth;
+    }
+
+    @Test
+    public final void testChainKeepsItsLinks()
+    {
+        final Simulator  simulator = createSimulator();
+        final Particle[] chain     = new Particle[20];
+
+        simulator.getConstraints().setIterations(20);
+
+        for (int i = 0; i < chain.length; i++)
+        {
+            chain[i] = new Particle(new Vect3D(i, 0.0, 0.0));
+            simulator.addParticle(chain[i]);
+
+            if (i > 0)
+                simulator.getConstraints().addDistance(chain[i - 1], chain[i], 0.0);
+        }
+
+        simulator.getConstraints().addPin(chain[0], 0.0);
+
+        for (int i = 0; i < 300; i++)
+            simulator.update(DT);
+
+        // it swings down, but stays in one piece
+        assertTrue(chain[chain.length - 1].getCenter().z < -5.0);
+        assertEquals(0.0, chain[0].getCenter().length(), 1e-12);
+
+        for (int i = 1; i < chain.length; i++)
+            assertEquals(1.0, Vect3D.distance(chain[i - 1].getCenter(), chain[i].getCenter()), 0.02);
+    }
+
+    @Test
+    public final void testRemovedParticlesAreSkipped()
+    {
+        final Simulator simulator = createSimulator();
+        final Particle  a         = new Particle(new Vect3D(0.0, 0.0, 0.0));
+        final Particle  b         = new Particle(new Vect3D(1.0, 0.0, 0.0));
+
+        simulator.addParticle(a);
+        simulator.addParticle(b);
+
+        simulator.getConstraints().addPin(a, 0.0);
+        simulator.getConstraints().addDistance(a, b, 0.0);
+
+        simulator.update(DT);
+        simulator.removeParticle(a);
+
+        for (int i = 0; i < 30; i++)
+            simulator.update(DT);
+
+        // free fall
+        assertTrue(b.getCenter().z < -1.0);
+        assertEquals(1.0, b.getCenter().x, 1e-3);
+    }
+
+    @Test
+    public final void testParallelMatchesSerial()
+    {
+        TestUtils.assertParallelMatchesSerial(() ->
+        {
+            final Simulator simulator = createSimulator();
+            createCloth(simulator, 40);
+
+            return simulator;
+        }, 50, DT);
+    }
+}
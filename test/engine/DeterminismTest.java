@@ -0,0 +1,166 @@
+package engine;
+
+import environment.Fluid;
+import org.junit.Test;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DeterminismTest
+{
+    // state of the fluid scene after 50 steps, which must not depend on the machine
+    private static final long GOLDEN_FLUID_CHECKSUM = 8392210559949066002L;
+
+    private static Simulator createCrowdSimulator()
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setParticleCollisions(true);
+        simulator.setDeterministic(true);
+
+        final Random r = new Random(42);
+
+        // crowded enough that many particles overlap more than one other
+        for (int i = 0; i < 5000; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * 25.0,
+                                                       r.nextDouble() * 25.0,
+                                                       r.nextDouble() * 25.0));
+            p.setRadius(0.5);
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 10.0 - 5.0,
+                                              r.nextDouble() * 10.0 - 5.0,
+                                              r.nextDouble() * 10.0 - 5.0));
+
+            simulator.addParticle(p);
+        }
+
+        return simulator;
+    }
+
+    private static Simulator createFluidSimulator()
+    {
+        final Fluid     water     = new Fluid(0.1, 1000.0, 1000.0, 1.0);
+        final Simulator simulator = new Simulator();
+        simulator.setFluid(water);
+        simulator.setDeterministic(true);
+
+        final Random r = new Random(42);
+
+        // a block of water, a bit compressed and stirred
+        final double mass = water.getParticleMass(0.05);
+
+        for (int x = 0; x < 12; x++)
+            for (int y = 0; y < 12; y++)
+                for (int z = 0; z < 12; z++)
+                {
+                    simulator.addParticle(new Particle(mass,
+                                                       0.025,
+                                                       new Vect3D(x * 0.045, y * 0.045, z * 0.045),
+                                                       new Vect3D(r.nextGaussian(), r.nextGaussian(), r.nextGaussian())));
+                }
+
+        return simulator;
+    }
+
+    @Test
+    public final void testParallelMatchesSerial()
+    {
+        TestUtils.assertParallelMatchesSerial(TestUtils::createSimulator, 200, 1.0 / 60.0);
+    }
+
+    @Test
+    public final void testIncrementalChecksum()
+    {
+        final Simulator simulator = TestUtils.createSimulator();
+        simulator.setDeterministic(true);
+
+        for (int i = 0; i < 50; i++)
+            simulator.update(1.0 / 60.0);
+
+        final long checksum = simulator.getChecksum();
+
+        simulator.getParticle(0L).setVelocity(new ImmutableVect3D(1.0, 2.0, 3.0));
+        assertTrue(checksum != simulator.getChecksum());
+
+        simulator.removeParticle(simulator.getParticle(10L));
+        simulator.addParticle(new Particle(new Vect3D(1.0, 1.0, 20.0)));
+
+        for (int i = 0; i < 50; i++)
+            simulator.update(1.0 / 60.0);
+
+        // the checksum kept along the way must match one computed from scratch
+        final long incremental = simulator.getChecksum();
+
+        simulator.setDeterministic(false);
+        simulator.setDeterministic(true);
+
+        assertEquals(incremental, simulator.getChecksum());
+    }
+
+    @Test
+    public final void testFluidParallelMatchesSerial()
+    {
+        final long checksum = TestUtils.assertParallelMatchesSerial(DeterminismTest::createFluidSimulator, 50, 0.001);
+
+        // the kernels only use basic arithmetic and square roots, which are exact in IEEE 754:
+        // the same on any machine
+        assertEquals(GOLDEN_FLUID_CHECKSUM, checksum);
+    }
+
+    @Test
+    public final void testReorderWithContacts()
+    {
+        final Simulator plain    = createCrowdSimulator();
+        final Simulator serial   = createCrowdSimulator();
+        final Simulator parallel = createCrowdSimulator();
+        serial.setReorderInterval(7);
+        parallel.setReorderInterval(7);
+        parallel.setParallelism(4);
+        parallel.setChunkSize(64);
+
+        for (int i = 0; i < 30; i++)
+        {
+            plain.update(1.0 / 60.0);
+            serial.update(1.0 / 60.0);
+            parallel.update(1.0 / 60.0);
+
+            // reordering is itself deterministic
+            assertEquals(serial.getChecksum(), parallel.getChecksum());
+        }
+
+        parallel.setParallelism(1);
+
+        // but it changes the order the contacts are summed in, so only the lowest bits match
+        for (long h = 0L; h < plain.getParticlesNumber(); h++)
+        {
+            final Vect3D a = plain.getParticle(h).getCenter();
+            final Vect3D b = serial.getParticle(h).getCenter();
+
+            assertEquals(a.x, b.x, 1e-9);
+            assertEquals(a.y, b.y, 1e-9);
+            assertEquals(a.z, b.z, 1e-9);
+        }
+    }
+
+    @Test
+    public final void testReorderWithoutInteractions()
+    {
+        final Simulator plain     = TestUtils.createSimulator();
+        final Simulator reordered = TestUtils.createSimulator();
+        plain.setDeterministic(true);
+        reordered.setDeterministic(true);
+        reordered.setReorderInterval(3);
+
+        // each particle is stepped on its own, so the order of the slots doesn't matter
+        for (int i = 0; i < 100; i++)
+        {
+            plain.update(1.0 / 60.0);
+            reordered.update(1.0 / 60.0);
+
+            assertEquals(plain.getChecksum(), reordered.getChecksum());
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EmitterTest
+{
+    protected Simulator simulator;
+    protected Emitter   emitter;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+
+        // 60 particles per second, living half a second
+        emitter = Emitter.sphere(new Vect3D(0.0, 0.0, 10.0), 2.0);
+        emitter.setRate(60.0);
+        emitter.setLifetime(0.5);
+        emitter.setVelocity(new Vect3D(0.0, 0.0, 5.0), 1.0);
+        emitter.setSeed(42L);
+
+        simulator.addEmitter(emitter);
+    }
+
+    @Test
+    public final void testLifetime()
+    {
+        assertEquals(0, simulator.getParticlesNumber());
+
+        simulator.update(1.0 / 60.0);
+
+        // the first particle gets id 0, and generation 0
+        assertEquals(1, simulator.getParticlesNumber());
+        assertTrue(simulator.isValid(0L));
+
+        for (int i = 0; i < 120; i++)
+            simulator.update(1.0 / 60.0);
+
+        // steady state: rate * lifetime, give or take one
+        assertTrue(Math.abs(simulator.getParticlesNumber() - 30) <= 1);
+        assertEquals(simulator.getParticlesNumber(), emitter.getParticlesNumber());
+        assertFalse(simulator.isValid(0L));
+
+        simulator.removeEmitter(emitter);
+
+        assertEquals(0, simulator.getParticlesNumber());
+    }
+
+    @Test
+    public final void testRecyclingDoesNotAllocate()
+    {
+        // warm up: the pool reaches the steady state size
+        for (int i = 0; i < 200; i++)
+            simulator.update(1.0 / 60.0);
+
+        assertEquals(0L, TestUtils.allocatedBytes(() ->
+        {
+            for (int i = 0; i < 100; i++)
+                simulator.update(1.0 / 60.0);
+        }));
+    }
+}
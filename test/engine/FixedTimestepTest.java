@@ -0,0 +1,73 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+
+public class FixedTimestepTest
+{
+    // 10 ms steps
+    private static final long STEP = 10000000L;
+
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+        simulator.setFixedTimestep(0.01);
+        simulator.setMaxSubSteps(5);
+    }
+
+    @Test
+    public final void testCarriesTheLeftover()
+    {
+        assertEquals(0, simulator.advance(STEP / 2));
+        assertEquals(0.5, simulator.getAlpha(), 1e-12);
+
+        assertEquals(1, simulator.advance(STEP / 2));
+        assertEquals(0.0, simulator.getAlpha(), 0.0);
+
+        assertEquals(2, simulator.advance(STEP * 9 / 4));
+        assertEquals(0.25, simulator.getAlpha(), 1e-12);
+
+        assertEquals(3L, simulator.getStepCount());
+        assertEquals(0.03, simulator.getTime(), 1e-12);
+    }
+
+    @Test
+    public final void testDropsTimeWhenFallingBehind()
+    {
+        // a 100 ms hitch: only 5 steps are taken, and the rest is dropped
+        assertEquals(5, simulator.advance(STEP * 10 + STEP / 2));
+        assertEquals(0.5, simulator.getAlpha(), 1e-12);
+
+        assertEquals(1, simulator.advance(STEP / 2));
+        assertEquals(6L, simulator.getStepCount());
+    }
+
+    @Test
+    public final void testInterpolation()
+    {
+        final Particle p = new Particle(1.0, 1.0, new Vect3D(), new Vect3D(100.0, 0.0, 0.0));
+        simulator.addParticle(p);
+
+        simulator.advance(STEP + STEP * 3 / 4);
+
+        // one step taken, three quarters of the way to the next
+        final Vect3D c = simulator.getInterpolatedCenter(p, new Vect3D());
+
+        assertEquals(0.75, c.x, 1e-9);
+        assertEquals(1.0, p.getCenter().x, 1e-9);
+
+        final double[] buffer = simulator.getInterpolatedPositions(null);
+
+        assertEquals(c.x, buffer[0], 0.0);
+        assertEquals(c.y, buffer[1], 0.0);
+        assertEquals(c.z, buffer[2], 0.0);
+    }
+}
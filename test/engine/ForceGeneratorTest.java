@@ -0,0 +1,121 @@
+package engine;
+
+import environment.ForceGenerator;
+import environment.ForceGenerator.Condition;
+import environment.world.NullWorld;
+import org.junit.Before;
+import org.junit.Test;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ForceGeneratorTest
+{
+    private static final double DT = 0.01;
+
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+        simulator.setIntegrator(Integrator.SEMI_IMPLICIT_EULER);
+    }
+
+    @Test
+    public final void testPushOnlyDuringItsWindow()
+    {
+        final Particle p = new Particle(2.0, 1.0, new Vect3D(), new Vect3D());
+        simulator.addParticle(p);
+
+        // 1 m/s^2 on a mass of 2, for half a second
+        simulator.addForceGenerator(ForceGenerator.force(new ImmutableVect3D(2.0, 0.0, 0.0)).during(0.25, 0.75));
+
+        for (int i = 0; i < 100; i++)
+            simulator.update(DT);
+
+        assertEquals(1.0, simulator.getTime(), 1e-9);
+        assertEquals(0.5, p.getVelocity().x, 1e-9);
+        assertEquals(0.0, p.getVelocity().y, 0.0);
+    }
+
+    @Test
+    public final void testFieldOnlyInsideItsBox()
+    {
+        final Particle[] row = new Particle[100];
+
+        for (int i = 0; i < row.length; i++)
+        {
+            row[i] = new Particle(new Vect3D(i, 0.0, 0.0));
+            simulator.addParticle(row[i]);
+        }
+
+        final Condition box = Condition.inside(new ImmutableVect3D(19.5, -1.0, -1.0), new ImmutableVect3D(39.5, 1.0, 1.0));
+
+        simulator.addForceGenerator(ForceGenerator.acceleration(new ImmutableVect3D(0.0, 0.0, 1.0)).where(box));
+        simulator.addForceGenerator(ForceGenerator.acceleration(new ImmutableVect3D(0.0, 1.0, 0.0)).where(box.negate()));
+
+        simulator.update(DT);
+
+        for (int i = 0; i < row.length; i++)
+        {
+            final boolean inside = i >= 20 && i < 40;
+
+            assertEquals(inside ? DT : 0.0, row[i].getVelocity().z, 1e-12);
+            assertEquals(inside ? 0.0 : DT, row[i].getVelocity().y, 1e-12);
+        }
+    }
+
+    @Test
+    public final void testDampingSlowsFastParticles()
+    {
+        final Particle slow = new Particle(1.0, 1.0, new Vect3D(), new Vect3D(1.0, 0.0, 0.0));
+        final Particle fast = new Particle(1.0, 1.0, new Vect3D(0.0, 10.0, 0.0), new Vect3D(10.0, 0.0, 0.0));
+
+        simulator.addParticle(slow);
+        simulator.addParticle(fast);
+
+        final ForceGenerator damping = ForceGenerator.damping(1.0).where(Condition.fasterThan(5.0));
+        simulator.addForceGenerator(damping);
+
+        for (int i = 0; i < 10; i++)
+            simulator.update(DT);
+
+        // v' = -v, with the force from the velocity at the start of each step
+        assertEquals(1.0, slow.getVelocity().x, 0.0);
+        assertEquals(10.0 * Math.pow(1.0 - DT, 10), fast.getVelocity().x, 1e-9);
+
+        simulator.removeForceGenerator(damping);
+
+        final double v = fast.getVelocity().x;
+        simulator.update(DT);
+
+        assertTrue(fast.getVelocity().x == v);
+    }
+
+    @Test
+    public final void testGeneratorsDoNotAllocate()
+    {
+        for (int i = 0; i < 1000; i++)
+            simulator.addParticle(new Particle(new Vect3D(i % 100, i / 100, 0.0)));
+
+        final Condition box = Condition.inside(new ImmutableVect3D(19.5, -1.0, -1.0), new ImmutableVect3D(39.5, 5.0, 1.0));
+
+        simulator.addForceGenerator(ForceGenerator.acceleration(new ImmutableVect3D(0.0, 0.0, 1.0)).where(box));
+        simulator.addForceGenerator(ForceGenerator.drag(0.1).where(Condition.fasterThan(0.5).and(box.negate())));
+        simulator.addForceGenerator(ForceGenerator.force(new ImmutableVect3D(1.0, 0.0, 0.0)).during(0.0, 10.0));
+
+        // warm up
+        for (int i = 0; i < 100; i++)
+            simulator.update(DT);
+
+        assertEquals(0L, TestUtils.allocatedBytes(() ->
+        {
+            for (int i = 0; i < 100; i++)
+                simulator.update(DT);
+        }));
+    }
+}
@@ -0,0 +1,90 @@
+package engine;
+
+import org.junit.Before;
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class HandleTest
+{
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+    }
+
+    @Test
+    public final void testStaleAfterRemoval()
+    {
+        final Particle p = new Particle(new Vect3D());
+        final long     h = simulator.addParticle(p);
+
+        assertTrue(simulator.isValid(h));
+        assertTrue(simulator.getParticle(h) == p);
+        assertEquals(h, p.getHandle());
+
+        assertTrue(simulator.removeParticle(h));
+
+        assertFalse(simulator.isValid(h));
+        assertNull(simulator.getParticle(h));
+        assertFalse(simulator.removeParticle(h));
+        assertEquals(Simulator.NO_HANDLE, p.getHandle());
+        assertFalse(simulator.isValid(Simulator.NO_HANDLE));
+    }
+
+    @Test
+    public final void testReusedIdGetsNewGeneration()
+    {
+        final long a = simulator.addParticle(new Particle(new Vect3D()));
+        simulator.removeParticle(a);
+
+        final Particle p = new Particle(new Vect3D());
+        final long     b = simulator.addParticle(p);
+
+        // same id, newer generation: the old handle doesn't reach the new particle
+        assertEquals((int) a, (int) b);
+        assertTrue(a != b);
+        assertFalse(simulator.isValid(a));
+        assertNull(simulator.getParticle(a));
+        assertTrue(simulator.getParticle(b) == p);
+    }
+
+    @Test
+    public final void testHandlesSurviveOtherRemovals()
+    {
+        final Particle[] ps      = new Particle[3000];
+        final long[]     handles = new long[ps.length];
+
+        // more than the initial capacity, so the store grows
+        for (int i = 0; i < ps.length; i++)
+        {
+            ps[i] = new Particle(new Vect3D(i, 0.0, 0.0));
+            handles[i] = simulator.addParticle(ps[i]);
+        }
+
+        // swap-removal moves the last particles into the freed slots
+        for (int i = 0; i < ps.length; i += 3)
+            simulator.removeParticle(handles[i]);
+
+        assertEquals(1000, simulator.removeIf(p -> ((int) p.getCenter().x) % 3 == 1));
+
+        for (int i = 0; i < ps.length; i++)
+        {
+            assertEquals(i % 3 == 2, simulator.isValid(handles[i]));
+
+            if (i % 3 == 2)
+            {
+                assertTrue(simulator.getParticle(handles[i]) == ps[i]);
+                assertEquals(i, ps[i].getCenter().x, 0.0);
+            }
+        }
+
+        assertEquals(1000, simulator.getParticlesNumber());
+    }
+}
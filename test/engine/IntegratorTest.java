@@ -0,0 +1,187 @@
+package engine;
+
+import environment.World;
+import org.junit.Test;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class IntegratorTest
+{
+    private static final double DT = 1.0 / 60.0;
+
+    /**
+     * Constant gravity, counting the force evaluations.
+     */
+    private static final class CountingWorld implements World
+    {
+        int evaluations;
+
+        @Override
+        public void process(final Particle p, final double dt)
+        {
+            evaluations++;
+
+            p.getForce().z -= 9.81 * p.getMass();
+        }
+
+        @Override
+        public ImmutableVect3D getGravity()
+        {
+            return new ImmutableVect3D(0.0, 0.0, -9.81);
+        }
+
+        @Override
+        public void setGravity(final ImmutableVect3D gravity)
+        {
+        }
+
+        @Override
+        public Vect3D getForces(final Particle p, final double dt)
+        {
+            return new Vect3D(ImmutableVect3D.zero);
+        }
+    }
+
+    /**
+     * A spring pulling towards the origin along x.
+     */
+    private static final class SpringWorld implements World
+    {
+        final double k;
+
+        SpringWorld(final double k)
+        {
+            this.k = k;
+        }
+
+        @Override
+        public void process(final Particle p, final double dt)
+        {
+            p.getForce().x -= k * p.getCenter().x;
+        }
+
+        @Override
+        public ImmutableVect3D getGravity()
+        {
+            return new ImmutableVect3D(ImmutableVect3D.zero);
+        }
+
+        @Override
+        public void setGravity(final ImmutableVect3D gravity)
+        {
+        }
+
+        @Override
+        public Vect3D getForces(final Particle p, final double dt)
+        {
+            return new Vect3D(ImmutableVect3D.zero);
+        }
+    }
+
+    /**
+     * Lets a particle oscillate on a spring for two seconds, from rest at x = 1.
+     *
+     * @param integrator
+     * @param dt
+     * @return the distance from the exact position, cos(sqrt(k / m) * t)
+     */
+    private static double springError(final Integrator integrator, final double dt)
+    {
+        final double k = 10.0;
+
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new SpringWorld(k));
+        simulator.setIntegrator(integrator);
+
+        final Particle p = new Particle(1.0, 0.1, new Vect3D(1.0, 0.0, 0.0), new Vect3D());
+        simulator.addParticle(p);
+
+        final int steps = (int) Math.round(2.0 / dt);
+
+        for (int i = 0; i < steps; i++)
+            simulator.update(dt);
+
+        return Math.abs(p.getCenter().x - Math.cos(Math.sqrt(k) * steps * dt));
+    }
+
+    /**
+     * Throws a particle upwards for one second.
+     *
+     * @param integrator
+     * @param world
+     * @return the final height
+     */
+    private static double throwUp(final Integrator integrator, final World world)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(world);
+        simulator.setIntegrator(integrator);
+
+        final Particle p = new Particle(1.0, 0.1, new Vect3D(), new Vect3D(0.0, 0.0, 20.0));
+        simulator.addParticle(p);
+
+        for (int i = 0; i < 60; i++)
+            simulator.update(DT);
+
+        return p.getCenter().z;
+    }
+
+    @Test
+    public final void testDefault()
+    {
+        assertEquals(Integrator.VELOCITY_VERLET, new Simulator().getIntegrator());
+    }
+
+    @Test
+    public final void testEvaluations()
+    {
+        final CountingWorld w = new CountingWorld();
+
+        throwUp(Integrator.VELOCITY_VERLET, w);
+        assertEquals(120, w.evaluations);
+
+        w.evaluations = 0;
+        throwUp(Integrator.SEMI_IMPLICIT_EULER, w);
+        assertEquals(60, w.evaluations);
+
+        w.evaluations = 0;
+        throwUp(Integrator.POSITION_VERLET, w);
+        assertEquals(60, w.evaluations);
+    }
+
+    @Test
+    public final void testBallisticAccuracy()
+    {
+        final double exact = 20.0 - 9.81 / 2.0;
+
+        // second order schemes are exact for a constant force
+        assertEquals(exact, throwUp(Integrator.VELOCITY_VERLET, new CountingWorld()), 1e-9);
+        assertEquals(exact, throwUp(Integrator.POSITION_VERLET, new CountingWorld()), 1e-9);
+
+        // semi-implicit euler is off by g * dt * t / 2
+        final double error = Math.abs(exact - throwUp(Integrator.SEMI_IMPLICIT_EULER, new CountingWorld()));
+        assertTrue(Math.abs(error - 9.81 * DT / 2.0) < 1e-9);
+    }
+
+    @Test
+    public final void testSpringAccuracy()
+    {
+        final double euler    = springError(Integrator.SEMI_IMPLICIT_EULER, DT);
+        final double velocity = springError(Integrator.VELOCITY_VERLET, DT);
+        final double position = springError(Integrator.POSITION_VERLET, DT);
+
+        // with a force depending on the position, no scheme is exact
+        assertTrue(velocity > 0.0 && position > 0.0);
+        assertTrue(velocity < euler / 10.0);
+        assertTrue(position < euler / 10.0);
+
+        // halving the timestep halves the error of the first order scheme,
+        // and quarters that of the second order ones
+        assertEquals(2.0, euler / springError(Integrator.SEMI_IMPLICIT_EULER, DT / 2.0), 0.3);
+        assertEquals(4.0, velocity / springError(Integrator.VELOCITY_VERLET, DT / 2.0), 0.3);
+        assertEquals(4.0, position / springError(Integrator.POSITION_VERLET, DT / 2.0), 0.3);
+    }
+}
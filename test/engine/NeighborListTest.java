@@ -0,0 +1,143 @@
+package engine;
+
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NeighborListTest
+{
+    private static final double CUTOFF = 1.0;
+    private static final double SKIN   = 0.5;
+
+    private static ParticleStore createStore(final int n)
+    {
+        final ParticleStore ps = new ParticleStore(n + 1);
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < n; i++)
+            ps.add(new Particle(new Vect3D(r.nextDouble() * 20.0 - 10.0,
+                                           r.nextDouble() * 20.0 - 10.0,
+                                           r.nextDouble() * 20.0 - 10.0)));
+
+        return ps;
+    }
+
+    /**
+     * @param ps
+     * @param list
+     * @return the sorted slots of the neighbours of each slot
+     */
+    private static int[][] neighbours(final ParticleStore ps, final NeighborList list)
+    {
+        final int[][] result = new int[ps.size][];
+
+        for (int k = 0; k < ps.size; k++)
+        {
+            final int[] slots = new int[list.first[k + 1] - list.first[k]];
+
+            for (int m = 0; m < slots.length; m++)
+                slots[m] = list.order[list.neighbors[list.first[k] + m]];
+
+            Arrays.sort(slots);
+            result[list.order[k]] = slots;
+        }
+
+        return result;
+    }
+
+    private static void matchesBruteForce(final boolean dense)
+    {
+        final ParticleStore ps   = createStore(2000);
+        final NeighborList  list = new NeighborList(SKIN, dense);
+
+        assertTrue(list.update(ps, new SpatialHash(), null, 4096, CUTOFF));
+
+        final int[][] found = neighbours(ps, list);
+        final double  range = CUTOFF + SKIN;
+
+        for (int i = 0; i < ps.size; i++)
+        {
+            int expected = 0;
+
+            for (int j = 0; j < ps.size; j++)
+            {
+                final double dx = ps.pos.x(i) - ps.pos.x(j);
+                final double dy = ps.pos.y(i) - ps.pos.y(j);
+                final double dz = ps.pos.z(i) - ps.pos.z(j);
+
+                if (i != j && dx * dx + dy * dy + dz * dz < range * range)
+                {
+                    assertTrue(Arrays.binarySearch(found[i], j) >= 0);
+                    expected++;
+                }
+            }
+
+            assertEquals(expected, found[i].length);
+        }
+    }
+
+    @Test
+    public final void testMatchesBruteForce()
+    {
+        matchesBruteForce(false);
+    }
+
+    @Test
+    public final void testDenseMatchesBruteForce()
+    {
+        matchesBruteForce(true);
+    }
+
+    @Test
+    public final void testParallelMatchesSerial()
+    {
+        final ParticleStore ps       = createStore(20000);
+        final NeighborList  serial   = new NeighborList(SKIN);
+        final NeighborList  parallel = new NeighborList(SKIN);
+        final ForkJoinPool  pool     = new ForkJoinPool(4);
+
+        serial.update(ps, new SpatialHash(), null, 4096, CUTOFF);
+        parallel.update(ps, new SpatialHash(), pool, 1024, CUTOFF);
+
+        pool.shutdown();
+
+        final int n = ps.size;
+
+        TestUtils.assertSamePrefix(serial.order, parallel.order, n);
+        TestUtils.assertSamePrefix(serial.first, parallel.first, n + 1);
+        TestUtils.assertSamePrefix(serial.neighbors, parallel.neighbors, serial.first[n]);
+    }
+
+    @Test
+    public final void testRebuildsOnlyPastHalfSkin()
+    {
+        final ParticleStore ps   = createStore(100);
+        final SpatialHash   hash = new SpatialHash();
+        final NeighborList  list = new NeighborList(SKIN);
+
+        assertTrue(list.update(ps, hash, null, 4096, CUTOFF));
+        assertFalse(list.update(ps, hash, null, 4096, CUTOFF));
+
+        ps.pos.set(0, ps.pos.x(0) + SKIN * 0.4, ps.pos.y(0), ps.pos.z(0));
+        assertFalse(list.update(ps, hash, null, 4096, CUTOFF));
+
+        ps.pos.set(0, ps.pos.x(0) + SKIN * 0.2, ps.pos.y(0), ps.pos.z(0));
+        assertTrue(list.update(ps, hash, null, 4096, CUTOFF));
+
+        // a larger cutoff eats into the skin
+        assertTrue(list.update(ps, hash, null, 4096, CUTOFF + SKIN));
+
+        ps.add(new Particle(new Vect3D()));
+        assertTrue(list.update(ps, hash, null, 4096, CUTOFF + SKIN));
+
+        assertEquals(4, list.builds);
+    }
+}
@@ -0,0 +1,118 @@
+package engine;
+
+import org.junit.Test;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParticleCollisionTest
+{
+    private static Simulator createSimulator(final double skin)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setParticleCollisions(true);
+        simulator.setNeighborSkin(skin);
+        simulator.setDeterministic(true);
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < 20000; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * 40.0 - 20.0,
+                                                       r.nextDouble() * 40.0 - 20.0,
+                                                       r.nextDouble() * 40.0 - 20.0));
+            p.setRadius(0.5);
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 10.0 - 5.0,
+                                              r.nextDouble() * 10.0 - 5.0,
+                                              r.nextDouble() * 10.0 - 5.0));
+
+            simulator.addParticle(p);
+        }
+
+        return simulator;
+    }
+
+    private static void headOn(final double skin)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setParticleCollisions(true);
+        simulator.setNeighborSkin(skin);
+
+        final Particle p1 = new Particle(1.0, 1.0, new Vect3D(-5.0, 0.0, 0.0), new Vect3D(10.0, 0.0, 0.0));
+        final Particle p2 = new Particle(1.0, 1.0, new Vect3D(5.0, 0.0, 0.0), new Vect3D(-10.0, 0.0, 0.0));
+        p1.setBounciness(1.0);
+        p2.setBounciness(1.0);
+
+        simulator.addParticle(p1);
+        simulator.addParticle(p2);
+
+        for (int i = 0; i < 60; i++)
+            simulator.update(1.0 / 60.0);
+
+        // perfectly elastic: they swapped velocities
+        assertEquals(-10.0, p1.getVelocity().x, 1e-9);
+        assertEquals(10.0, p2.getVelocity().x, 1e-9);
+        assertTrue(p2.getCenter().x - p1.getCenter().x >= 2.0);
+    }
+
+    @Test
+    public final void testHeadOn()
+    {
+        headOn(0.0);
+    }
+
+    @Test
+    public final void testHeadOnWithNeighborLists()
+    {
+        headOn(0.5);
+    }
+
+    @Test
+    public final void testPassThroughWhenDisabled()
+    {
+        final Simulator simulator = new Simulator();
+
+        final Particle p1 = new Particle(1.0, 1.0, new Vect3D(-5.0, 0.0, 0.0), new Vect3D(10.0, 0.0, 0.0));
+        final Particle p2 = new Particle(1.0, 1.0, new Vect3D(5.0, 0.0, 0.0), new Vect3D(-10.0, 0.0, 0.0));
+
+        simulator.addParticle(p1);
+        simulator.addParticle(p2);
+
+        for (int i = 0; i < 60; i++)
+            simulator.update(1.0 / 60.0);
+
+        assertTrue(p1.getCenter().x > p2.getCenter().x);
+    }
+
+    @Test
+    public final void testParallelMatchesSerial()
+    {
+        TestUtils.assertParallelMatchesSerial(() -> createSimulator(0.0), 60, 1.0 / 60.0);
+    }
+
+    @Test
+    public final void testNeighborListsParallelMatchesSerial()
+    {
+        TestUtils.assertParallelMatchesSerial(() -> createSimulator(0.5), 60, 1.0 / 60.0);
+    }
+
+    @Test
+    public final void testDoesNotAllocate()
+    {
+        final Simulator simulator = createSimulator(0.5);
+
+        // warm up: the hash reaches its size
+        for (int i = 0; i < 10; i++)
+            simulator.update(1.0 / 60.0);
+
+        assertEquals(0L, TestUtils.allocatedBytes(() ->
+        {
+            for (int i = 0; i < 10; i++)
+                simulator.update(1.0 / 60.0);
+        }));
+    }
+}
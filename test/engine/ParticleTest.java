@@ -0,0 +1,57 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Test;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ParticleTest
+{
+    @Test
+    public final void testSetInvMass()
+    {
+        final Particle detached = new Particle(new Vect3D());
+        detached.setMass(2.0);
+        detached.setInvMass(0.25);
+
+        assertEquals(4.0, detached.getMass(), 0.0);
+        assertEquals(0.25, detached.getInvMass(), 0.0);
+
+        final Simulator simulator = new Simulator();
+        final Particle  attached  = new Particle(new Vect3D());
+
+        simulator.addParticle(attached);
+        attached.setMass(2.0);
+        attached.setInvMass(0.25);
+
+        assertEquals(4.0, attached.getMass(), 0.0);
+        assertEquals(0.25, attached.getInvMass(), 0.0);
+        assertEquals(detached.getDensity(), attached.getDensity(), 0.0);
+    }
+
+    @Test
+    public final void testStateSurvivesAddAndRemove()
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+
+        // never read before being added
+        final Particle p = new Particle(new Vect3D(1.0, 2.0, 3.0));
+        simulator.addParticle(p);
+
+        assertTrue(p.getVelocity().equals(new Vect3D()));
+        assertTrue(p.getOldCenter().equals(new Vect3D(1.0, 2.0, 3.0)));
+
+        p.setVelocity(new ImmutableVect3D(1.0, 0.0, 0.0));
+        simulator.update(0.5);
+        simulator.removeParticle(p);
+
+        assertEquals(1.5, p.getCenter().x, 1e-12);
+        assertEquals(1.0, p.getOldCenter().x, 1e-12);
+        assertEquals(1.0, p.getVelocity().x, 1e-12);
+        assertTrue(p.getForce().equals(new Vect3D()));
+    }
+}
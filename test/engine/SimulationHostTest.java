@@ -0,0 +1,104 @@
+package engine;
+
+import environment.world.NullWorld;
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SimulationHostTest
+{
+    private static Simulator createSimulator()
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+
+        return simulator;
+    }
+
+    @Test
+    public final void testTicksAndRemoval() throws Exception
+    {
+        final SimulationHost host = new SimulationHost(2);
+
+        final SimulationHost.Room fast = host.add(createSimulator(), 200.0);
+        final SimulationHost.Room slow = host.add(createSimulator(), 20.0);
+
+        assertEquals(2, host.getRoomCount());
+
+        Thread.sleep(300L);
+
+        // about 60 and 6, with some slack for a busy machine
+        assertTrue(fast.getTicks() > 10L);
+        assertTrue(slow.getTicks() >= 2L);
+        assertTrue(fast.getTicks() > slow.getTicks());
+        assertEquals(fast.getTicks(), fast.getSimulator().getStepCount());
+        assertEquals(0.005, fast.getTimestep(), 0.0);
+
+        host.remove(fast);
+        host.remove(fast);
+
+        assertTrue(fast.isRemoved());
+        assertEquals(1, host.getRoomCount());
+
+        // a tick in progress can still complete
+        Thread.sleep(50L);
+        final long ticks = fast.getTicks();
+        Thread.sleep(100L);
+
+        assertEquals(ticks, fast.getTicks());
+        assertFalse(slow.isRemoved());
+
+        host.shutdown();
+
+        final long after = slow.getTicks();
+        Thread.sleep(100L);
+
+        assertEquals(after, slow.getTicks());
+    }
+
+    @Test
+    public final void testFailingRoomIsReported() throws Exception
+    {
+        final SimulationHost             host   = new SimulationHost(1);
+        final CountDownLatch             failed = new CountDownLatch(1);
+        final AtomicReference<Throwable> thrown = new AtomicReference<>();
+        final RuntimeException           broken = new IllegalStateException("broken");
+        final Simulator                  sim    = createSimulator();
+
+        host.setFailureHandler((room, t) ->
+        {
+            thrown.set(t);
+            failed.countDown();
+        });
+
+        sim.enqueue(s ->
+        {
+            throw broken;
+        });
+
+        final SimulationHost.Room room = host.add(sim, 100.0);
+        final SimulationHost.Room fine = host.add(createSimulator(), 100.0);
+
+        assertTrue(failed.await(5L, TimeUnit.SECONDS));
+
+        assertTrue(thrown.get() == broken);
+        assertTrue(room.getFailure() == broken);
+        assertTrue(room.isRemoved());
+        assertEquals(1, host.getRoomCount());
+
+        // the others keep going
+        final long ticks = fine.getTicks();
+        Thread.sleep(100L);
+
+        assertTrue(fine.getTicks() > ticks);
+        assertTrue(fine.getFailure() == null);
+
+        host.shutdown();
+    }
+}
@@ -0,0 +1,99 @@
+package engine;
+
+import org.junit.Before;
+import org.junit.Test;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class SleepTest
+{
+    private static final double DT = 1.0 / 60.0;
+
+    protected Simulator simulator;
+
+    @Before
+    public void setUp() throws Exception
+    {
+        simulator = new Simulator();
+        simulator.setSleeping(0.01, 0.01, 10);
+    }
+
+    @Test
+    public final void testFallsAsleepAtRest()
+    {
+        final Particle resting = new Particle(new Vect3D());
+        final Particle moving  = new Particle(1.0, 1.0, new Vect3D(10.0, 0.0, 0.0), new Vect3D(1.0, 0.0, 0.0));
+
+        simulator.addParticle(resting);
+        simulator.addParticle(moving);
+
+        for (int i = 0; i < 9; i++)
+            simulator.update(DT);
+
+        assertFalse(resting.isAsleep());
+
+        for (int i = 0; i < 2; i++)
+            simulator.update(DT);
+
+        assertTrue(resting.isAsleep());
+        assertFalse(moving.isAsleep());
+    }
+
+    @Test
+    public final void testWakesWhenPushed()
+    {
+        final Particle p = new Particle(new Vect3D());
+        simulator.addParticle(p);
+
+        for (int i = 0; i < 20; i++)
+            simulator.update(DT);
+
+        assertTrue(p.isAsleep());
+
+        // any setter of the movement wakes it up
+        p.setForce(new ImmutableVect3D(60.0, 0.0, 0.0));
+
+        assertFalse(p.isAsleep());
+
+        for (int i = 0; i < 20; i++)
+            simulator.update(DT);
+
+        assertTrue(p.isAsleep());
+
+        p.setVelocity(new ImmutableVect3D(1.0, 0.0, 0.0));
+        simulator.update(DT);
+
+        assertFalse(p.isAsleep());
+        assertEquals(DT, p.getCenter().x, 1e-12);
+    }
+
+    @Test
+    public final void testWakesOnContact()
+    {
+        simulator.setParticleCollisions(true);
+
+        final Particle sleeper = new Particle(1.0, 0.5, new Vect3D(), new Vect3D());
+        simulator.addParticle(sleeper);
+
+        for (int i = 0; i < 20; i++)
+            simulator.update(DT);
+
+        assertTrue(sleeper.isAsleep());
+
+        final Particle bullet = new Particle(1.0, 0.5, new Vect3D(-3.0, 0.0, 0.0), new Vect3D(6.0, 0.0, 0.0));
+        simulator.addParticle(bullet);
+
+        for (int i = 0; i < 60; i++)
+            simulator.update(DT);
+
+        // knocked away
+        assertFalse(sleeper.isAsleep());
+        assertTrue(sleeper.getVelocity().x > 0.0);
+        assertTrue(sleeper.getCenter().x > 1.0);
+        assertEquals(0.0, sleeper.getCenter().y, 1e-12);
+    }
+}
@@ -0,0 +1,158 @@
+package engine;
+
+import environment.Fluid;
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SphTest
+{
+    private static final Fluid WATER = new Fluid(0.1, 1000.0, 1000.0, 1.0);
+
+    private static ParticleStore createStore(final int n)
+    {
+        final ParticleStore ps = new ParticleStore(n);
+
+        final Random r = new Random(42);
+
+        // denser than at rest (spacing of 0.05), so that there is pressure
+        final double size = 0.05 * Math.cbrt(n) / 1.5;
+
+        for (int i = 0; i < n; i++)
+        {
+            ps.add(new Particle(0.125 * (0.5 + r.nextDouble()),
+                                0.025,
+                                new Vect3D(r.nextDouble() * size, r.nextDouble() * size, r.nextDouble() * size),
+                                new Vect3D(r.nextGaussian(), r.nextGaussian(), r.nextGaussian())));
+        }
+
+        return ps;
+    }
+
+    /**
+     * @param ps
+     * @return the force per unit mass on each particle, summing over all pairs
+     */
+    private static double[][] bruteForce(final ParticleStore ps)
+    {
+        final double h     = WATER.getSmoothing();
+        final double poly6 = 315.0 / (64.0 * Math.PI * Math.pow(h, 9.0));
+        final double spiky = 45.0 / (Math.PI * Math.pow(h, 6.0));
+
+        final double[] rho = new double[ps.size];
+        final double[] p   = new double[ps.size];
+
+        for (int i = 0; i < ps.size; i++)
+        {
+            for (int j = 0; j < ps.size; j++)
+            {
+                final double dx = ps.pos.x(j) - ps.pos.x(i);
+                final double dy = ps.pos.y(j) - ps.pos.y(i);
+                final double dz = ps.pos.z(j) - ps.pos.z(i);
+                final double d  = h * h - (dx * dx + dy * dy + dz * dz);
+
+                if (d > 0.0)
+                    rho[i] += ps.mass[j] * poly6 * d * d * d;
+            }
+
+            p[i] = Math.max(0.0, WATER.getStiffness() * (rho[i] - WATER.getRestDensity()));
+        }
+
+        final double[][] f = new double[ps.size][3];
+
+        for (int i = 0; i < ps.size; i++)
+            for (int j = 0; j < ps.size; j++)
+            {
+                final double dx = ps.pos.x(i) - ps.pos.x(j);
+                final double dy = ps.pos.y(i) - ps.pos.y(j);
+                final double dz = ps.pos.z(i) - ps.pos.z(j);
+                final double r  = Math.sqrt(dx * dx + dy * dy + dz * dz);
+
+                if (i == j || r >= h)
+                    continue;
+
+                final double shared = ps.mass[j] * spiky * (h - r) / (rho[i] * rho[j]);
+                final double sp     = shared * (p[i] + p[j]) * 0.5 * (h - r) / r;
+                final double sv     = shared * WATER.getViscosity();
+
+                f[i][0] += dx * sp + (ps.vel.x(j) - ps.vel.x(i)) * sv;
+                f[i][1] += dy * sp + (ps.vel.y(j) - ps.vel.y(i)) * sv;
+                f[i][2] += dz * sp + (ps.vel.z(j) - ps.vel.z(i)) * sv;
+            }
+
+        return f;
+    }
+
+    @Test
+    public final void testMatchesBruteForce()
+    {
+        final ParticleStore ps  = createStore(2000);
+        final SphSolver     sph = new SphSolver(WATER);
+
+        sph.compute(ps, null, 4096);
+
+        final double[][] f = bruteForce(ps);
+
+        double px = 0.0, py = 0.0, pz = 0.0;
+
+        for (int i = 0; i < ps.size; i++)
+        {
+            final double scale = 1e-9 * (1.0 + Math.abs(f[i][0]) + Math.abs(f[i][1]) + Math.abs(f[i][2]));
+
+            assertEquals(f[i][0], sph.fx[i], scale);
+            assertEquals(f[i][1], sph.fy[i], scale);
+            assertEquals(f[i][2], sph.fz[i], scale);
+
+            px += sph.fx[i] * ps.mass[i];
+            py += sph.fy[i] * ps.mass[i];
+            pz += sph.fz[i] * ps.mass[i];
+        }
+
+        // the forces are symmetric, so their sum is zero
+        assertEquals(0.0, px, 1e-6);
+        assertEquals(0.0, py, 1e-6);
+        assertEquals(0.0, pz, 1e-6);
+    }
+
+    @Test
+    public final void testParallelMatchesSerial()
+    {
+        final ParticleStore ps       = createStore(20000);
+        final SphSolver     serial   = new SphSolver(WATER);
+        final SphSolver     parallel = new SphSolver(WATER);
+        final ForkJoinPool  pool     = new ForkJoinPool(4);
+
+        serial.compute(ps, null, 4096);
+        parallel.compute(ps, pool, 256);
+
+        pool.shutdown();
+
+        TestUtils.assertSameBits(serial.fx, parallel.fx, ps.size);
+        TestUtils.assertSameBits(serial.fy, parallel.fy, ps.size);
+        TestUtils.assertSameBits(serial.fz, parallel.fz, ps.size);
+    }
+
+    @Test
+    public final void testCompressedParticlesSpread()
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setFluid(new Fluid(0.1, 1.0, 100.0, 0.0));
+
+        final Particle p1 = new Particle(1.0, 0.01, new Vect3D(-0.01, 0.0, 0.0), new Vect3D());
+        final Particle p2 = new Particle(1.0, 0.01, new Vect3D(0.01, 0.0, 0.0), new Vect3D());
+
+        simulator.addParticle(p1);
+        simulator.addParticle(p2);
+
+        simulator.update(0.001);
+
+        // much denser than at rest, they push each other apart
+        assertTrue(p1.getVelocity().x < 0.0);
+        assertEquals(0.0, p1.getVelocity().x + p2.getVelocity().x, 1e-12);
+    }
+}
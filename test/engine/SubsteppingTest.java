@@ -0,0 +1,95 @@
+package engine;
+
+import collision.BroadPhase;
+import collision.Static;
+import environment.world.NullWorld;
+import org.junit.Test;
+import utils.Vect3D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+public class SubsteppingTest
+{
+    private static final double DT = 1.0 / 60.0;
+
+    /**
+     * Every static object is a possible collision.
+     */
+    private static final class ListBroadPhase implements BroadPhase
+    {
+        private final List<Static> objects = new ArrayList<>();
+
+        @Override
+        public void add(final Static s)
+        {
+            objects.add(s);
+        }
+
+        @Override
+        public void remove(final Static s)
+        {
+            objects.remove(s);
+        }
+
+        @Override
+        public List<Static> getPossibleCollisions(final Vect3D p)
+        {
+            return new ArrayList<>(objects);
+        }
+
+        @Override
+        public List<Static> getCollisions(final Vect3D p)
+        {
+            final List<Static> colliding = new ArrayList<>();
+
+            for (final Static s : objects)
+                if (s.intersects(p))
+                    colliding.add(s);
+
+            return colliding;
+        }
+    }
+
+    /**
+     * Shoots a particle at a wall 10 cm thick, fast enough
+     * to cross it (and then some) in a single step.
+     *
+     * @param substeps maximum substeps per particle, 1 to disable substepping
+     * @return the particle, after a few steps
+     */
+    private static Particle shoot(final int substeps)
+    {
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(new NullWorld());
+        simulator.setBroadPhase(new ListBroadPhase());
+        simulator.setSubstepping(0.5, substeps);
+        simulator.addStatic(new Static(new Vect3D(5.0, -10.0, -10.0), new Vect3D(5.1, 10.0, 10.0), 0.0));
+
+        // 5 m per step, while the particle's radius is 10 cm
+        final Particle p = new Particle(1.0, 0.1, new Vect3D(0.5, 0.0, 0.0), new Vect3D(300.0, 0.0, 0.0));
+        simulator.addParticle(p);
+
+        for (int i = 0; i < 5; i++)
+            simulator.update(DT);
+
+        return p;
+    }
+
+    @Test
+    public final void testTunnelsWithoutSubsteps()
+    {
+        assertTrue(shoot(1).getCenter().x > 5.1);
+    }
+
+    @Test
+    public final void testSubstepsStopAtTheWall()
+    {
+        final Particle p = shoot(200);
+
+        assertTrue(p.getCenter().x < 5.0);
+        assertTrue(p.getVelocity().x <= 0.0);
+    }
+}
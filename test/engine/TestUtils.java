@@ -0,0 +1,187 @@
+package engine;
+
+import collision.Static;
+import collision.broadphase.ArrayGrid2D;
+import environment.Forces;
+import environment.World;
+import utils.ImmutableVect3D;
+import utils.Vect3D;
+
+import java.lang.management.ManagementFactory;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Fixtures and checks shared by the engine tests.
+ */
+final class TestUtils
+{
+    private TestUtils()
+    {
+    }
+
+    /**
+     * @param ground a static object the particles bounce on, or null
+     * @return a world with the Earth's gravity
+     */
+    static World gravity(final Static ground)
+    {
+        return new World()
+        {
+            @Override
+            public void process(final Particle p, final double dt)
+            {
+                p.getForce().z -= 9.81 * p.getMass();
+
+                if (ground != null)
+                    Forces.processImpact(p, ground, dt);
+            }
+
+            @Override
+            public ImmutableVect3D getGravity()
+            {
+                return new ImmutableVect3D(0.0, 0.0, -9.81);
+            }
+
+            @Override
+            public void setGravity(final ImmutableVect3D gravity)
+            {
+            }
+
+            @Override
+            public Vect3D getForces(final Particle p, final double dt)
+            {
+                return new Vect3D(ImmutableVect3D.zero);
+            }
+        };
+    }
+
+    /**
+     * Similar to the demo map: gravity, a solid ground, 100 blocks
+     * and 2000 bouncing particles, always the same.
+     *
+     * @return the simulator
+     */
+    static Simulator createSimulator()
+    {
+        final Static ground = new Static(new Vect3D(-100.0, -100.0, -100.0), new Vect3D(100.0, 100.0, 0.0), 0.4);
+
+        final Simulator simulator = new Simulator();
+        simulator.setWorld(gravity(ground));
+        simulator.setBroadPhase(new ArrayGrid2D((short) -100, (short) 100, (short) -100, (short) 100, (short) 10));
+
+        final Random r = new Random(42);
+
+        for (int i = 0; i < 100; i++)
+        {
+            final int x = r.nextInt(180) - 90;
+            final int y = r.nextInt(180) - 90;
+
+            simulator.addStatic(new Static(new Vect3D(x, y, 5.0), new Vect3D(x + 4, y + 4, 10.0), 0.4));
+        }
+
+        for (int i = 0; i < 2000; i++)
+        {
+            final Particle p = new Particle(new Vect3D(r.nextDouble() * 180.0 - 90.0,
+                                                       r.nextDouble() * 180.0 - 90.0,
+                                                       r.nextDouble() * 50.0));
+            p.setVelocity(new ImmutableVect3D(r.nextDouble() * 50.0 - 25.0, 0.0, r.nextDouble() * 10.0));
+            p.setBounciness(0.5);
+
+            simulator.addParticle(p);
+        }
+
+        return simulator;
+    }
+
+    /**
+     * Steps two copies of a simulation, one serial and one with four threads
+     * and small chunks, checking that their checksums match after each step.
+     *
+     * @param factory creates the simulation, the same each time
+     * @param steps
+     * @param dt
+     * @return the final checksum
+     */
+    static long assertParallelMatchesSerial(final Supplier<Simulator> factory, final int steps, final double dt)
+    {
+        final Simulator serial   = factory.get();
+        final Simulator parallel = factory.get();
+        serial.setDeterministic(true);
+        parallel.setDeterministic(true);
+        parallel.setParallelism(4);
+        parallel.setChunkSize(64);
+
+        assertEquals(serial.getChecksum(), parallel.getChecksum());
+
+        for (int i = 0; i < steps; i++)
+        {
+            serial.update(dt);
+            parallel.update(dt);
+
+            assertEquals(serial.getChecksum(), parallel.getChecksum());
+        }
+
+        parallel.setParallelism(1);
+
+        return serial.getChecksum();
+    }
+
+    /**
+     * Checks that the first n values of two arrays are the same.
+     *
+     * @param expected
+     * @param actual
+     * @param n
+     */
+    static void assertSamePrefix(final int[] expected, final int[] actual, final int n)
+    {
+        for (int i = 0; i < n; i++)
+            assertEquals(expected[i], actual[i]);
+    }
+
+    /**
+     * Checks that the first n values of two arrays are the same, bit by bit.
+     *
+     * @param expected
+     * @param actual
+     * @param n
+     */
+    static void assertSameBits(final double[] expected, final double[] actual, final int n)
+    {
+        for (int i = 0; i < n; i++)
+            assertEquals(Double.doubleToLongBits(expected[i]), Double.doubleToLongBits(actual[i]));
+    }
+
+    /**
+     * Measures the memory allocated by the calling thread while running something.
+     *
+     * @param r
+     * @return the bytes allocated, without those of the measurement itself
+     */
+    static long allocatedBytes(final Runnable r)
+    {
+        final com.sun.management.ThreadMXBean bean =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+        assertTrue(bean.isThreadAllocatedMemorySupported());
+        bean.setThreadAllocatedMemoryEnabled(true);
+
+        final long id = Thread.currentThread().getId();
+
+        // cost of the measurement itself
+        final long start    = bean.getThreadAllocatedBytes(id);
+        final long overhead = bean.getThreadAllocatedBytes(id) - start;
+
+        final long before = bean.getThreadAllocatedBytes(id);
+
+        r.run();
+
+        final long after = bean.getThreadAllocatedBytes(id);
+
+        return after - before - overhead;
+    }
+}
@@ -0,0 +1,69 @@
+package engine;
+
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class Vect3DColumnTest
+{
+    @Test
+    public final void testFloatRoundTrip()
+    {
+        final Vect3DColumn c = Vect3DColumn.create(true, 4);
+
+        assertTrue(c.isSingle());
+
+        // representable values come back exactly, the others rounded to the nearest float
+        c.set(0, 1.5, -0.25, 1e6);
+        c.set(1, 0.1, Math.PI, -1e-7);
+
+        assertEquals(1.5, c.x(0), 0.0);
+        assertEquals(-0.25, c.y(0), 0.0);
+        assertEquals(1e6, c.z(0), 0.0);
+        assertEquals((double) 0.1f, c.x(1), 0.0);
+        assertEquals((double) (float) Math.PI, c.y(1), 0.0);
+        assertEquals((double) -1e-7f, c.z(1), 0.0);
+
+        final double[] xs = new double[3];
+        final double[] ys = new double[3];
+        final double[] zs = new double[3];
+
+        c.read(0, xs, ys, zs, 1, 2);
+        c.write(2, xs, ys, zs, 1, 2);
+
+        assertEquals(c.x(0), c.x(2), 0.0);
+        assertEquals(c.y(1), c.y(3), 0.0);
+
+        c.resize(16);
+        c.move(3, 10);
+
+        assertEquals(c.z(1), c.z(10), 0.0);
+
+        c.permute(new int[] {1, 0}, 2, new double[2]);
+
+        assertEquals((double) 0.1f, c.x(0), 0.0);
+        assertEquals(1.5, c.x(1), 0.0);
+    }
+
+    @Test
+    public final void testSwitchingPrecisionKeepsTheState()
+    {
+        final Simulator simulator = new Simulator();
+        final Particle  p         = new Particle(1.0, 1.0, new Vect3D(0.1, 2.0, -3.0), new Vect3D(1.0, 0.3, 0.0));
+
+        simulator.addParticle(p);
+        simulator.setSinglePrecision(true);
+
+        assertEquals((double) 0.1f, p.getCenter().x, 0.0);
+        assertEquals(2.0, p.getCenter().y, 0.0);
+        assertEquals((double) 0.3f, p.getVelocity().y, 0.0);
+
+        simulator.setSinglePrecision(false);
+
+        // floats are exact in double precision
+        assertEquals((double) 0.1f, p.getCenter().x, 0.0);
+        assertEquals(-3.0, p.getCenter().z, 0.0);
+    }
+}
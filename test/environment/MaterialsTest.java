@@ -0,0 +1,56 @@
+package environment;
+
+import engine.Particle;
+import org.junit.Test;
+import utils.Vect3D;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MaterialsTest
+{
+    @Test
+    public final void testRepeatedSettersDoNotGrowTheRegistry()
+    {
+        final Particle p = new Particle(new Vect3D());
+
+        p.setFriction(0.123);
+        p.setBounciness(0.456);
+
+        final int size     = Materials.size();
+        final int material = p.getMaterial();
+
+        for (int i = 0; i < 1000; i++)
+        {
+            p.setFriction(0.123);
+            p.setBounciness(0.456);
+            new Particle(new Vect3D()).setFriction(0.4);
+        }
+
+        assertEquals(size, Materials.size());
+        assertEquals(material, p.getMaterial());
+        assertEquals(material, Materials.find(0.123, 0.456));
+        assertEquals(0.123, p.getFriction(), 0.0);
+        assertEquals(0.456, p.getBounciness(), 0.0);
+    }
+
+    @Test
+    public final void testFindDoesNotRegister()
+    {
+        final int size = Materials.size();
+
+        assertEquals(-1, Materials.find(0.789, 0.987));
+        assertEquals(size, Materials.size());
+
+        final int id = Materials.register(0.789, 0.987);
+
+        assertEquals(size + 1, Materials.size());
+        assertEquals(id, Materials.find(0.789, 0.987));
+        assertEquals(id, Materials.register(0.789, 0.987));
+
+        // contacts: average friction, highest bounciness
+        assertEquals((0.789 + 0.4) / 2.0, Materials.getFriction(id, Materials.DEFAULT), 1e-15);
+        assertEquals(0.987, Materials.getBounciness(Materials.DEFAULT, id), 0.0);
+        assertTrue(Materials.size() <= Materials.MAX);
+    }
+}
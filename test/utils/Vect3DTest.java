@@ -0,0 +1,48 @@
+package utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class Vect3DTest
+{
+    @Test
+    public void testMax() throws Exception
+    {
+        // each component from a different vector, and y never the largest x
+        final Vect3D v = new Vect3D(1.0, -5.0, 3.0).max(new Vect3D(0.0, -2.0, 4.0));
+
+        assertEquals(1.0, v.x, 0.0);
+        assertEquals(-2.0, v.y, 0.0);
+        assertEquals(4.0, v.z, 0.0);
+
+        final Vect3D a = new Vect3D(-1.0, 7.0, 0.0);
+        final Vect3D m = Vect3D.max(a, new Vect3D(2.0, 6.0, -1.0));
+
+        assertEquals(2.0, m.x, 0.0);
+        assertEquals(7.0, m.y, 0.0);
+        assertEquals(0.0, m.z, 0.0);
+
+        // the static version works on a copy
+        assertEquals(-1.0, a.x, 0.0);
+    }
+
+    @Test
+    public void testMin() throws Exception
+    {
+        final Vect3D v = new Vect3D(1.0, 5.0, 3.0).min(new Vect3D(0.0, 2.0, 4.0));
+
+        assertEquals(0.0, v.x, 0.0);
+        assertEquals(2.0, v.y, 0.0);
+        assertEquals(3.0, v.z, 0.0);
+
+        final Vect3D a = new Vect3D(-1.0, -7.0, 0.0);
+        final Vect3D m = Vect3D.min(a, new Vect3D(2.0, -6.0, -1.0));
+
+        assertEquals(-1.0, m.x, 0.0);
+        assertEquals(-7.0, m.y, 0.0);
+        assertEquals(-1.0, m.z, 0.0);
+
+        assertEquals(0.0, a.z, 0.0);
+    }
+}